@@ -0,0 +1,296 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One line per answered request, written off the request path. Request threads copy what
+ * they know into a preallocated slot of a lock-free ring buffer and move on; a background
+ * thread drains the ring in batches into the log file through a {@link FileChannel},
+ * rotating it once it grows past a size limit.
+ *
+ * <p>Nothing on the request path blocks or allocates: if the writer falls behind and the ring
+ * is full, the record is dropped and counted, and the count is written to the log later.
+ */
+final class AccessLog implements Runnable {
+	enum Level {
+		OFF,
+		/** Time, client, request line, status, bytes sent and time taken. */
+		BASIC,
+		/** BASIC plus the request headers. */
+		VERBOSE,
+	}
+
+	/** A power of two, so positions map to slots with a mask. */
+	private static final int RING_SIZE = 4096;
+	private static final int MAX_PATH_BYTES = 256;
+	private static final int MAX_HEAD_BYTES = 1024;
+	private static final int MAX_ROTATED_FILES = 5;
+	private static final long IDLE_PARK_NANOS = 10 * 1000 * 1000;
+
+	/** A fixed-size ring slot; everything but {@link #sequence} is only touched by its owner. */
+	private static final class Record {
+		/**
+		 * Equals the ring position this slot is free to be written at, or that position plus
+		 * one once the record is written and may be read.
+		 */
+		volatile long sequence;
+		long timeMillis;
+		InetAddress remote;
+		HTTPRequest.Command command;
+		String version;
+		final byte[] path = new byte[MAX_PATH_BYTES];
+		int pathLength;
+		int status;
+		long bytes;
+		long durationNanos;
+		final byte[] head;
+		int headLength;
+
+		Record(long sequence, boolean verbose) {
+			this.sequence = sequence;
+			this.head = verbose ? new byte[MAX_HEAD_BYTES] : null;
+		}
+	}
+
+	private final Level level;
+	private final Path file;
+	private final long maxFileBytes;
+	private final Record[] ring = new Record[RING_SIZE];
+	private final AtomicLong tail = new AtomicLong();
+	private final LongAdder dropped = new LongAdder();
+
+	// Writer thread only.
+	private long head = 0;
+	private long droppedReported = 0;
+	private FileChannel channel;
+	private long fileBytes;
+	private final ByteBuffer batch = ByteBuffer.allocateDirect(256 * 1024);
+	private final StringBuilder line = new StringBuilder();
+
+	private volatile boolean closed = false;
+	private Thread writer;
+
+	public AccessLog(Level level, String file, long maxFileBytes) {
+		this.level = level;
+		this.file = Paths.get(file);
+		this.maxFileBytes = maxFileBytes;
+		for (int i = 0; i < RING_SIZE; i++) {
+			ring[i] = new Record(i, level == Level.VERBOSE);
+		}
+	}
+
+	/** Opens the log file and starts the writer thread; does nothing if logging is off. */
+	public void start() throws IOException {
+		if (level == Level.OFF) {
+			return;
+		}
+		open();
+		writer = new Thread(this, "access-log");
+		writer.setDaemon(true);
+		writer.start();
+		System.out.println(String.format("Access log (%s) at %s", level.toString().toLowerCase(), file));
+	}
+
+	/** Writes out whatever is still in the ring and stops the writer. */
+	public void close() {
+		closed = true;
+		if (writer != null) {
+			LockSupport.unpark(writer);
+			try {
+				writer.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Logs an answered request. Never blocks: if the ring is full the record is dropped.
+	 *
+	 * @param request the request, possibly only partly parsed if it was malformed.
+	 */
+	public void record(HTTPRequest request, int status, long bytes) {
+		if (level == Level.OFF) {
+			return;
+		}
+		long position = tail.get();
+		Record slot;
+		while (true) {
+			slot = ring[(int) position & (RING_SIZE - 1)];
+			long sequence = slot.sequence;
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = tail.get();
+			} else if (sequence < position) {
+				dropped.increment(); // a whole lap ahead of the writer: the ring is full.
+				return;
+			} else {
+				position = tail.get(); // another thread took this slot.
+			}
+		}
+
+		slot.timeMillis = System.currentTimeMillis();
+		slot.remote = request.getRemoteAddress();
+		slot.command = request.getType();
+		slot.version = request.getVersion();
+		String path = request.getPath();
+		slot.pathLength = path == null ? 0 : Math.min(path.length(), MAX_PATH_BYTES);
+		for (int i = 0; i < slot.pathLength; i++) {
+			slot.path[i] = (byte) path.charAt(i); // paths are parsed as ISO-8859-1.
+		}
+		slot.status = status;
+		slot.bytes = bytes;
+		slot.durationNanos = System.nanoTime() - request.getReceivedNanos();
+		if (slot.head != null) {
+			slot.headLength = request.copyHead(slot.head);
+		}
+		slot.sequence = position + 1; // publishes the record to the writer.
+	}
+
+	/** Records lost because the ring was full. */
+	public long droppedRecords() {
+		return dropped.sum();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			boolean wasClosed = closed;
+			int written = drain();
+			if (written == 0) {
+				if (wasClosed) {
+					break;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println("Couldn't close the access log: " + e);
+		}
+	}
+
+	/** Writes every published record to the file; returns how many there were. */
+	private int drain() {
+		int count = 0;
+		long lost = dropped.sum();
+		if (lost > droppedReported) {
+			line.setLength(0);
+			line.append("# dropped ").append(lost - droppedReported).append(" records\n");
+			append(line);
+			droppedReported = lost;
+		}
+		while (true) {
+			Record slot = ring[(int) head & (RING_SIZE - 1)];
+			if (slot.sequence != head + 1) {
+				break;
+			}
+			format(slot);
+			slot.remote = null;
+			slot.version = null;
+			slot.sequence = head + RING_SIZE; // free for the writer one lap from now.
+			head++;
+			count++;
+		}
+		writeBatch();
+		return count;
+	}
+
+	private void format(Record slot) {
+		line.setLength(0);
+		line.append(Instant.ofEpochMilli(slot.timeMillis)).append(' ')
+				.append(slot.remote == null ? "-" : slot.remote.getHostAddress()).append(" \"");
+		if (slot.pathLength == 0) {
+			line.append('-');
+		} else {
+			line.append(slot.command).append(' ');
+			for (int i = 0; i < slot.pathLength; i++) {
+				line.append((char) (slot.path[i] & 0xff));
+			}
+			line.append(' ').append(slot.version == null ? "-" : slot.version);
+		}
+		line.append("\" ").append(slot.status).append(' ').append(slot.bytes)
+				.append(' ').append(slot.durationNanos / 1000).append("us\n");
+		if (slot.head != null) {
+			// The raw request head, one indented line per header, without the request line.
+			int start = 0;
+			while (start < slot.headLength && slot.head[start] != '\n') {
+				start++;
+			}
+			for (int i = start + 1; i < slot.headLength; i++) {
+				byte b = slot.head[i];
+				if (b == '\n') {
+					if (line.charAt(line.length() - 1) != '\n') {
+						line.append('\n');
+					}
+				} else if (b != '\r') {
+					if (line.charAt(line.length() - 1) == '\n') {
+						line.append('\t');
+					}
+					line.append((char) (b & 0xff));
+				}
+			}
+			if (line.charAt(line.length() - 1) != '\n') {
+				line.append('\n');
+			}
+		}
+		append(line);
+	}
+
+	private void append(CharSequence text) {
+		if (batch.remaining() < text.length()) {
+			writeBatch();
+		}
+		for (int i = 0; i < text.length() && batch.hasRemaining(); i++) {
+			batch.put((byte) text.charAt(i));
+		}
+	}
+
+	private void writeBatch() {
+		batch.flip();
+		try {
+			if (batch.hasRemaining() && fileBytes > 0 && fileBytes + batch.remaining() > maxFileBytes) {
+				rotate();
+			}
+			while (batch.hasRemaining()) {
+				fileBytes += channel.write(batch);
+			}
+		} catch (IOException e) {
+			System.out.println("Error writing the access log, skipping a batch. Details: " + e);
+		} finally {
+			batch.clear();
+		}
+	}
+
+	/** Shifts access.log to access.log.1, access.log.1 to access.log.2 and so on, and starts anew. */
+	private void rotate() throws IOException {
+		channel.close();
+		for (int i = MAX_ROTATED_FILES - 1; i >= 1; i--) {
+			Path older = Paths.get(file + "." + i);
+			if (Files.exists(older)) {
+				Files.move(older, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+		open();
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		fileBytes = channel.size();
+	}
+}
@@ -0,0 +1,46 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally-sized direct {@link ByteBuffer}s. Direct buffers are expensive to allocate
+ * and free, so the NIO engine borrows them only while a connection actually has bytes in
+ * flight and hands them back as soon as they drain; idle connections hold none.
+ */
+final class BufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	public int bufferSize() {
+		return bufferSize;
+	}
+
+	/** Returns a cleared buffer of {@link #bufferSize()} bytes. */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		return buffer;
+	}
+
+	/** Gives a buffer back to the pool; it must not be used by the caller afterwards. */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize || pooled.incrementAndGet() > maxPooled) {
+			if (buffer.capacity() == bufferSize) {
+				pooled.decrementAndGet();
+			}
+			return; // let the GC have it.
+		}
+		buffer.clear();
+		free.offer(buffer);
+	}
+}
@@ -0,0 +1,179 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Byte-range requests (RFC 7233): answers a GET carrying a Range header with a 206 holding
+ * the requested slices of a {@link CachedResponse}'s body, as multipart/byteranges if more
+ * than one range was asked for, or a 416 if none of them can be satisfied. Slices are views
+ * of the stored body, so nothing is copied. A {@link CachedResponse#streamed streamed} body
+ * only serves single ranges, read from its file.
+ */
+final class ByteRanges {
+	/** More ranges than this and we just send the whole thing, rather than be made to seek around. */
+	private static final int MAX_RANGES = 16;
+	private static final String BOUNDARY = String.format("%016x%016x",
+			new SecureRandom().nextLong(), new SecureRandom().nextLong());
+
+	private ByteRanges() {} // can't instantiate this static class
+
+	/**
+	 * Answers a range request for {@code response}, if the Range header asks for something we
+	 * can serve and the If-Range condition (if any) holds.
+	 *
+	 * @return the status sent, or 0 if the caller should send the full response instead.
+	 */
+	public static int respond(ResponseWriter out, CachedResponse response, String range, String ifRange,
+			boolean keepAlive) throws IOException {
+		if (!ifRangeMatches(ifRange, response)) {
+			return 0;
+		}
+		long length = response.length;
+		List<long[]> ranges = parse(range, length);
+		if (ranges == null || (response.streamed && ranges.size() > 1)) {
+			return 0; // a streamed body can only go out in one piece, the last of the response.
+		}
+		if (ranges.isEmpty()) {
+			out.write(new StringBuilder()
+					.append("HTTP/1.1 416 Range Not Satisfiable\r\n")
+					.append("Content-Range: bytes */").append(length).append("\r\n")
+					.append(RequestDispatcher.persistentConnection(keepAlive))
+					.append("Content-Length: 0\r\n\r\n")
+					.toString().getBytes(StandardCharsets.ISO_8859_1));
+			return 416;
+		}
+
+		StringBuilder head = new StringBuilder().append("HTTP/1.1 206 Partial Content\r\n");
+		for (Map.Entry<String, String> header : response.headers.entrySet()) {
+			if (ranges.size() == 1 || !header.getKey().equals("Content-Type")) {
+				head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+		}
+		head.append(RequestDispatcher.persistentConnection(keepAlive));
+
+		if (ranges.size() == 1) {
+			long[] only = ranges.get(0);
+			head.append("Content-Range: ").append(contentRange(only, length)).append("\r\n")
+					.append("Content-Length: ").append(only[1] - only[0] + 1).append("\r\n\r\n");
+			out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+			writeSlice(out, response, only);
+			return 206;
+		}
+
+		String contentType = response.headers.get("Content-Type");
+		List<byte[]> partHeads = new ArrayList<byte[]>();
+		long contentLength = 0;
+		for (long[] slice : ranges) {
+			byte[] partHead = new StringBuilder()
+					.append("\r\n--").append(BOUNDARY).append("\r\n")
+					.append("Content-Type: ").append(contentType).append("\r\n")
+					.append("Content-Range: ").append(contentRange(slice, length)).append("\r\n\r\n")
+					.toString().getBytes(StandardCharsets.ISO_8859_1);
+			partHeads.add(partHead);
+			contentLength += partHead.length + slice[1] - slice[0] + 1;
+		}
+		byte[] closing = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		contentLength += closing.length;
+
+		head.append("Content-Type: multipart/byteranges; boundary=").append(BOUNDARY).append("\r\n")
+				.append("Content-Length: ").append(contentLength).append("\r\n\r\n");
+		out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+		for (int i = 0; i < ranges.size(); i++) {
+			out.write(partHeads.get(i));
+			writeSlice(out, response, ranges.get(i));
+		}
+		out.write(closing);
+		return 206;
+	}
+
+	/**
+	 * Parses a "bytes=" range set against a body of {@code length} bytes.
+	 *
+	 * @return the satisfiable ranges as inclusive {first, last} pairs (empty if there are none),
+	 *     or {@code null} if the header is malformed or asks for too many ranges.
+	 */
+	static List<long[]> parse(String range, long length) {
+		if (!range.startsWith("bytes=")) {
+			return null;
+		}
+		String[] specs = range.substring("bytes=".length()).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		List<long[]> ranges = new ArrayList<long[]>();
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			long first;
+			long last;
+			try {
+				if (dash == 0) {
+					// "-n" is the last n bytes; there are none of an empty body, so it can't be satisfied.
+					long suffix = Long.parseLong(spec.substring(1));
+					if (suffix < 0) {
+						return null;
+					}
+					if (suffix == 0 || length == 0) {
+						continue;
+					}
+					first = Math.max(0, length - suffix);
+					last = length - 1;
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (first < 0 || last < first) {
+				return null; // e.g. "5-3" is invalid, not merely unsatisfiable.
+			}
+			if (first < length) {
+				ranges.add(new long[] {first, Math.min(last, length - 1)});
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * If-Range holds if it's absent, or is exactly this representation's (strong) ETag or
+	 * Last-Modified date.
+	 */
+	private static boolean ifRangeMatches(String ifRange, CachedResponse response) {
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"")) {
+			return ifRange.equals(response.etag);
+		}
+		long date = HttpDates.parse(ifRange);
+		return date >= 0 && date == response.lastModified;
+	}
+
+	private static String contentRange(long[] slice, long length) {
+		return "bytes " + slice[0] + "-" + slice[1] + "/" + length;
+	}
+
+	private static void writeSlice(ResponseWriter out, CachedResponse response, long[] slice) throws IOException {
+		long count = slice[1] - slice[0] + 1;
+		if (response.file != null && out.transferFile(response, slice[0], count)) {
+			return;
+		}
+		if (response.streamed) {
+			out.stream(ResponseBody.ofFile(response.file, slice[0], count));
+			return;
+		}
+		ByteBuffer body = response.body.duplicate();
+		body.position(body.position() + (int) slice[0]);
+		body.limit(body.position() + (int) count);
+		out.write(body);
+	}
+}
@@ -0,0 +1,266 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A complete HTTP response rendered once, when the resources are loaded: the status line and
+ * headers as bytes, and the body as a read-only (usually off-heap, see {@link ResourceStore})
+ * buffer. Sending it needs no formatting or allocation.
+ *
+ * <p>Header blocks are kept for both connection variants, since whether the connection stays
+ * open changes the bytes on the wire; HEAD requests get the header block alone.
+ *
+ * <p>A response may also carry precompressed variants of itself (see {@link Compression}),
+ * picked per request by {@link #negotiate}, and, if it has an ETag or Last-Modified header,
+ * the pre-rendered 304 to answer conditional requests with (see {@link #notModified}).
+ *
+ * <p>A file too big to keep in memory is rendered {@link #streamed}: just its head, with the
+ * body read from the file for each request (see {@link ResponseBody}).
+ */
+final class CachedResponse {
+	private static final ByteBuffer EMPTY_BODY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	public final String statusLine;
+	/** The status code from {@link #statusLine}. */
+	public final int status;
+	public final Map<String, String> headers;
+	/** The body, or nothing if it's {@link #streamed}. */
+	public final ByteBuffer body;
+	/** The body's length, as sent. */
+	public final long length;
+	/** Whether the body isn't stored, but read from {@link #file} as it's sent. */
+	public final boolean streamed;
+	/** The file the body was loaded from, or {@code null} if it was generated. */
+	public final File file;
+	/** {@link #file}'s modification time when it was loaded, or 0 if there's no file. */
+	private final long fileModified;
+	/** Precompressed variants by content-coding ("gzip", "deflate"); empty for most responses. */
+	public final Map<String, CachedResponse> encodings;
+	/** Strong entity tag, quotes included, or {@code null}. */
+	public final String etag;
+	/** Last-Modified in epoch millis (whole seconds), or -1. */
+	public final long lastModified;
+	/** The 304 for this exact representation, or {@code null} if it has no validators. */
+	public final CachedResponse notModified;
+
+	private final byte[] headKeepAlive;
+	private final byte[] headClose;
+
+	/** @param streamedLength the length of a {@link #streamed} body, or -1 if {@code body} is it. */
+	private CachedResponse(String statusLine, Map<String, String> headers, ByteBuffer body, File file,
+			Map<String, CachedResponse> encodings, long streamedLength) {
+		this.statusLine = statusLine;
+		this.status = Integer.parseInt(statusLine.substring(0, 3));
+		this.headers = headers;
+		this.body = body;
+		this.streamed = streamedLength >= 0;
+		this.length = streamed ? streamedLength : body.remaining();
+		this.file = file;
+		this.fileModified = file != null ? file.lastModified() : 0;
+		this.encodings = encodings;
+		this.etag = headers.get("ETag");
+		this.lastModified = HttpDates.parse(headers.get("Last-Modified"));
+		this.notModified = statusLine.startsWith("200") && (etag != null || lastModified >= 0)
+				? new CachedResponse("304 Not Modified", validatorHeaders(headers), EMPTY_BODY, null,
+						Collections.<String, CachedResponse>emptyMap(), -1)
+				: null;
+		this.headKeepAlive = renderHead(true);
+		this.headClose = renderHead(false);
+	}
+
+	/**
+	 * Renders a response.
+	 *
+	 * @param statusLine e.g. "200 OK".
+	 * @param headers headers other than Connection and Content-Length, which are filled in here.
+	 */
+	public static CachedResponse render(String statusLine, Map<String, String> headers, ByteBuffer body) {
+		return render(statusLine, headers, body, null);
+	}
+
+	/** Renders a response whose body is a copy of {@code file}'s contents. */
+	public static CachedResponse render(String statusLine, Map<String, String> headers, ByteBuffer body,
+			File file) {
+		return new CachedResponse(statusLine, new LinkedHashMap<String, String>(headers),
+				body.asReadOnlyBuffer(), file, Collections.<String, CachedResponse>emptyMap(), -1);
+	}
+
+	/** Renders a response whose body is the first {@code length} bytes of {@code file}, read as it's sent. */
+	public static CachedResponse renderStreamed(String statusLine, Map<String, String> headers, File file,
+			long length) {
+		return new CachedResponse(statusLine, new LinkedHashMap<String, String>(headers), EMPTY_BODY, file,
+				Collections.<String, CachedResponse>emptyMap(), length);
+	}
+
+	/**
+	 * Renders a response along with gzip and deflate variants of it, keeping only the variants
+	 * that actually come out smaller. Every variant says "Vary: Accept-Encoding".
+	 */
+	public static CachedResponse renderCompressible(String statusLine, Map<String, String> headers,
+			ByteBuffer body, File file) throws IOException {
+		Map<String, ByteBuffer> encoded = new LinkedHashMap<String, ByteBuffer>();
+		encoded.put("gzip", ByteBuffer.wrap(Compression.gzip(body)));
+		encoded.put("deflate", ByteBuffer.wrap(Compression.deflate(body)));
+		return renderEncoded(statusLine, headers, body, file, encoded);
+	}
+
+	/**
+	 * Like {@link #renderCompressible}, with the body already encoded, e.g. in a
+	 * {@link ContentPack}.
+	 *
+	 * @param encoded the body in each content-coding, by coding, in order of preference.
+	 */
+	public static CachedResponse renderEncoded(String statusLine, Map<String, String> headers,
+			ByteBuffer body, File file, Map<String, ByteBuffer> encoded) {
+		Map<String, String> varyHeaders = new LinkedHashMap<String, String>(headers);
+		varyHeaders.put("Vary", "Accept-Encoding");
+
+		Map<String, CachedResponse> encodings = new LinkedHashMap<String, CachedResponse>();
+		for (Map.Entry<String, ByteBuffer> coding : encoded.entrySet()) {
+			addIfSmaller(encodings, coding.getKey(), coding.getValue(), statusLine, varyHeaders, body);
+		}
+		if (encodings.isEmpty()) {
+			return render(statusLine, headers, body, file);
+		}
+		return new CachedResponse(statusLine, varyHeaders, body.asReadOnlyBuffer(), file, encodings, -1);
+	}
+
+	private static void addIfSmaller(Map<String, CachedResponse> encodings, String coding, ByteBuffer encoded,
+			String statusLine, Map<String, String> varyHeaders, ByteBuffer body) {
+		if (encoded.remaining() >= body.remaining()) {
+			return;
+		}
+		Map<String, String> headers = new LinkedHashMap<String, String>(varyHeaders);
+		headers.put("Content-Encoding", coding);
+		String etag = headers.get("ETag");
+		if (etag != null) {
+			// Each representation needs its own strong ETag.
+			headers.put("ETag", etag.substring(0, etag.length() - 1) + "-" + coding + "\"");
+		}
+		encodings.put(coding, render(statusLine, headers, encoded));
+	}
+
+	/**
+	 * Whether a GET/HEAD carrying these conditional headers can be answered with
+	 * {@link #notModified}. If-None-Match wins over If-Modified-Since (RFC 7232 6).
+	 */
+	public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+		if (notModified == null) {
+			return false;
+		}
+		if (ifNoneMatch != null) {
+			if (etag == null) {
+				return false;
+			}
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if (candidate.startsWith("W/")) {
+					candidate = candidate.substring(2); // If-None-Match uses weak comparison.
+				}
+				if (candidate.equals("*") || candidate.equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		long since = HttpDates.parse(ifModifiedSince);
+		return lastModified >= 0 && since >= 0 && lastModified <= since;
+	}
+
+	private static Map<String, String> validatorHeaders(Map<String, String> headers) {
+		Map<String, String> validators = new LinkedHashMap<String, String>();
+		for (String name : new String[] {"ETag", "Last-Modified", "Vary", "Server"}) {
+			if (headers.containsKey(name)) {
+				validators.put(name, headers.get(name));
+			}
+		}
+		return validators;
+	}
+
+	/**
+	 * Picks the variant to send for the given Accept-Encoding header: the smallest one among
+	 * the codings the client accepts with the highest q-value, or this (identity) response.
+	 */
+	public CachedResponse negotiate(String acceptEncoding) {
+		if (encodings.isEmpty() || acceptEncoding == null) {
+			return this;
+		}
+		CachedResponse best = this;
+		double bestQuality = 0;
+		double wildcardQuality = -1;
+		Map<String, Double> accepted = new HashMap<String, Double>();
+		for (String option : acceptEncoding.split(",")) {
+			String[] parts = option.trim().split(";");
+			double quality = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(param.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			String coding = parts[0].trim().toLowerCase();
+			if (coding.equals("*")) {
+				wildcardQuality = quality;
+			} else {
+				accepted.put(coding, quality);
+			}
+		}
+		for (Map.Entry<String, CachedResponse> encoding : encodings.entrySet()) {
+			Double quality = accepted.get(encoding.getKey());
+			double q = quality != null ? quality : Math.max(wildcardQuality, 0);
+			if (q > bestQuality
+					|| (q == bestQuality && q > 0 && encoding.getValue().body.remaining() < best.body.remaining())) {
+				best = encoding.getValue();
+				bestQuality = q;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Whether {@link #file} still has the length and modification time it had when it was
+	 * loaded, so sending it from the file sends the stored bytes, the ones the ETag is for.
+	 */
+	public boolean isFileUnchanged() {
+		return file.length() == length && file.lastModified() == fileModified;
+	}
+
+	/** Returns the status line and headers for a connection that will/won't stay open. */
+	public byte[] head(boolean keepAlive) {
+		return keepAlive ? headKeepAlive : headClose;
+	}
+
+	public void writeTo(ResponseWriter out, HTTPRequest.Command command, boolean keepAlive) throws IOException {
+		out.write(head(keepAlive));
+		if (command == HTTPRequest.Command.HEAD || (file != null && out.transferFile(this, 0, length))) {
+			return;
+		}
+		if (streamed) {
+			out.stream(ResponseBody.ofFile(file, 0, length));
+		} else {
+			out.write(body.duplicate());
+		}
+	}
+
+	private byte[] renderHead(boolean keepAlive) {
+		StringBuilder head = new StringBuilder()
+				.append("HTTP/1.1 ").append(statusLine).append("\r\n");
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		head.append(RequestDispatcher.persistentConnection(keepAlive));
+		if (!statusLine.startsWith("304")) {
+			head.append("Content-Length: ").append(length).append("\r\n");
+		}
+		head.append("\r\n");
+		return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
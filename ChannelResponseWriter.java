@@ -0,0 +1,113 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link ResponseWriter} for a plaintext, blocking {@link SocketChannel}. Off-heap buffers are
+ * written to the channel as they are, and file bodies go out with
+ * {@link FileChannel#transferTo} (sendfile), so the kernel copies them from the page cache
+ * straight to the socket.
+ *
+ * <p>Heads and small bodies are gathered in a per-connection buffer and go out together with
+ * the next large write, in one gathering write, or on {@link #flush}; a small response is a
+ * single send. Files that would fit in the buffer are written from their stored copy rather
+ * than sent separately, as are files that have changed since they were loaded.
+ */
+final class ChannelResponseWriter implements ResponseWriter {
+	/** Largest single write, so progress is reported while a big body goes out. */
+	private static final int MAX_WRITE_BYTES = 256 * 1024;
+	private static final int BUFFER_BYTES = 16 * 1024;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel channel;
+	/** Told whenever some bytes have been written. */
+	private final Runnable onProgress;
+	/** Bytes not sent yet, in write mode. */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+	private final ByteBuffer[] gathered = new ByteBuffer[] {buffer, EMPTY};
+	private long bytesWritten = 0;
+
+	public ChannelResponseWriter(SocketChannel channel, Runnable onProgress) {
+		this.channel = channel;
+		this.onProgress = onProgress;
+	}
+
+	@Override
+	public void write(byte[] bytes) throws IOException {
+		write(ByteBuffer.wrap(bytes));
+	}
+
+	@Override
+	public void write(ByteBuffer bytes) throws IOException {
+		bytesWritten += bytes.remaining();
+		if (bytes.remaining() <= buffer.remaining()) {
+			buffer.put(bytes);
+		} else {
+			send(bytes);
+		}
+	}
+
+	/** Writes out the buffer followed by {@code bytes}, leaving the buffer empty. */
+	private void send(ByteBuffer bytes) throws IOException {
+		buffer.flip();
+		gathered[1] = bytes;
+		int limit = bytes.limit();
+		try {
+			while (buffer.hasRemaining() || bytes.hasRemaining()) {
+				bytes.limit(Math.min(limit, bytes.position() + MAX_WRITE_BYTES));
+				channel.write(gathered);
+				bytes.limit(limit);
+				onProgress.run();
+			}
+		} finally {
+			bytes.limit(limit);
+			gathered[1] = EMPTY;
+			buffer.clear();
+		}
+	}
+
+	@Override
+	public boolean transferFile(CachedResponse response, long offset, long length) throws IOException {
+		if (length <= buffer.remaining()) {
+			return false; // cheaper to send it along with the head.
+		}
+		if (!response.streamed && !response.isFileUnchanged()) {
+			return false; // rewritten since it was loaded: send the copy, until it's reloaded.
+		}
+		File file = response.file;
+		send(EMPTY);
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			for (long sent = 0; sent < length; ) {
+				long transferred = fileChannel.transferTo(offset + sent, Math.min(length - sent, MAX_WRITE_BYTES),
+						channel);
+				if (transferred <= 0) {
+					// The headers already promised `length` bytes, so the connection can't be reused.
+					throw new IOException(String.format("%s shrank since it was loaded", file));
+				}
+				sent += transferred;
+				onProgress.run();
+			}
+		}
+		bytesWritten += length;
+		return true;
+	}
+
+	@Override
+	public void stream(ResponseBody body) throws IOException {
+		body.writeTo(this);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (buffer.position() > 0) {
+			send(EMPTY);
+		}
+	}
+
+	@Override
+	public long bytesWritten() {
+		return bytesWritten;
+	}
+}
@@ -0,0 +1,57 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds the precompressed gzip/deflate variants of text resources. Done once at load time, so
+ * requests never pay for compression.
+ */
+final class Compression {
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	private Compression() {} // can't instantiate this static class
+
+	/** Whether responses of this Content-Type are worth compressing. */
+	public static boolean isCompressible(String contentType) {
+		return contentType.startsWith("text/html") || contentType.startsWith("text/css")
+				|| contentType.startsWith("text/plain");
+	}
+
+	public static byte[] gzip(ByteBuffer body) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out, CHUNK_SIZE) {
+			{
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		};
+		copy(body, gzip);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	/** HTTP's "deflate" coding, i.e. zlib-wrapped (RFC 1950), not raw deflate. */
+	public static byte[] deflate(ByteBuffer body) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater, CHUNK_SIZE);
+			copy(body, deflate);
+			deflate.close();
+		} finally {
+			deflater.end();
+		}
+		return out.toByteArray();
+	}
+
+	private static void copy(ByteBuffer body, OutputStream out) throws IOException {
+		ByteBuffer source = body.duplicate();
+		byte[] chunk = new byte[CHUNK_SIZE];
+		while (source.hasRemaining()) {
+			int length = Math.min(chunk.length, source.remaining());
+			source.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the server's connections within bounds, for both engines and both listeners.
+ *
+ * <p>Admission: up to --maxConnections connections are served. Past that, a few more are
+ * turned away with a 503 so well-behaved clients know to back off, and the rest are reset as
+ * soon as they're accepted, which costs next to nothing. Either way the connections already
+ * admitted keep their share of the server.
+ *
+ * <p>Deadlines: a connection gets a fixed time to finish its TLS handshake and to send a
+ * complete request head once it has started one. A client trickling bytes can't stretch
+ * either, unlike a socket read timeout, which every byte resets. While we're sending, the
+ * client must keep taking bytes: the write deadline moves out whenever some get through, so
+ * big downloads to slow but live clients are fine. The blocking engine registers its sockets
+ * with {@link #watch}, and a watchdog thread closes any that overrun; the NIO engine checks
+ * its own connections' deadlines as it sweeps for idle ones.
+ */
+final class ConnectionGovernor implements Runnable {
+	enum Admission {
+		ADMIT,
+		/** Over the limit: answer the first request with a 503 and close. */
+		REJECT,
+		/** Far over the limit: reset the connection straight away. */
+		DROP,
+	}
+
+	/** What a connection was doing when it ran out of time. */
+	enum Timeout {
+		HANDSHAKE,
+		HEADER,
+		IDLE,
+		WRITE,
+	}
+
+	/** Connections that may be getting a 503 at once; beyond these, they're dropped. */
+	private static final int MAX_REJECTING = 256;
+	private static final long WATCHDOG_TICK_MILLIS = 100;
+
+	static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n"
+			+ "Retry-After: 1\r\n"
+			+ RequestDispatcher.persistentConnection(false)
+			+ "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+	private final int maxConnections;
+	private final Metrics metrics;
+	private final AtomicInteger admitted = new AtomicInteger();
+	private final AtomicInteger rejecting = new AtomicInteger();
+	private final Set<Watch> watched = ConcurrentHashMap.newKeySet();
+	private Thread watchdog;
+
+	/**
+	 * A blocking socket's current deadline, if it has one. Only the connection's own thread
+	 * arms and disarms it; the watchdog only reads it.
+	 */
+	final class Watch {
+		private final Socket socket;
+		private volatile Timeout armedFor;
+		private volatile long deadlineMillis;
+
+		private Watch(Socket socket) {
+			this.socket = socket;
+		}
+
+		/** Closes the socket if {@code kind} isn't done within {@code millis} from now. */
+		public void arm(Timeout kind, int millis) {
+			deadlineMillis = System.currentTimeMillis() + millis;
+			armedFor = kind;
+		}
+
+		/** Bytes went out: pushes a write deadline {@code millis} from now. */
+		public void progress(int millis) {
+			if (armedFor == Timeout.WRITE) {
+				deadlineMillis = System.currentTimeMillis() + millis;
+			}
+		}
+
+		public void disarm() {
+			armedFor = null;
+		}
+
+		public boolean isArmed() {
+			return armedFor != null;
+		}
+
+		/** Stops watching the socket; call once the connection is closed. */
+		public void close() {
+			watched.remove(this);
+		}
+	}
+
+	public ConnectionGovernor(int maxConnections, Metrics metrics) {
+		this.maxConnections = maxConnections;
+		this.metrics = metrics;
+	}
+
+	/** Decides what to do with a connection that has just been accepted. */
+	public Admission admit() {
+		if (admitted.incrementAndGet() <= maxConnections) {
+			return Admission.ADMIT;
+		}
+		admitted.decrementAndGet();
+		if (rejecting.incrementAndGet() <= MAX_REJECTING) {
+			metrics.connectionRejected(false);
+			return Admission.REJECT;
+		}
+		rejecting.decrementAndGet();
+		metrics.connectionRejected(true);
+		return Admission.DROP;
+	}
+
+	/** Gives back the slot a connection was admitted (or rejected) with, once it's closed. */
+	public void release(Admission admission) {
+		if (admission == Admission.ADMIT) {
+			admitted.decrementAndGet();
+		} else if (admission == Admission.REJECT) {
+			rejecting.decrementAndGet();
+		}
+	}
+
+	/** Starts watching a blocking socket's deadlines, starting the watchdog if need be. */
+	public Watch watch(Socket socket) {
+		synchronized (this) {
+			if (watchdog == null) {
+				watchdog = new Thread(this, "connection-watchdog");
+				watchdog.setDaemon(true);
+				watchdog.start();
+			}
+		}
+		Watch watch = new Watch(socket);
+		watched.add(watch);
+		return watch;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(WATCHDOG_TICK_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			for (Watch watch : watched) {
+				Timeout kind = watch.armedFor;
+				if (kind != null && now > watch.deadlineMillis) {
+					watched.remove(watch);
+					metrics.timedOut(kind);
+					reset(watch.socket);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes a socket without a goodbye. With no linger time, an {@link javax.net.ssl.SSLSocket}
+	 * doesn't wait for a blocked writer to let it send close_notify, and the client gets a RST.
+	 */
+	static void reset(Socket socket) {
+		try {
+			socket.setSoLinger(true, 0);
+		} catch (IOException e) {
+			// already closed; close() below is then a no-op.
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing more to do with it.
+		}
+	}
+}
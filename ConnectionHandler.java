@@ -0,0 +1,309 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import javax.net.ssl.*;
+
+/**
+ * Serves a single accepted client connection. Each accepted socket (an {@link SSLSocket}, or a
+ * plaintext socket from the --httpPort listener) gets its own handler and its own streams, so
+ * a slow client only ever stalls the thread it runs on.
+ * The {@link RequestDispatcher} is shared between all handlers and is never modified.
+ *
+ * <p>Connections are persistent by default (HTTP/1.1) and serve requests until the client
+ * asks to close, goes idle for longer than the idle timeout, or hits the per-connection
+ * request limit. The idle timeout is the socket's read timeout; the handshake, header and
+ * write deadlines are enforced by the {@link ConnectionGovernor}'s watchdog.
+ *
+ * <p>A request body is read through the same buffer as request heads, and handed on a read's
+ * worth at a time, so an upload only ever takes as much memory as that buffer.
+ *
+ * <p>A TLS connection that negotiates HTTP/2 is handed to an {@link Http2Connection}
+ * instead, which answers all of its streams on this thread.
+ */
+final class ConnectionHandler implements Runnable {
+	private final Socket clientSocket;
+	private final RequestDispatcher dispatcher;
+	private final ServerOptions options;
+	private final Metrics metrics;
+	private final ConnectionGovernor governor;
+	private final ConnectionGovernor.Admission admission;
+	private ConnectionGovernor.Watch watch;
+	private final long acceptedNanos;
+	private ResponseWriter toClientStream;
+	private InputStream fromClientStream;
+	/**
+	 * Bytes read from the client that haven't been consumed yet: {@code [requestStart,
+	 * requestLength)}. Kept across requests, since a read can pick up pipelined ones too.
+	 */
+	private byte[] requestBytes = new byte[4096];
+	private int requestStart = 0;
+	private int requestLength = 0;
+	/** Re-parsed for every request; see {@link HTTPRequest}. */
+	private final HTTPRequest request;
+	private boolean keepAlive = false;
+
+	public ConnectionHandler(Socket clientSocket, RequestDispatcher dispatcher,
+			ServerOptions options, ConnectionGovernor governor, ConnectionGovernor.Admission admission) {
+		this.clientSocket = clientSocket;
+		this.dispatcher = dispatcher;
+		this.options = options;
+		this.governor = governor;
+		this.admission = admission;
+		this.metrics = dispatcher.getMetrics();
+		this.acceptedNanos = System.nanoTime();
+		this.request = new HTTPRequest(clientSocket.getInetAddress());
+	}
+
+	@Override
+	public void run() {
+		metrics.connectionOpened();
+		metrics.lap(Metrics.Phase.ACCEPT, acceptedNanos);
+		watch = governor.watch(clientSocket);
+		try {
+			clientSocket.setSoTimeout(options.idleTimeoutMillis);
+			// Responses are written whole and flushed once, so Nagle would only delay their tails.
+			clientSocket.setTcpNoDelay(true);
+			if (clientSocket.getChannel() != null) {
+				toClientStream = new ChannelResponseWriter(clientSocket.getChannel(), this::wroteSome);
+			} else {
+				toClientStream = new StreamResponseWriter(new ProgressOutputStream(clientSocket.getOutputStream()));
+			}
+			fromClientStream = clientSocket.getInputStream();
+		} catch (IOException e) {
+			metrics.failed(Metrics.Failure.IO);
+			close();
+			return;
+		}
+
+		try {
+			if (clientSocket instanceof SSLSocket) {
+				// It would happen on the first read anyway; doing it here lets us time it.
+				long start = System.nanoTime();
+				long startMillis = System.currentTimeMillis();
+				watch.arm(ConnectionGovernor.Timeout.HANDSHAKE, options.handshakeTimeoutMillis);
+				((SSLSocket) clientSocket).startHandshake();
+				watch.disarm();
+				metrics.lap(Metrics.Phase.HANDSHAKE, start);
+				metrics.handshakeCompleted(TlsConfig.isResumed(((SSLSocket) clientSocket).getSession(), startMillis));
+			}
+			if (clientSocket instanceof SSLSocket
+					&& Http2Connection.PROTOCOL.equals(((SSLSocket) clientSocket).getApplicationProtocol())) {
+				serveHttp2();
+				return;
+			}
+			if (admission == ConnectionGovernor.Admission.REJECT) {
+				reject();
+				return;
+			}
+			for (int served = 0; served < options.maxRequestsPerConnection; served++) {
+				keepAlive = served + 1 < options.maxRequestsPerConnection;
+				if (!handleRequest()) {
+					break;
+				}
+			}
+		} catch (SocketTimeoutException e) {
+			metrics.timedOut(ConnectionGovernor.Timeout.IDLE);
+		} catch (IOException e) {
+			metrics.failed(Metrics.Failure.IO);
+		} finally {
+			close();
+		}
+	}
+
+	private void close() {
+		metrics.connectionClosed();
+		if (watch != null) {
+			watch.close();
+		}
+		governor.release(admission);
+		try {
+			clientSocket.close();
+		} catch (IOException e) {
+			// it's ok; the connection is already closed.
+		}
+	}
+
+	/**
+	 * Reads one request off the connection and answers it. Pipelined requests are simply read
+	 * (and so answered) in the order they arrived.
+	 *
+	 * @return {@code true} if the connection should stay open for another request.
+	 */
+	public boolean handleRequest() throws IOException {
+		int end;
+		long parseStart = System.nanoTime();
+		try {
+			while ((end = request.parse(requestBytes, requestStart, requestLength)) < 0) {
+				if (!readMore()) {
+					return false; // the client closed the connection.
+				}
+				if (!watch.isArmed()) {
+					// The client has started a request; the idle timeout no longer applies.
+					watch.arm(ConnectionGovernor.Timeout.HEADER, options.headerTimeoutMillis);
+				}
+				parseStart = System.nanoTime();
+			}
+		} catch (HTTPRequest.MalformedRequestException e) {
+			metrics.failed(Metrics.Failure.MALFORMED);
+			watch.arm(ConnectionGovernor.Timeout.WRITE, options.writeTimeoutMillis);
+			dispatcher.sendMalformed(request, toClientStream, e);
+			toClientStream.flush();
+			return false;
+		}
+		requestStart = end;
+		metrics.lap(Metrics.Phase.PARSE, parseStart);
+
+		keepAlive = keepAlive && request.askingForPersistent();
+
+		watch.arm(ConnectionGovernor.Timeout.WRITE, options.writeTimeoutMillis);
+		if (request.hasBody()) {
+			return handleBody();
+		}
+		keepAlive = dispatcher.respond(request, keepAlive, toClientStream);
+		toClientStream.flush();
+		watch.disarm();
+		return keepAlive;
+	}
+
+	/**
+	 * Reads the body of the request just parsed, passing it on as it arrives, and answers the
+	 * request once it's all in.
+	 *
+	 * @return {@code true} if the connection should stay open for another request.
+	 */
+	private boolean handleBody() throws IOException {
+		RequestBody body = dispatcher.startBody(request, request.getBodyLength(), keepAlive, toClientStream);
+		toClientStream.flush(); // the 100 Continue, or the refusal.
+		if (body == null) {
+			return false;
+		}
+		// However long the body takes, each read has to bring something within the idle timeout.
+		watch.disarm();
+		try {
+			while (true) {
+				requestStart = body.receive(requestBytes, requestStart, requestLength);
+				if (body.isComplete()) {
+					break;
+				}
+				if (!readMore()) {
+					return false; // the client closed the connection.
+				}
+			}
+		} catch (HTTPRequest.MalformedRequestException e) {
+			metrics.failed(Metrics.Failure.MALFORMED);
+			watch.arm(ConnectionGovernor.Timeout.WRITE, options.writeTimeoutMillis);
+			dispatcher.sendMalformed(body.request, toClientStream, e);
+			toClientStream.flush();
+			return false;
+		} finally {
+			body.abort();
+		}
+
+		watch.arm(ConnectionGovernor.Timeout.WRITE, options.writeTimeoutMillis);
+		keepAlive = dispatcher.finishBody(body, toClientStream);
+		toClientStream.flush();
+		watch.disarm();
+		return keepAlive;
+	}
+
+	/**
+	 * Serves an HTTP/2 connection: whatever arrives is handed to the {@link Http2Connection},
+	 * and whatever it then has to send is written out, until either side says GOAWAY.
+	 */
+	private void serveHttp2() throws IOException {
+		metrics.http2ConnectionOpened();
+		Http2Connection http2 = new Http2Connection(dispatcher, request, options.http2MaxStreams,
+				admission == ConnectionGovernor.Admission.REJECT);
+		try {
+			while (true) {
+				requestStart = http2.receive(requestBytes, requestStart, requestLength);
+				watch.arm(ConnectionGovernor.Timeout.WRITE, options.writeTimeoutMillis);
+				// Streamed bodies give up a part per send, so send until the windows are used up.
+				while (http2.send(toClientStream, Long.MAX_VALUE) > 0) {
+					toClientStream.flush();
+				}
+				watch.disarm();
+				if (http2.isDone() || !readMore()) {
+					return;
+				}
+			}
+		} catch (SocketTimeoutException e) {
+			http2.goAway(); // idle: say goodbye properly, so the client doesn't retry on this connection.
+			http2.send(toClientStream, Long.MAX_VALUE);
+			toClientStream.flush();
+			throw e;
+		} finally {
+			http2.close();
+		}
+	}
+
+	/**
+	 * Answers the connection's first request with a 503. Reading the request first means the
+	 * client has nothing in flight when we close, so it gets the 503 rather than a reset.
+	 */
+	private void reject() throws IOException {
+		watch.arm(ConnectionGovernor.Timeout.HEADER, options.headerTimeoutMillis);
+		while (request.parse(requestBytes, requestStart, requestLength) < 0) {
+			if (!readMore()) {
+				return;
+			}
+		}
+		watch.arm(ConnectionGovernor.Timeout.WRITE, options.writeTimeoutMillis);
+		dispatcher.sendUnavailable(request, toClientStream);
+		toClientStream.flush();
+	}
+
+	/**
+	 * Reads whatever the client has sent next, after moving the unconsumed bytes to the front
+	 * of the buffer (or growing it, if they fill it, up to {@link HTTPRequest#MAX_BUFFERED_BYTES}).
+	 *
+	 * @return {@code false} at end of stream.
+	 * @throws HTTPRequest.MalformedRequestException if the buffer is full and nothing in it
+	 *     could be consumed.
+	 */
+	private boolean readMore() throws IOException {
+		if (requestStart > 0) {
+			System.arraycopy(requestBytes, requestStart, requestBytes, 0, requestLength - requestStart);
+			requestLength -= requestStart;
+			requestStart = 0;
+		}
+		if (requestLength == requestBytes.length) {
+			if (requestLength >= HTTPRequest.MAX_BUFFERED_BYTES) {
+				throw new HTTPRequest.MalformedRequestException("431 Request Header Fields Too Large",
+						"request head too large");
+			}
+			requestBytes = Arrays.copyOf(requestBytes, Math.min(2 * requestBytes.length, HTTPRequest.MAX_BUFFERED_BYTES));
+		}
+		int read = fromClientStream.read(requestBytes, requestLength, requestBytes.length - requestLength);
+		if (read < 0) {
+			return false;
+		}
+		requestLength += read;
+		return true;
+	}
+
+	private void wroteSome() {
+		watch.progress(options.writeTimeoutMillis);
+	}
+
+	/** Writes in slices, noting after each one that the client is still taking bytes. */
+	private final class ProgressOutputStream extends FilterOutputStream {
+		private static final int SLICE_BYTES = 64 * 1024;
+
+		ProgressOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				int slice = Math.min(length, SLICE_BYTES);
+				out.write(bytes, offset, slice);
+				wroteSome();
+				offset += slice;
+				length -= slice;
+			}
+		}
+	}
+}
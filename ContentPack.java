@@ -0,0 +1,307 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * www/ built ahead of time into a single file, so a server with a big web root can start
+ * without reading, hashing and compressing every file in it. Run in the directory above www/:
+ *
+ * <pre>
+ * java -cp server.jar ContentPack --out=www.pack
+ * </pre>
+ *
+ * and start the server with {@code --pack=www.pack}. The pack holds each distinct file body
+ * once, its gzip and deflate encodings where they come out smaller, redirect.defs, and an index
+ * of it all. Opening it maps the file and renders each response's head from the index, with
+ * bodies as slices of the mapping, so startup reads only the index, and the page cache is
+ * shared by every server on the machine serving the same pack.
+ *
+ * <p>Responses are the ones {@link ResourceMap#loadFiles} would render, ETags included, except
+ * that nothing is streamed: every body is served from the mapping, whatever its size. Files
+ * over 2GB don't fit in a mapping and are left out.
+ *
+ * <p>The pack is written next to its destination and moved over it when complete, so a server
+ * that has the old one mapped keeps serving it intact. Never modify a pack in place.
+ *
+ * <p>Layout (big-endian, strings as in {@link DataOutput#writeUTF}):
+ *
+ * <pre>
+ * magic
+ * data: bodies and encodings, back to back
+ * index: segmentCount, (offset long, length int)*,
+ *        fileCount, (webPath, lastModified long, sha256, body, codingCount byte, (coding, blob)*)*,
+ *        hasRedirects boolean, [redirect.defs blob]
+ * indexOffset long
+ * magic
+ * </pre>
+ *
+ * A blob is (segment, offset within it, length), all ints. Segments split the data into
+ * mappable pieces of at most 2GB, none of which splits a blob.
+ */
+final class ContentPack {
+	private static final byte[] MAGIC = "P2PACK01".getBytes(StandardCharsets.ISO_8859_1);
+	private static final int TRAILER_BYTES = 8 + MAGIC.length;
+	private static final String REDIRECT_DEFS_FILENAME = "redirect.defs";
+
+	/** Pre-rendered 200s, keyed by web path. */
+	public final Map<String, CachedResponse> resources;
+	public final RedirectRules redirects;
+
+	private ContentPack(Map<String, CachedResponse> resources, RedirectRules redirects) {
+		this.resources = resources;
+		this.redirects = redirects;
+	}
+
+	/** Maps a pack and renders its responses. */
+	public static ContentPack open(Path path) throws IOException {
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < MAGIC.length + TRAILER_BYTES || !hasMagic(readAt(channel, 0, MAGIC.length))) {
+				throw new IOException(path + " isn't a content pack");
+			}
+			ByteBuffer trailer = readAt(channel, size - TRAILER_BYTES, TRAILER_BYTES);
+			long indexOffset = trailer.getLong();
+			if (!hasMagic(trailer) || indexOffset < MAGIC.length || size - TRAILER_BYTES - indexOffset > Integer.MAX_VALUE) {
+				throw new IOException(path + " is truncated or corrupt");
+			}
+			ByteBuffer indexBytes = readAt(channel, indexOffset, (int) (size - TRAILER_BYTES - indexOffset));
+			DataInputStream index = new DataInputStream(
+					new ByteArrayInputStream(indexBytes.array(), 0, indexBytes.remaining()));
+
+			ByteBuffer[] segments = new ByteBuffer[index.readInt()];
+			for (int i = 0; i < segments.length; i++) {
+				long offset = index.readLong();
+				int length = index.readInt();
+				if (offset < MAGIC.length || length < 0 || offset + length > indexOffset) {
+					throw new IOException(path + " is corrupt: segment " + i + " is out of bounds");
+				}
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			}
+
+			Map<String, CachedResponse> resources = new HashMap<String, CachedResponse>();
+			long bodyBytes = 0;
+			for (int files = index.readInt(); files > 0; files--) {
+				String webPath = index.readUTF();
+				long lastModified = index.readLong();
+				String sha256 = index.readUTF();
+				ByteBuffer body = readBlob(index, segments, path);
+				Map<String, ByteBuffer> encoded = new LinkedHashMap<String, ByteBuffer>();
+				for (int codings = index.readUnsignedByte(); codings > 0; codings--) {
+					String coding = index.readUTF();
+					encoded.put(coding, readBlob(index, segments, path));
+				}
+				resources.put(webPath, ResourceMap.render200Packed(webPath, body, sha256, lastModified, encoded));
+				bodyBytes += body.remaining();
+			}
+			RedirectRules redirects = RedirectRules.empty();
+			if (index.readBoolean()) {
+				ByteBuffer defs = readBlob(index, segments, path);
+				redirects = RedirectRules.parse(StandardCharsets.UTF_8.decode(defs).toString());
+			}
+
+			System.out.println(String.format("Serving %d files (%d bytes) from %s, opened in %d ms",
+					resources.size(), bodyBytes, path, (System.nanoTime() - start) / 1000000));
+			return new ContentPack(resources, redirects);
+		}
+	}
+
+	private static ByteBuffer readBlob(DataInput index, ByteBuffer[] segments, Path path) throws IOException {
+		int segment = index.readInt();
+		int offset = index.readInt();
+		int length = index.readInt();
+		if (segment < 0 || segment >= segments.length || offset < 0 || length < 0
+				|| (long) offset + length > segments[segment].capacity()) {
+			throw new IOException(path + " is corrupt: a body is out of bounds");
+		}
+		ByteBuffer blob = segments[segment].duplicate();
+		blob.position(offset).limit(offset + length);
+		return blob.slice().asReadOnlyBuffer();
+	}
+
+	private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static boolean hasMagic(ByteBuffer buffer) {
+		byte[] magic = new byte[MAGIC.length];
+		buffer.get(magic);
+		return Arrays.equals(magic, MAGIC);
+	}
+
+	/** Where a blob went: see the layout above. */
+	private static final class Blob {
+		final int segment;
+		final int offset;
+		final int length;
+
+		Blob(int segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		void writeTo(DataOutput index) throws IOException {
+			index.writeInt(segment);
+			index.writeInt(offset);
+			index.writeInt(length);
+		}
+	}
+
+	/** A distinct body, as packed. */
+	private static final class Packed {
+		final Blob body;
+		final Map<String, Blob> encoded = new LinkedHashMap<String, Blob>();
+
+		Packed(Blob body) {
+			this.body = body;
+		}
+	}
+
+	/** Appends blobs to the pack's data, starting a new segment whenever one would overflow. */
+	private static final class Writer {
+		private final FileChannel out;
+		private final List<long[]> segments = new ArrayList<long[]>();
+		private long segmentStart;
+
+		Writer(FileChannel out) throws IOException {
+			this.out = out;
+			this.segmentStart = out.position();
+			segments.add(new long[] {segmentStart, 0});
+		}
+
+		Blob add(ByteBuffer data) throws IOException {
+			if (out.position() - segmentStart + data.remaining() > Integer.MAX_VALUE) {
+				segmentStart = out.position();
+				segments.add(new long[] {segmentStart, 0});
+			}
+			Blob blob = new Blob(segments.size() - 1, (int) (out.position() - segmentStart), data.remaining());
+			writeFully(out, data.duplicate());
+			segments.get(segments.size() - 1)[1] = out.position() - segmentStart;
+			return blob;
+		}
+
+		void writeSegments(DataOutput index) throws IOException {
+			index.writeInt(segments.size());
+			for (long[] segment : segments) {
+				index.writeLong(segment[0]);
+				index.writeInt((int) segment[1]);
+			}
+		}
+	}
+
+	/** Packs www/ into {@code pack}, replacing it once the new one is complete. */
+	public static void build(Path pack) throws IOException {
+		Path root = ResourceMap.webRoot();
+		Path partial = pack.resolveSibling(pack.getFileName() + ".partial");
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+		DataOutputStream index = new DataOutputStream(indexBytes);
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		DataOutputStream entry = new DataOutputStream(entries);
+		int files = 0;
+		long dataBytes;
+		try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(out, ByteBuffer.wrap(MAGIC));
+			Writer writer = new Writer(out);
+
+			Map<String, Packed> packed = new HashMap<String, Packed>();
+			for (Map.Entry<String, File> file : new TreeMap<String, File>(ResourceMap.indexFiles()).entrySet()) {
+				String webPath = file.getKey();
+				if (file.getValue().length() > Integer.MAX_VALUE) {
+					System.out.println(String.format("%s is too large to pack (%d bytes); leaving it out",
+							webPath, file.getValue().length()));
+					continue;
+				}
+				long lastModified = file.getValue().lastModified();
+				ResourceStore.Content content = ResourceStore.loadStandalone(file.getValue());
+				Packed body = packed.get(content.sha256);
+				if (body == null) {
+					body = new Packed(writer.add(content.body));
+					if (Compression.isCompressible(ResourceMap.contentTypeFromFilename(webPath))) {
+						addIfSmaller(writer, body, "gzip", Compression.gzip(content.body));
+						addIfSmaller(writer, body, "deflate", Compression.deflate(content.body));
+					}
+					packed.put(content.sha256, body);
+				}
+				entry.writeUTF(webPath);
+				entry.writeLong(lastModified);
+				entry.writeUTF(content.sha256);
+				body.body.writeTo(entry);
+				entry.writeByte(body.encoded.size());
+				for (Map.Entry<String, Blob> coding : body.encoded.entrySet()) {
+					entry.writeUTF(coding.getKey());
+					coding.getValue().writeTo(entry);
+				}
+				files++;
+			}
+			Blob redirectDefs = null;
+			Path defs = root.resolve(REDIRECT_DEFS_FILENAME);
+			if (Files.exists(defs)) {
+				redirectDefs = writer.add(ByteBuffer.wrap(Files.readAllBytes(defs)));
+			}
+
+			long indexOffset = out.position();
+			dataBytes = indexOffset - MAGIC.length;
+			writer.writeSegments(index);
+			index.writeInt(files);
+			entries.writeTo(index);
+			index.writeBoolean(redirectDefs != null);
+			if (redirectDefs != null) {
+				redirectDefs.writeTo(index);
+			}
+			writeFully(out, ByteBuffer.wrap(indexBytes.toByteArray()));
+			ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+			trailer.putLong(indexOffset).put(MAGIC).flip();
+			writeFully(out, trailer);
+			out.force(false);
+		}
+		Files.move(partial, pack, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		System.out.println(String.format("Packed %d files into %s (%d bytes of data)", files, pack, dataBytes));
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			out.write(data);
+		}
+	}
+
+	private static void addIfSmaller(Writer writer, Packed body, String coding, byte[] encoded) throws IOException {
+		if (encoded.length < body.body.length) {
+			body.encoded.put(coding, writer.add(ByteBuffer.wrap(encoded)));
+		}
+	}
+
+	public static void main(String argv[]) throws IOException {
+		String usage = "usage: ContentPack --out=www.pack (run in the directory above www/)";
+		Map<String, String> flags = null;
+		try {
+			flags = Utils.parseCmdlineFlags(argv);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage() + "\n" + usage);
+			System.exit(-1);
+		}
+		String out = flags.get("--out");
+		if (out == null || flags.size() > 1) {
+			System.out.println(usage);
+			System.exit(-1);
+		}
+		build(Paths.get(out));
+	}
+}
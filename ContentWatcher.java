@@ -0,0 +1,144 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches www/ (recursively) and applies content changes to the running server without a
+ * restart. Events are batched until the tree has been quiet for a moment, so a deploy that
+ * touches many files lands as one update; each batch is applied copy-on-write by the
+ * {@link ResourceLookup} and by swapping the redirect map, so request threads never lock.
+ *
+ * <p>A path's fate is decided by what's on disk when the batch is applied, not by the order of
+ * its events, so write-to-temp-then-rename deploys come out right.
+ */
+final class ContentWatcher implements Runnable {
+	private static final long QUIET_MILLIS = 200;
+	private static final String REDIRECT_DEFS_PATH = "/redirect.defs";
+
+	private final Path root;
+	private final ResourceLookup resources;
+	private final RequestDispatcher dispatcher;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+
+	public ContentWatcher(ResourceLookup resources, RequestDispatcher dispatcher) throws IOException {
+		this.root = ResourceMap.webRoot();
+		this.resources = resources;
+		this.dispatcher = dispatcher;
+		this.watchService = root.getFileSystem().newWatchService();
+		registerTree(root, null);
+	}
+
+	/** Starts watching on a daemon thread of its own. */
+	public void start() {
+		Thread thread = new Thread(this, "content-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		System.out.println("Watching " + root + " for changes.");
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Set<Path> touched = new LinkedHashSet<Path>();
+			boolean overflowed;
+			try {
+				overflowed = collect(watchService.take(), touched);
+				WatchKey key;
+				while ((key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+					overflowed |= collect(key, touched);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			try {
+				apply(touched, overflowed);
+			} catch (IOException e) {
+				System.out.println("Error applying content changes, continuing. Details: " + e);
+			}
+		}
+	}
+
+	/** Records the paths a key's events touched; returns {@code true} if events were lost. */
+	private boolean collect(WatchKey key, Set<Path> touched) {
+		boolean overflowed = false;
+		Path dir = watchedDirs.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+				overflowed = true;
+				continue;
+			}
+			Path path = dir.resolve((Path) event.context());
+			touched.add(path);
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+				try {
+					registerTree(path, touched);
+				} catch (IOException e) {
+					System.out.println("Couldn't watch new directory " + path + ": " + e);
+				}
+			}
+		}
+		if (!key.reset()) {
+			watchedDirs.remove(key);
+		}
+		return overflowed;
+	}
+
+	private void apply(Set<Path> touched, boolean overflowed) throws IOException {
+		Map<String, File> changed = new HashMap<String, File>();
+		Set<String> removed = new HashSet<String>();
+		boolean redirectsChanged = overflowed;
+		if (overflowed) {
+			// We don't know what we missed, so start over from what's on disk.
+			removed.add("/");
+			changed.putAll(ResourceMap.indexFiles());
+		} else {
+			for (Path path : touched) {
+				String webPath = ResourceMap.webPath(root, path);
+				if (webPath.equals(REDIRECT_DEFS_PATH)) {
+					redirectsChanged = true;
+				} else if (Files.isRegularFile(path)) {
+					changed.put(webPath, path.toFile());
+				} else if (!Files.isDirectory(path)) {
+					removed.add(webPath);
+				}
+			}
+		}
+
+		resources.update(changed, removed);
+		if (redirectsChanged) {
+			dispatcher.setRedirects(ResourceMap.loadRedirects());
+		}
+		System.out.println(String.format("Applied content changes: %d updated, %d removed%s",
+				changed.size(), removed.size(), redirectsChanged ? ", redirects reloaded" : ""));
+	}
+
+	/** Watches {@code dir} and everything below it, adding any files found to {@code found}. */
+	private void registerTree(Path dir, final Set<Path> found) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+				WatchKey key = subdir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				watchedDirs.put(key, subdir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (found != null) {
+					found.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
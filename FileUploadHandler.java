@@ -0,0 +1,124 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stores POSTed bodies as files: {@code POST /upload/report.pdf} (with --uploadPath=/upload/)
+ * ends up as report.pdf in --uploadDir, replacing any earlier upload of that name.
+ *
+ * <p>A body is written through a {@link FileChannel} into a temporary file next to its
+ * destination as it arrives, and moved into place only once it's complete, so a reader never
+ * sees half an upload and an abandoned one leaves nothing behind.
+ */
+final class FileUploadHandler implements RequestBodyHandler {
+	private static final int MAX_NAME_LENGTH = 255;
+
+	private final Path directory;
+	private final String pathPrefix;
+
+	/** @throws IOException if the directory doesn't exist and can't be created. */
+	public FileUploadHandler(Path directory, String pathPrefix) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.pathPrefix = pathPrefix;
+	}
+
+	@Override
+	public Body open(HTTPRequest request, long length) throws IOException {
+		String path = request.getPath();
+		int query = path.indexOf('?');
+		String name = path.substring(pathPrefix.length(), query < 0 ? path.length() : query);
+		if (!isSafeName(name)) {
+			throw new HTTPRequest.MalformedRequestException("400 Bad Request",
+					"upload names are letters, digits, '.', '_' and '-', not starting with '.'");
+		}
+		if (length > directory.toFile().getUsableSpace()) {
+			throw new HTTPRequest.MalformedRequestException("507 Insufficient Storage", "no room for the upload");
+		}
+		Path temporary = Files.createTempFile(directory, ".upload-", ".part");
+		try {
+			return new Upload(FileChannel.open(temporary, StandardOpenOption.WRITE), temporary,
+					directory.resolve(name), name);
+		} catch (IOException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+	}
+
+	/** Only plain file names, so an upload can't land outside the directory or hide in it. */
+	private static boolean isSafeName(String name) {
+		if (name.isEmpty() || name.length() > MAX_NAME_LENGTH || name.charAt(0) == '.') {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9')
+					&& c != '.' && c != '_' && c != '-') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final class Upload implements Body {
+		private final Path temporary;
+		private final Path destination;
+		private final String name;
+		private final FileChannel channel;
+		private long written = 0;
+
+		Upload(FileChannel channel, Path temporary, Path destination, String name) {
+			this.channel = channel;
+			this.temporary = temporary;
+			this.destination = destination;
+			this.name = name;
+		}
+
+		@Override
+		public void write(ByteBuffer bytes) throws IOException {
+			while (bytes.hasRemaining()) {
+				written += channel.write(bytes);
+			}
+		}
+
+		@Override
+		public int finish(ResponseWriter out, boolean keepAlive) throws IOException {
+			String status;
+			String message;
+			try {
+				channel.close();
+				boolean replaced = Files.exists(destination);
+				Files.move(temporary, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				status = replaced ? "200 OK" : "201 Created";
+				message = String.format("Stored %d bytes as %s.\n", written, name);
+			} catch (IOException e) {
+				System.out.println("Couldn't store an upload: " + e.getMessage());
+				abort();
+				status = "500 Internal Server Error";
+				message = "Couldn't store the upload.\n";
+			}
+			StringBuilder response = new StringBuilder()
+					.append("HTTP/1.1 ").append(status).append("\r\n")
+					.append("Content-Type: text/plain; charset=UTF-8\r\n")
+					.append(RequestDispatcher.persistentConnection(keepAlive))
+					.append(String.format("Content-Length: %d\r\n\r\n", message.length()))
+					.append(message);
+			out.write(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+			return Integer.parseInt(status.substring(0, 3));
+		}
+
+		@Override
+		public void abort() {
+			try {
+				channel.close();
+				Files.deleteIfExists(temporary);
+			} catch (IOException e) {
+				System.out.println("Couldn't remove an abandoned upload: " + e.getMessage());
+			}
+		}
+	}
+}
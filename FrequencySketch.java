@@ -0,0 +1,66 @@
+/**
+ * A count-min sketch estimating how often each key has been seen recently, in a fixed amount
+ * of memory regardless of how many distinct keys there are. Counters saturate at 15 and are
+ * all halved periodically, so the estimates favour recent popularity (the TinyLFU scheme).
+ *
+ * <p>Updates are deliberately unsynchronized: a lost increment only makes an estimate
+ * slightly low, which is cheaper than contending on every request.
+ */
+final class FrequencySketch {
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int[] SEEDS = {0x97cb3127, 0xb8f0b2fd, 0x4d3c2b19, 0x6e2f43a1};
+
+	private final int[] counters;
+	private final int mask;
+	private final int resetAfter;
+	private int additions = 0;
+
+	/** @param expectedKeys roughly how many distinct keys need telling apart. */
+	public FrequencySketch(int expectedKeys) {
+		int width = Integer.highestOneBit(Math.max(16, expectedKeys - 1)) << 1;
+		this.counters = new int[DEPTH * width];
+		this.mask = width - 1;
+		this.resetAfter = 10 * width;
+	}
+
+	public void increment(Object key) {
+		int hash = spread(key.hashCode());
+		for (int row = 0; row < DEPTH; row++) {
+			int index = indexOf(hash, row);
+			if (counters[index] < MAX_COUNT) {
+				counters[index]++;
+			}
+		}
+		if (++additions >= resetAfter) {
+			reset();
+		}
+	}
+
+	public int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int frequency = MAX_COUNT;
+		for (int row = 0; row < DEPTH; row++) {
+			frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+		}
+		return frequency;
+	}
+
+	private int indexOf(int hash, int row) {
+		int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+		return row * (mask + 1) + ((h ^ (h >>> 16)) & mask);
+	}
+
+	private void reset() {
+		additions = 0;
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] >>>= 1;
+		}
+	}
+
+	private static int spread(int hash) {
+		hash ^= hash >>> 17;
+		hash *= 0xed5ad4bb;
+		return hash ^ (hash >>> 11);
+	}
+}
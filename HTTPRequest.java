@@ -1,8 +1,18 @@
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+/**
+ * A request parsed straight out of a connection's receive buffer. Each connection keeps one
+ * instance and re-parses into it for every request, so parsing allocates nothing but the path:
+ * the method and the headers the server cares about are recognized by comparing bytes, and
+ * header values stay offsets into the buffer until someone asks for them.
+ *
+ * <p>Because of that, a request is only valid until its connection reads the next one; copy
+ * out anything that has to outlive the response, or take a {@link #detach detached} copy of
+ * the request if it has to outlive the bytes that follow it (its body).
+ */
 final class HTTPRequest {
 	enum Command {
 		GET,
@@ -11,42 +21,296 @@ final class HTTPRequest {
 		UNK,
 	};
 
+	/** Longest request line accepted; longer ones get 414. */
+	static final int MAX_REQUEST_LINE_BYTES = 8 * 1024;
+	/** Longest request head (request line plus headers) accepted; longer ones get 431. */
+	static final int MAX_HEADER_BYTES = 64 * 1024;
+	/**
+	 * The most a connection buffers ahead of what it has consumed: the largest head accepted
+	 * and a read past it, enough to tell that a head is too large. Bodies and HTTP/2 frames
+	 * are consumed in far smaller pieces.
+	 */
+	static final int MAX_BUFFERED_BYTES = MAX_HEADER_BYTES + 32 * 1024;
+	private static final int MAX_HEADERS = 100;
+
+	private static final String HTTP_1_0 = "HTTP/1.0";
+	private static final String HTTP_1_1 = "HTTP/1.1";
+
+	private static final Command[] COMMANDS = {Command.GET, Command.HEAD, Command.POST};
+	private static final byte[][] COMMAND_BYTES = asciiBytes("GET", "HEAD", "POST");
+	/**
+	 * Headers looked up on every request, so they're found while parsing rather than by search.
+	 * Lower case, since they're compared case-insensitively.
+	 */
+	private static final String[] KNOWN_HEADERS = {"connection", "host", "accept-encoding", "if-none-match",
+			"if-modified-since", "range", "if-range", "content-length", "transfer-encoding", "expect"};
+	private static final byte[][] KNOWN_HEADER_BYTES = asciiBytes(KNOWN_HEADERS);
+	private static final int CONNECTION = 0;
+	private static final int CONTENT_LENGTH = 7;
+	private static final int TRANSFER_ENCODING = 8;
+	private static final int EXPECT = 9;
+	private static final byte[] CHUNKED = asciiBytes("chunked")[0];
+	private static final byte[] CONTINUE = asciiBytes("100-continue")[0];
+	/** Digits in the longest Content-Length accepted, so it can't overflow a long. */
+	private static final int MAX_CONTENT_LENGTH_DIGITS = 18;
+
+	/**
+	 * Thrown for a request that can't be parsed or is over a size limit, or whose body can't be
+	 * taken. The connection can't be trusted to be in sync after one, so it's answered with
+	 * {@link #status} and closed.
+	 */
+	static final class MalformedRequestException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public final String status;
+
+		MalformedRequestException(String status, String detail) {
+			super(detail);
+			this.status = status;
+		}
+	}
+
+	private final InetAddress remoteAddress;
+	private byte[] bytes;
+	private int headStart;
+	private int headEnd;
+	private long receivedNanos;
 	private Command command;
-	private final String version;
-	private final String path;
-	private final Map<String, String> headers;
-	
-	public HTTPRequest(List<String> rawLines) {
-		assert(rawLines.size() > 0); // requires at least the request; headers are optional.
-		
-		// Parse the main request (first line) first.
-		String[] bits = rawLines.get(0).split(" ");
-		assert(bits.length == 3);
-		try {
-			this.command = Command.valueOf(bits[0]);
-		} catch (IllegalArgumentException e) {
-			System.out.println("Illegal HTTPS op code received [" + bits[0] + "]");
-			this.command = Command.UNK;
-		}
-		this.path = bits[1];
-		this.version = bits[2];
-
-		// Then, parse any headers that are present
-		this.headers = new HashMap<String, String>();
-		for (String headerLine : rawLines.subList(1, rawLines.size())) {
-			// Can't just split on ":" because the colon may appear in a value, too.
-			int splitIdx = headerLine.indexOf(':');
-			if ((splitIdx < 1) || (splitIdx >= headerLine.length() - 2)) {
-				if (!headerLine.isEmpty()) {
-					System.out.println(String.format("malformed header: [%s]", headerLine));
+	private String version;
+	private String path;
+	private int headerCount;
+	/** Header lines without a valid name, which are skipped. */
+	private int badHeaderCount;
+	private final int[] nameStart = new int[MAX_HEADERS];
+	private final int[] nameEnd = new int[MAX_HEADERS];
+	private final int[] valueStart = new int[MAX_HEADERS];
+	private final int[] valueEnd = new int[MAX_HEADERS];
+	/** Index of the last occurrence of each of {@link #KNOWN_HEADERS}, or -1. */
+	private final int[] known = new int[KNOWN_HEADERS.length];
+	/** The Content-Length, or -1 if there isn't one. */
+	private long contentLength;
+	private boolean chunked;
+	private boolean expectsContinue;
+
+	/** @param remoteAddress the client the connection is from, or {@code null} if unknown. */
+	public HTTPRequest(InetAddress remoteAddress) {
+		this.remoteAddress = remoteAddress;
+	}
+
+	/**
+	 * Parses the request starting at {@code bytes[start]}, skipping any empty lines before it
+	 * (RFC 7230 3.5).
+	 *
+	 * @return the offset just past the blank line ending the request head, or -1 if
+	 *     {@code bytes[start, end)} doesn't hold all of it yet.
+	 */
+	public int parse(byte[] bytes, int start, int end) throws MalformedRequestException {
+		this.bytes = bytes;
+		receivedNanos = System.nanoTime();
+		command = Command.UNK;
+		version = null;
+		path = null;
+		headerCount = 0;
+		badHeaderCount = 0;
+		Arrays.fill(known, -1);
+
+		int pos = start;
+		while (pos < end && (bytes[pos] == '\r' || bytes[pos] == '\n')) {
+			pos++;
+		}
+		if (pos - start > MAX_REQUEST_LINE_BYTES) {
+			// They're never consumed on their own, so they count towards the request line.
+			throw new MalformedRequestException("400 Bad Request", "too many empty lines before the request");
+		}
+		headStart = pos;
+		headEnd = pos;
+		int lineEnd = indexOf(bytes, pos, end, (byte) '\n');
+		if (lineEnd - pos > MAX_REQUEST_LINE_BYTES || (lineEnd < 0 && end - pos > MAX_REQUEST_LINE_BYTES)) {
+			throw new MalformedRequestException("414 URI Too Long", "request line too long");
+		}
+		if (lineEnd < 0) {
+			return -1;
+		}
+		parseRequestLine(pos, withoutCr(bytes, pos, lineEnd));
+
+		while (true) {
+			pos = lineEnd + 1;
+			lineEnd = indexOf(bytes, pos, end, (byte) '\n');
+			if ((lineEnd < 0 ? end : lineEnd + 1) - start > MAX_HEADER_BYTES) {
+				throw new MalformedRequestException("431 Request Header Fields Too Large", "request headers too large");
+			}
+			if (lineEnd < 0) {
+				return -1;
+			}
+			int contentEnd = withoutCr(bytes, pos, lineEnd);
+			if (contentEnd == pos) {
+				headEnd = lineEnd + 1;
+				parseFraming();
+				return headEnd;
+			}
+			parseHeaderLine(pos, contentEnd);
+		}
+	}
+
+	private void parseRequestLine(int start, int end) throws MalformedRequestException {
+		int methodEnd = indexOf(bytes, start, end, (byte) ' ');
+		int pathEnd = methodEnd < 0 ? -1 : indexOf(bytes, methodEnd + 1, end, (byte) ' ');
+		if (methodEnd <= start || pathEnd <= methodEnd + 1 || pathEnd + 1 == end
+				|| indexOf(bytes, pathEnd + 1, end, (byte) ' ') >= 0) {
+			throw new MalformedRequestException("400 Bad Request", "malformed request line");
+		}
+
+		for (int i = 0; i < COMMANDS.length; i++) {
+			if (regionEquals(bytes, start, methodEnd, COMMAND_BYTES[i], false)) {
+				command = COMMANDS[i];
+				break;
+			}
+		}
+		path = new String(bytes, methodEnd + 1, pathEnd - methodEnd - 1, StandardCharsets.ISO_8859_1);
+
+		int versionStart = pathEnd + 1;
+		if (end - versionStart != HTTP_1_1.length() || !startsWith(bytes, versionStart, end, "HTTP/")) {
+			throw new MalformedRequestException("400 Bad Request", "malformed HTTP version");
+		}
+		if (bytes[end - 3] == '1' && bytes[end - 2] == '.' && bytes[end - 1] == '1') {
+			version = HTTP_1_1;
+		} else if (bytes[end - 3] == '1' && bytes[end - 2] == '.' && bytes[end - 1] == '0') {
+			version = HTTP_1_0;
+		} else {
+			version = new String(bytes, versionStart, end - versionStart, StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	private void parseHeaderLine(int start, int end) throws MalformedRequestException {
+		// Can't just split on ":" because the colon may appear in a value, too.
+		int colon = indexOf(bytes, start, end, (byte) ':');
+		if (colon <= start || indexOf(bytes, start, colon, (byte) ' ') >= 0
+				|| indexOf(bytes, start, colon, (byte) '\t') >= 0) {
+			badHeaderCount++;
+			return;
+		}
+		if (headerCount == MAX_HEADERS) {
+			throw new MalformedRequestException("431 Request Header Fields Too Large", "too many request headers");
+		}
+		// Values may be empty or a single character; only the optional whitespace around them goes.
+		int valueFrom = colon + 1;
+		int valueTo = end;
+		while (valueFrom < valueTo && isWhitespace(bytes[valueFrom])) {
+			valueFrom++;
+		}
+		while (valueTo > valueFrom && isWhitespace(bytes[valueTo - 1])) {
+			valueTo--;
+		}
+		nameStart[headerCount] = start;
+		nameEnd[headerCount] = colon;
+		valueStart[headerCount] = valueFrom;
+		valueEnd[headerCount] = valueTo;
+		for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+			if (regionEquals(bytes, start, colon, KNOWN_HEADER_BYTES[i], true)) {
+				if ((i == CONTENT_LENGTH || i == TRANSFER_ENCODING) && known[i] >= 0) {
+					// Two framings to choose from is how requests get smuggled past proxies.
+					throw new MalformedRequestException("400 Bad Request", "repeated " + KNOWN_HEADERS[i]);
+				}
+				known[i] = headerCount;
+				break;
+			}
+		}
+		headerCount++;
+	}
+
+	/**
+	 * Works out from the head how the body is framed (RFC 7230 3.3.3) and whether the client
+	 * is waiting to be told to send it. Only chunked is accepted as a transfer coding, and
+	 * never together with a Content-Length.
+	 */
+	private void parseFraming() throws MalformedRequestException {
+		contentLength = -1;
+		chunked = false;
+		expectsContinue = false;
+		int header = known[TRANSFER_ENCODING];
+		if (header >= 0) {
+			if (known[CONTENT_LENGTH] >= 0) {
+				throw new MalformedRequestException("400 Bad Request", "both Content-Length and Transfer-Encoding");
+			}
+			if (!regionEquals(bytes, valueStart[header], valueEnd[header], CHUNKED, true)) {
+				throw new MalformedRequestException("501 Not Implemented", "unsupported transfer coding");
+			}
+			chunked = true;
+		}
+		header = known[CONTENT_LENGTH];
+		if (header >= 0) {
+			int digits = valueEnd[header] - valueStart[header];
+			if (digits == 0 || digits > MAX_CONTENT_LENGTH_DIGITS) {
+				throw new MalformedRequestException("400 Bad Request", "malformed Content-Length");
+			}
+			contentLength = 0;
+			for (int i = valueStart[header]; i < valueEnd[header]; i++) {
+				if (bytes[i] < '0' || bytes[i] > '9') {
+					throw new MalformedRequestException("400 Bad Request", "malformed Content-Length");
 				}
-			} else {
-				String key = headerLine.substring(0, splitIdx);
-				String value = headerLine.substring(splitIdx + 2, headerLine.length());
-				headers.put(key, value);
+				contentLength = 10 * contentLength + (bytes[i] - '0');
+			}
+		}
+		header = known[EXPECT];
+		if (header >= 0) {
+			if (!regionEquals(bytes, valueStart[header], valueEnd[header], CONTINUE, true)) {
+				throw new MalformedRequestException("417 Expectation Failed", "unsupported expectation");
 			}
+			// An HTTP/1.0 client doesn't know about 100 Continue (RFC 7231 5.1.1).
+			expectsContinue = HTTP_1_1.equals(version);
+		}
+	}
 
+	/**
+	 * Returns a copy of the request with its own copy of the head, which stays valid while the
+	 * connection reads on into the buffer and parses other requests. Only requests with a body
+	 * need one.
+	 */
+	public HTTPRequest detach() {
+		HTTPRequest copy = new HTTPRequest(remoteAddress);
+		copy.bytes = Arrays.copyOfRange(bytes, headStart, headEnd);
+		copy.headStart = 0;
+		copy.headEnd = headEnd - headStart;
+		copy.receivedNanos = receivedNanos;
+		copy.command = command;
+		copy.version = version;
+		copy.path = path;
+		copy.headerCount = headerCount;
+		for (int header = 0; header < headerCount; header++) {
+			copy.nameStart[header] = nameStart[header] - headStart;
+			copy.nameEnd[header] = nameEnd[header] - headStart;
+			copy.valueStart[header] = valueStart[header] - headStart;
+			copy.valueEnd[header] = valueEnd[header] - headStart;
 		}
+		System.arraycopy(known, 0, copy.known, 0, known.length);
+		copy.contentLength = contentLength;
+		copy.chunked = chunked;
+		copy.expectsContinue = expectsContinue;
+		return copy;
+	}
+
+	public InetAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/** Header lines that were skipped for not having a valid name. */
+	public int getBadHeaderCount() {
+		return badHeaderCount;
+	}
+
+	/** {@link System#nanoTime} when the request was (last) parsed. */
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+
+	/**
+	 * Copies the raw request head, as much of it as fits, into {@code dest}; returns the number
+	 * of bytes copied. Nothing is copied for a request that failed to parse.
+	 */
+	public int copyHead(byte[] dest) {
+		int length = Math.min(headEnd - headStart, dest.length);
+		System.arraycopy(bytes, headStart, dest, 0, length);
+		return length;
 	}
 
 	public Command getType() {
@@ -57,21 +321,180 @@ final class HTTPRequest {
 		return path;
 	}
 
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Whether a body follows the head: a POST always has one, if perhaps an empty one;
+	 * anything else has one if it's chunked or has a Content-Length above zero.
+	 */
+	public boolean hasBody() {
+		return command == Command.POST || chunked || contentLength > 0;
+	}
+
+	/** The body's Content-Length, or -1 if the request didn't send one. */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * The body's length as the head frames it: -1 if it's chunked, and so not known up front;
+	 * otherwise the Content-Length, or 0 without one.
+	 */
+	public long getBodyLength() {
+		return chunked ? -1 : Math.max(contentLength, 0);
+	}
+
+	/** Whether the client waits for a 100 Continue before sending the body. */
+	public boolean expectsContinue() {
+		return expectsContinue;
+	}
+
+	/**
+	 * Returns the value of the named header, or {@code null} if the client didn't send it.
+	 * Names are case-insensitive (RFC 7230 3.2); if a header was sent twice, the last one wins.
+	 */
+	public String getHeader(String name) {
+		int header = indexOfHeader(name);
+		return header < 0 ? null : new String(bytes, valueStart[header], valueEnd[header] - valueStart[header],
+				StandardCharsets.ISO_8859_1);
+	}
+
+	private int indexOfHeader(String name) {
+		for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+			if (KNOWN_HEADERS[i].equalsIgnoreCase(name)) {
+				return known[i];
+			}
+		}
+		for (int header = headerCount - 1; header >= 0; header--) {
+			if (nameEnd[header] - nameStart[header] == name.length()) {
+				boolean matches = true;
+				for (int i = 0; i < name.length() && matches; i++) {
+					matches = toLower(bytes[nameStart[header] + i]) == toLower((byte) name.charAt(i));
+				}
+				if (matches) {
+					return header;
+				}
+			}
+		}
+		return -1;
+	}
+
+    /**
+     * HTTP/1.1 connections are persistent unless the client sends "Connection: close";
+     * HTTP/1.0 connections are only persistent if the client asks with "Connection: keep-alive".
+     */
     public boolean askingForPersistent(){
-        System.out.println("Connection Header: " + this.headers.get("Connection"));
-        return this.headers.get("Connection") != null && this.headers.get("Connection").equals("Keep-Alive");
+        if (HTTP_1_1.equals(version)) {
+            return !connectionHeaderHas("close");
+        }
+        return connectionHeaderHas("keep-alive");
     }
 
+	private boolean connectionHeaderHas(String token) {
+		int header = known[CONNECTION];
+		if (header < 0) {
+			return false;
+		}
+		int pos = valueStart[header];
+		int end = valueEnd[header];
+		while (pos < end) {
+			int optionEnd = indexOf(bytes, pos, end, (byte) ',');
+			if (optionEnd < 0) {
+				optionEnd = end;
+			}
+			int from = pos;
+			int to = optionEnd;
+			while (from < to && isWhitespace(bytes[from])) {
+				from++;
+			}
+			while (to > from && isWhitespace(bytes[to - 1])) {
+				to--;
+			}
+			if (to - from == token.length() && startsWithIgnoreCase(bytes, from, token)) {
+				return true;
+			}
+			pos = optionEnd + 1;
+		}
+		return false;
+	}
+
+	private static int indexOf(byte[] bytes, int from, int to, byte b) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** Returns {@code lineEnd}, less one if the line ends in CRLF rather than a bare LF. */
+	private static int withoutCr(byte[] bytes, int lineStart, int lineEnd) {
+		return lineEnd > lineStart && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+	}
+
+	private static boolean regionEquals(byte[] bytes, int from, int to, byte[] expected, boolean ignoreCase) {
+		if (to - from != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			byte b = ignoreCase ? toLower(bytes[from + i]) : bytes[from + i];
+			if (b != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean startsWith(byte[] bytes, int from, int to, String prefix) {
+		if (to - from < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (bytes[from + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean startsWithIgnoreCase(byte[] bytes, int from, String prefix) {
+		for (int i = 0; i < prefix.length(); i++) {
+			if (toLower(bytes[from + i]) != toLower((byte) prefix.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte toLower(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static byte[][] asciiBytes(String... names) {
+		byte[][] bytes = new byte[names.length][];
+		for (int i = 0; i < names.length; i++) {
+			bytes[i] = names[i].getBytes(StandardCharsets.ISO_8859_1);
+		}
+		return bytes;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder out = new StringBuilder();
 		out.append(String.format("HTTPS request, version [%s]\n", version));
 		out.append(String.format("%s [%s]\n", command, path));
 		out.append("Headers:\n");
-		for (Map.Entry<String, String> header : headers.entrySet()) {
-			out.append(String.format("\t[%s] --> [%s]\n", header.getKey(), header.getValue()));
-		}	
+		for (int header = 0; header < headerCount; header++) {
+			out.append(String.format("\t[%s] --> [%s]\n",
+					new String(bytes, nameStart[header], nameEnd[header] - nameStart[header], StandardCharsets.ISO_8859_1),
+					new String(bytes, valueStart[header], valueEnd[header] - valueStart[header], StandardCharsets.ISO_8859_1)));
+		}
 		return out.toString();
 	}
 }
-
@@ -0,0 +1,432 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * HPACK (RFC 7541), the header compression of {@link Http2Connection}: the static and dynamic
+ * tables, the prefixed integer and string encodings and the Huffman code. Each direction of a
+ * connection has its own {@link Decoder} or {@link Encoder}, since each keeps a dynamic table
+ * in step with the peer's; neither is thread-safe.
+ */
+final class Hpack {
+	/** The dynamic table size both sides start with, and the most we let either use. */
+	static final int DEFAULT_TABLE_SIZE = 4096;
+	/** What a table entry costs on top of its name and value (RFC 7541 4.1). */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	/** RFC 7541 Appendix A; entry i is index i + 1. */
+	private static final String[][] STATIC_TABLE = {
+			{":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+			{":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+			{":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+			{":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+			{"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+			{"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+			{"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+			{"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+			{"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+			{"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+			{"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+			{"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+			{"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+			{"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+			{"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+			{"www-authenticate", ""},
+	};
+	/** Static index of each name (its first entry) and of each name and value, as "name\0value". */
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+	private static final Map<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>();
+
+	/**
+	 * Response headers that are different nearly every time, so adding them to the dynamic
+	 * table would only push out ones that repeat.
+	 */
+	private static final Set<String> NOT_INDEXED = new HashSet<String>(Arrays.asList(
+			"content-length", "content-range", "etag", "last-modified", "date", "location"));
+
+	/** The Huffman code (RFC 7541 Appendix B): symbol i's code, right-aligned, and its length in bits. */
+	private static final int[] HUFFMAN_CODES = {
+			0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+			0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+			0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+			0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+			0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+			0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+			0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+			0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+			0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+			0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+			0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+			0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+			0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+			0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+			0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+			0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+			0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+			0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+			0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+			0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+			0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+			0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+			0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+			0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+			0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+			0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+			0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+			0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+			0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+			0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+			0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+			0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+	};
+	private static final byte[] HUFFMAN_LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+			28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+			5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+			6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+			24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+			21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+			19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+			26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+	};
+	private static final int EOS = 256;
+	private static final int EOS_CODE = 0x3fffffff;
+	private static final int EOS_LENGTH = 30;
+	/**
+	 * The code as a binary tree for decoding: node n's children are at {@code 2n} (bit 0) and
+	 * {@code 2n + 1} (bit 1). Positive entries are the next node, negative ones a leaf holding
+	 * symbol {@code -entry - 1}, and 0 a code that doesn't exist (the root is never a child).
+	 */
+	private static final int[] HUFFMAN_TREE;
+
+	static {
+		for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+			STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+			STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+		}
+		int[] tree = new int[2 * 256];
+		int nodes = 1;
+		for (int symbol = 0; symbol <= EOS; symbol++) {
+			int code = symbol == EOS ? EOS_CODE : HUFFMAN_CODES[symbol];
+			int length = symbol == EOS ? EOS_LENGTH : HUFFMAN_LENGTHS[symbol];
+			int node = 0;
+			for (int bit = length - 1; bit > 0; bit--) {
+				int slot = 2 * node + ((code >>> bit) & 1);
+				if (tree[slot] == 0) {
+					tree[slot] = nodes++;
+				}
+				node = tree[slot];
+			}
+			tree[2 * node + (code & 1)] = -symbol - 1;
+		}
+		HUFFMAN_TREE = tree;
+	}
+
+	private Hpack() {} // can't instantiate this static class
+
+	/**
+	 * Thrown for a header block that can't be decoded. The decoder's table may be out of step
+	 * with the peer's after one, so it's a connection error (RFC 7541 2.3.3).
+	 */
+	static final class CompressionException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		CompressionException(String detail) {
+			super(detail);
+		}
+	}
+
+	/** A dynamic table: the most recently added entry has the lowest index. */
+	private static final class Table {
+		/** Oldest first. */
+		private final List<String[]> entries = new ArrayList<String[]>();
+		private int size = 0;
+		private int maxSize = DEFAULT_TABLE_SIZE;
+
+		int length() {
+			return entries.size();
+		}
+
+		/** The entry at dynamic index {@code index}, counting from 1. */
+		String[] get(int index) {
+			return entries.get(entries.size() - index);
+		}
+
+		void add(String name, String value) {
+			int entrySize = ENTRY_OVERHEAD + name.length() + value.length();
+			if (entrySize > maxSize) {
+				entries.clear(); // too big for the table: it empties it and isn't added (RFC 7541 4.4).
+				size = 0;
+				return;
+			}
+			evict(maxSize - entrySize);
+			entries.add(new String[] {name, value});
+			size += entrySize;
+		}
+
+		void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+			evict(maxSize);
+		}
+
+		private void evict(int toSize) {
+			int evicted = 0;
+			while (size > toSize) {
+				String[] entry = entries.get(evicted++);
+				size -= ENTRY_OVERHEAD + entry[0].length() + entry[1].length();
+			}
+			entries.subList(0, evicted).clear();
+		}
+	}
+
+	/** Decodes the header blocks a peer sends. */
+	static final class Decoder {
+		private final Table table = new Table();
+
+		/**
+		 * Decodes {@code block[start, end)}, appending each field's name and value to
+		 * {@code fields}, in order.
+		 */
+		void decode(byte[] block, int start, int end, List<String> fields) throws CompressionException {
+			int[] pos = {start};
+			boolean fieldSeen = false;
+			while (pos[0] < end) {
+				int b = block[pos[0]] & 0xff;
+				if ((b & 0x80) != 0) {
+					String[] field = field(readInt(block, pos, end, 7));
+					fields.add(field[0]);
+					fields.add(field[1]);
+				} else if ((b & 0xe0) == 0x20) {
+					if (fieldSeen) {
+						throw new CompressionException("table size update after a header field");
+					}
+					int size = readInt(block, pos, end, 5);
+					if (size > DEFAULT_TABLE_SIZE) {
+						throw new CompressionException("table size update past our limit: " + size);
+					}
+					table.setMaxSize(size);
+					continue;
+				} else {
+					boolean indexed = (b & 0x40) != 0;
+					int nameIndex = readInt(block, pos, end, indexed ? 6 : 4);
+					String name = nameIndex == 0 ? readString(block, pos, end) : field(nameIndex)[0];
+					String value = readString(block, pos, end);
+					if (indexed) {
+						table.add(name, value);
+					}
+					fields.add(name);
+					fields.add(value);
+				}
+				fieldSeen = true;
+			}
+		}
+
+		private String[] field(int index) throws CompressionException {
+			if (index >= 1 && index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1];
+			}
+			int dynamic = index - STATIC_TABLE.length;
+			if (index < 1 || dynamic > table.length()) {
+				throw new CompressionException("no header table entry " + index);
+			}
+			return table.get(dynamic);
+		}
+	}
+
+	/**
+	 * Encodes the header blocks we send. Fields that repeat from response to response go into
+	 * the dynamic table, so after the first response on a connection they cost a byte or two.
+	 */
+	static final class Encoder {
+		private final Table table = new Table();
+		/** The smallest and the last size the peer has allowed since the last block, or -1. */
+		private int smallestSizeUpdate = -1;
+		private int lastSizeUpdate = -1;
+
+		/** Applies the peer's SETTINGS_HEADER_TABLE_SIZE. */
+		void setMaxTableSize(int size) {
+			size = Math.min(size, DEFAULT_TABLE_SIZE);
+			table.setMaxSize(size);
+			smallestSizeUpdate = smallestSizeUpdate < 0 ? size : Math.min(smallestSizeUpdate, size);
+			lastSizeUpdate = size;
+		}
+
+		/** Encodes a header block from names (lower case) and values, alternating. */
+		byte[] encode(List<String> fields) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+			if (smallestSizeUpdate >= 0) {
+				// The peer has to hear about any shrinking first (RFC 7541 4.2).
+				writeInt(out, 0x20, 5, smallestSizeUpdate);
+				if (lastSizeUpdate != smallestSizeUpdate) {
+					writeInt(out, 0x20, 5, lastSizeUpdate);
+				}
+				smallestSizeUpdate = -1;
+				lastSizeUpdate = -1;
+			}
+			for (int i = 0; i < fields.size(); i += 2) {
+				encode(fields.get(i), fields.get(i + 1), out);
+			}
+			return out.toByteArray();
+		}
+
+		private void encode(String name, String value, ByteArrayOutputStream out) {
+			Integer index = STATIC_FIELDS.get(name + '\0' + value);
+			int nameIndex = 0;
+			for (int i = 1; index == null && i <= table.length(); i++) {
+				String[] entry = table.get(i);
+				if (entry[0].equals(name)) {
+					if (entry[1].equals(value)) {
+						index = STATIC_TABLE.length + i;
+					} else if (nameIndex == 0) {
+						nameIndex = STATIC_TABLE.length + i;
+					}
+				}
+			}
+			if (index != null) {
+				writeInt(out, 0x80, 7, index);
+				return;
+			}
+			Integer staticName = STATIC_NAMES.get(name);
+			if (staticName != null) {
+				nameIndex = staticName;
+			}
+			boolean indexed = !NOT_INDEXED.contains(name);
+			writeInt(out, indexed ? 0x40 : 0x00, indexed ? 6 : 4, nameIndex);
+			if (nameIndex == 0) {
+				writeString(out, name);
+			}
+			writeString(out, value);
+			if (indexed) {
+				table.add(name, value);
+			}
+		}
+	}
+
+	/** Reads an integer with an N-bit prefix (RFC 7541 5.1) at {@code pos[0]}, advancing it. */
+	private static int readInt(byte[] bytes, int[] pos, int end, int prefixBits) throws CompressionException {
+		int max = (1 << prefixBits) - 1;
+		int value = bytes[pos[0]++] & max;
+		if (value < max) {
+			return value;
+		}
+		for (int shift = 0; ; shift += 7) {
+			if (pos[0] == end) {
+				throw new CompressionException("truncated integer");
+			}
+			int b = bytes[pos[0]++] & 0xff;
+			if (shift > 21) {
+				throw new CompressionException("integer too large");
+			}
+			value += (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	private static String readString(byte[] bytes, int[] pos, int end) throws CompressionException {
+		if (pos[0] == end) {
+			throw new CompressionException("truncated string");
+		}
+		boolean huffman = (bytes[pos[0]] & 0x80) != 0;
+		int length = readInt(bytes, pos, end, 7);
+		if (length > end - pos[0]) {
+			throw new CompressionException("truncated string");
+		}
+		int start = pos[0];
+		pos[0] += length;
+		return huffman ? huffmanDecode(bytes, start, start + length)
+				: new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+		int max = (1 << prefixBits) - 1;
+		if (value < max) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | max);
+		value -= max;
+		while (value >= 0x80) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/** Writes a string literal, Huffman-coded if that's shorter. */
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		long bits = 0;
+		for (int i = 0; i < value.length(); i++) {
+			bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xff];
+		}
+		int huffmanLength = (int) ((bits + 7) / 8);
+		if (huffmanLength >= value.length()) {
+			writeInt(out, 0x00, 7, value.length());
+			for (int i = 0; i < value.length(); i++) {
+				out.write(value.charAt(i));
+			}
+			return;
+		}
+		writeInt(out, 0x80, 7, huffmanLength);
+		long pending = 0;
+		int pendingBits = 0;
+		for (int i = 0; i < value.length(); i++) {
+			int symbol = value.charAt(i) & 0xff;
+			pending = (pending << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+			pendingBits += HUFFMAN_LENGTHS[symbol];
+			while (pendingBits >= 8) {
+				pendingBits -= 8;
+				out.write((int) (pending >>> pendingBits));
+			}
+		}
+		if (pendingBits > 0) {
+			// Padded with the most significant bits of EOS, i.e. ones.
+			out.write((int) ((pending << (8 - pendingBits)) | (0xff >>> pendingBits)));
+		}
+	}
+
+	private static String huffmanDecode(byte[] bytes, int start, int end) throws CompressionException {
+		StringBuilder out = new StringBuilder((end - start) * 8 / 5);
+		int node = 0;
+		// Bits read since the last whole symbol, and whether they were all ones.
+		int pendingBits = 0;
+		boolean allOnes = true;
+		for (int i = start; i < end; i++) {
+			for (int bit = 7; bit >= 0; bit--) {
+				int one = (bytes[i] >>> bit) & 1;
+				int next = HUFFMAN_TREE[2 * node + one];
+				pendingBits++;
+				allOnes &= one == 1;
+				if (next > 0) {
+					node = next;
+				} else if (next < 0 && -next - 1 != EOS) {
+					out.append((char) (-next - 1));
+					node = 0;
+					pendingBits = 0;
+					allOnes = true;
+				} else {
+					throw new CompressionException("invalid Huffman code");
+				}
+			}
+		}
+		if (pendingBits > 7 || !allOnes) {
+			throw new CompressionException("invalid Huffman padding");
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,1093 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HTTP/2 (RFC 7540) side of a connection that negotiated "h2" through ALPN. It only
+ * handles bytes: the engine feeds it what it reads with {@link #receive} and lets it write
+ * frames with {@link #send}, so the blocking {@link ConnectionHandler} and the
+ * {@link NioServer} share it the way they share the {@link RequestDispatcher}.
+ *
+ * <p>Each request is answered as soon as its headers are in: its pseudo-headers and headers
+ * are turned back into an HTTP/1.1-style head for {@link HTTPRequest}, and the
+ * {@link RequestDispatcher} writes the response to the {@link Stream}, which keeps the body
+ * buffers (views of the stored resources, as always) and re-encodes the head with HPACK. So
+ * every resource, redirect and error page is the same as over HTTP/1.1.
+ *
+ * <p>Response headers go out right away; bodies go out as flow control allows, a frame at a
+ * time. Among the streams that can send, a stream waits while a stream it depends on has
+ * something to send, and the rest share the connection in proportion to their weights. DATA
+ * frames are sized so that each one, header included, fills a TLS record. A
+ * {@link ResponseBody streamed} body is read a part at a time, as its stream gets to send it.
+ *
+ * <p>A POST's body is passed on as its DATA frames arrive, through the same
+ * {@link RequestDispatcher#startBody} as over HTTP/1.1, and the client gets its flow control
+ * window back as soon as each frame has been passed on; the request is answered once the body
+ * is complete. Other requests' bodies are thrown away.
+ *
+ * <p>Not supported: server push, and cleartext HTTP/2.
+ */
+final class Http2Connection {
+	/** The ALPN protocol id. */
+	static final String PROTOCOL = "h2";
+
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final int FRAME_HEADER_BYTES = 9;
+	/** The largest frame we accept: the default SETTINGS_MAX_FRAME_SIZE, which we keep. */
+	private static final int MAX_FRAME_BYTES = 16 * 1024;
+	/** DATA payload per frame, so a frame and its header are exactly one TLS record's worth. */
+	private static final int DATA_FRAME_PAYLOAD = 16 * 1024 - FRAME_HEADER_BYTES;
+	private static final int DEFAULT_WINDOW = 65535;
+	private static final long MAX_WINDOW = Integer.MAX_VALUE;
+	private static final int DEFAULT_WEIGHT = 16;
+
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int PRIORITY = 0x2;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	private static final int NO_ERROR = 0x0;
+	private static final int PROTOCOL_ERROR = 0x1;
+	private static final int INTERNAL_ERROR = 0x2;
+	private static final int FLOW_CONTROL_ERROR = 0x3;
+	private static final int STREAM_CLOSED = 0x5;
+	private static final int FRAME_SIZE_ERROR = 0x6;
+	private static final int REFUSED_STREAM = 0x7;
+	private static final int COMPRESSION_ERROR = 0x9;
+	private static final int ENHANCE_YOUR_CALM = 0xb;
+
+	/** Headers that only mean something to a single HTTP/1.1 connection (RFC 7540 8.1.2.2). */
+	private static final List<String> CONNECTION_HEADERS = Arrays.asList(
+			"connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+	/** Something the peer did that ends the whole connection, with a GOAWAY. */
+	private static final class ConnectionError extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		final int code;
+
+		ConnectionError(int code, String detail) {
+			super(detail);
+			this.code = code;
+		}
+	}
+
+	/**
+	 * A stream in the priority tree (RFC 7540 5.3). Streams a PRIORITY frame mentions before
+	 * they're opened get a node too, so later streams can depend on them.
+	 */
+	private static final class Node {
+		final int id;
+		Node parent;
+		int weight = DEFAULT_WEIGHT;
+		/** The stream's response, while it has one. */
+		Stream stream;
+
+		Node(int id, Node parent) {
+			this.id = id;
+			this.parent = parent;
+		}
+
+		boolean descendsFrom(Node ancestor) {
+			for (Node node = parent; node != null; node = node.parent) {
+				if (node == ancestor) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A stream with a response to send. It's the {@link ResponseWriter} the dispatcher writes
+	 * the response to, as it would to a connection; {@link #prepare} then splits that into
+	 * HPACK-encoded headers and the body.
+	 */
+	private final class Stream implements ResponseWriter {
+		final int id;
+		final Node node;
+		/** The response as written: head, then body. */
+		final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		long bytesWritten = 0;
+		byte[] headerBlock;
+		int chunk = 0;
+		long bodyRemaining;
+		long sendWindow = peerInitialWindow;
+		/** Whether the client has finished sending its side of the stream. */
+		boolean remoteClosed;
+		/** The request's body, while it's still arriving; there's no response yet. */
+		RequestBody body;
+		/** The response's body, if it's streamed; {@link #chunks} then holds its current part. */
+		ResponseBody streamed;
+		/** Where this stream is in the weighted schedule; see {@link #pickStream}. */
+		long virtualTime;
+
+		Stream(int id, Node node, boolean remoteClosed) {
+			this.id = id;
+			this.node = node;
+			this.remoteClosed = remoteClosed;
+		}
+
+		@Override
+		public void write(byte[] bytes) {
+			write(ByteBuffer.wrap(bytes));
+		}
+
+		@Override
+		public void write(ByteBuffer bytes) {
+			chunks.add(bytes);
+			bytesWritten += bytes.remaining();
+		}
+
+		@Override
+		public boolean transferFile(CachedResponse response, long offset, long length) {
+			return false; // the body goes out in frames.
+		}
+
+		@Override
+		public void stream(ResponseBody body) {
+			streamed = body;
+			if (body.length() >= 0) {
+				bytesWritten += body.length();
+			}
+		}
+
+		@Override
+		public void flush() {
+			// sent as flow control allows.
+		}
+
+		@Override
+		public long bytesWritten() {
+			return bytesWritten;
+		}
+
+		/**
+		 * Re-encodes the HTTP/1.1 head the dispatcher wrote, which comes first and in one
+		 * piece, as a header block, leaving just the body in {@link #chunks}.
+		 */
+		void prepare() throws IOException {
+			ByteBuffer head = chunks.isEmpty() ? null : chunks.get(0);
+			int headEnd = head == null ? -1 : indexOfBlankLine(head);
+			if (headEnd < 0) {
+				throw new IOException("response head missing or split");
+			}
+			String[] lines = new String(head.array(), head.arrayOffset() + head.position(),
+					headEnd - head.position(), StandardCharsets.ISO_8859_1).split("\r\n");
+			List<String> fields = new ArrayList<String>();
+			fields.add(":status");
+			fields.add(lines[0].substring("HTTP/1.1 ".length(), "HTTP/1.1 200".length()));
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				String name = lines[i].substring(0, colon).toLowerCase();
+				if (!CONNECTION_HEADERS.contains(name)) {
+					fields.add(name);
+					fields.add(lines[i].substring(colon + 1).trim());
+				}
+			}
+			headerBlock = encoder.encode(fields);
+			head.position(headEnd + 4);
+			for (ByteBuffer body : chunks) {
+				bodyRemaining += body.remaining();
+			}
+		}
+
+		/** Whether all that's left of the body is in {@link #chunks}. */
+		boolean bodyComplete() {
+			return streamed == null || streamed.isDone();
+		}
+	}
+
+	private final RequestDispatcher dispatcher;
+	private final HTTPRequest request;
+	private final int maxStreams;
+	/** Whether the {@link ConnectionGovernor} turned this connection away. */
+	private final boolean unavailable;
+	private final Hpack.Decoder decoder = new Hpack.Decoder();
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+	/** Frames to send before anything else: settings, acks, window updates, resets. */
+	private final ArrayDeque<byte[]> control = new ArrayDeque<byte[]>();
+	/** Streams whose headers haven't gone out yet, in the order they were encoded. */
+	private final ArrayDeque<Stream> unsentHeaders = new ArrayDeque<Stream>();
+	private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+	private final Node root = new Node(0, null);
+	private final Map<Integer, Node> priorities = new HashMap<Integer, Node>();
+
+	private boolean prefaceReceived = false;
+	private boolean settingsReceived = false;
+	private int lastStreamId = 0;
+	/** The stream whose header block is being continued, or 0. */
+	private int continuedStream = 0;
+	private boolean continuedEndStream;
+	private boolean continuedValid;
+	private byte[] headerBlock = new byte[1024];
+	private int headerBlockLength = 0;
+
+	private long connectionWindow = DEFAULT_WINDOW;
+	private int peerInitialWindow = DEFAULT_WINDOW;
+	private int peerMaxFrame = MAX_FRAME_BYTES;
+	/** The virtual time of the last frame scheduled; see {@link #pickStream}. */
+	private long virtualTime = 0;
+	/** Whether either side has said GOAWAY; no new streams are started after. */
+	private boolean goingAway = false;
+	/** Whether we've sent a GOAWAY for an error; everything else is dropped. */
+	private boolean failed = false;
+
+	/**
+	 * @param request parsed into for each new stream, and only valid until the next one; the
+	 *     response is complete by then.
+	 * @param maxStreams requests that may be in progress at once.
+	 * @param unavailable whether to answer the first request with a 503 and then go away, as
+	 *     for a connection over the limit.
+	 */
+	public Http2Connection(RequestDispatcher dispatcher, HTTPRequest request, int maxStreams,
+			boolean unavailable) {
+		this.dispatcher = dispatcher;
+		this.request = request;
+		this.maxStreams = maxStreams;
+		this.unavailable = unavailable;
+		// The server's preface; it needn't wait for the client's.
+		byte[] settings = new byte[12];
+		setting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, maxStreams);
+		setting(settings, 6, SETTINGS_MAX_HEADER_LIST_SIZE, HTTPRequest.MAX_HEADER_BYTES);
+		control.add(frame(SETTINGS, 0, 0, settings));
+	}
+
+	/**
+	 * Handles the complete frames in {@code bytes[start, end)}.
+	 *
+	 * @return where the first incomplete frame starts; the caller keeps the bytes from there on.
+	 */
+	public int receive(byte[] bytes, int start, int end) {
+		if (failed) {
+			return end;
+		}
+		try {
+			if (!prefaceReceived) {
+				int length = Math.min(end - start, PREFACE.length);
+				if (!Arrays.equals(bytes, start, start + length, PREFACE, 0, length)) {
+					throw new ConnectionError(PROTOCOL_ERROR, "bad connection preface");
+				}
+				if (length < PREFACE.length) {
+					return start;
+				}
+				prefaceReceived = true;
+				start += PREFACE.length;
+			}
+			while (end - start >= FRAME_HEADER_BYTES) {
+				int length = ((bytes[start] & 0xff) << 16) | ((bytes[start + 1] & 0xff) << 8) | (bytes[start + 2] & 0xff);
+				if (length > MAX_FRAME_BYTES) {
+					throw new ConnectionError(FRAME_SIZE_ERROR, "frame of " + length + " bytes");
+				}
+				if (end - start < FRAME_HEADER_BYTES + length) {
+					break;
+				}
+				int type = bytes[start + 3] & 0xff;
+				int flags = bytes[start + 4] & 0xff;
+				int streamId = readInt(bytes, start + 5) & Integer.MAX_VALUE;
+				frame(type, flags, streamId, bytes, start + FRAME_HEADER_BYTES, length);
+				start += FRAME_HEADER_BYTES + length;
+			}
+		} catch (ConnectionError e) {
+			dispatcher.getMetrics().failed(Metrics.Failure.HTTP2);
+			fail(e.code, e.getMessage());
+			return end;
+		}
+		return start;
+	}
+
+	/**
+	 * Writes what's ready to go: control frames, response headers, then body frames in
+	 * priority order, as long as the flow control windows allow and until about
+	 * {@code maxBytes} have been written. Streamed bodies are read a part per call, so the
+	 * writer must have taken everything written by the last call (which the engines do, by
+	 * either copying it or calling only once it's all gone out), and calling again may send
+	 * more even if nothing else has happened.
+	 *
+	 * @return the bytes written.
+	 */
+	public long send(ResponseWriter out, long maxBytes) throws IOException {
+		long written = 0;
+		byte[] frame;
+		while ((frame = control.poll()) != null) {
+			out.write(frame);
+			written += frame.length;
+		}
+		readStreamedParts();
+		Stream stream;
+		while ((stream = unsentHeaders.poll()) != null) {
+			written += writeHeaders(out, stream);
+			stream.virtualTime = virtualTime;
+			if (stream.bodyRemaining == 0 && stream.bodyComplete()) {
+				finish(stream);
+			}
+		}
+		while (written < maxBytes && connectionWindow > 0 && (stream = pickStream()) != null) {
+			int length = (int) Math.min(Math.min(Math.min(DATA_FRAME_PAYLOAD, peerMaxFrame), stream.bodyRemaining),
+					Math.min(stream.sendWindow, connectionWindow));
+			boolean last = length == stream.bodyRemaining && stream.bodyComplete();
+			out.write(frameHeader(length, DATA, last ? FLAG_END_STREAM : 0, stream.id));
+			for (int left = length; left > 0; ) {
+				ByteBuffer chunk = stream.chunks.get(stream.chunk);
+				if (!chunk.hasRemaining()) {
+					stream.chunk++;
+					continue;
+				}
+				ByteBuffer slice = chunk.duplicate();
+				slice.limit(slice.position() + Math.min(left, slice.remaining()));
+				chunk.position(slice.limit());
+				left -= slice.remaining();
+				out.write(slice);
+			}
+			written += FRAME_HEADER_BYTES + length;
+			stream.bodyRemaining -= length;
+			stream.sendWindow -= length;
+			connectionWindow -= length;
+			virtualTime = Math.max(stream.virtualTime, virtualTime);
+			stream.virtualTime = virtualTime + (long) length * 256 / stream.node.weight;
+			if (last) {
+				finish(stream);
+			}
+		}
+		while ((frame = control.poll()) != null) {
+			out.write(frame); // resets for streams that finished before the client did.
+			written += frame.length;
+		}
+		return written;
+	}
+
+	/**
+	 * Reads the next part of each streamed body whose last part has been sent, if it may send
+	 * more. A body whose source fails can't be completed, so its stream is reset.
+	 */
+	private void readStreamedParts() {
+		List<Integer> broken = null;
+		for (Stream stream : streams.values()) {
+			if (stream.streamed == null || stream.bodyRemaining > 0 || stream.streamed.isDone()
+					|| stream.sendWindow <= 0) {
+				continue;
+			}
+			stream.chunks.clear();
+			stream.chunk = 0;
+			try {
+				ByteBuffer part = stream.streamed.next(false);
+				stream.chunks.add(part);
+				stream.bodyRemaining = part.remaining();
+				if (stream.streamed.length() < 0) {
+					stream.bytesWritten += part.remaining();
+				}
+			} catch (IOException e) {
+				dispatcher.getMetrics().failed(Metrics.Failure.HTTP2_STREAM);
+				if (broken == null) {
+					broken = new ArrayList<Integer>();
+				}
+				broken.add(stream.id);
+			}
+		}
+		if (broken != null) {
+			for (int streamId : broken) {
+				reset(streamId, INTERNAL_ERROR);
+			}
+		}
+	}
+
+	/** Whether the connection is over: it's said GOAWAY and everything owed has been sent. */
+	public boolean isDone() {
+		return goingAway && streams.isEmpty() && unsentHeaders.isEmpty() && control.isEmpty();
+	}
+
+	/** Starts a graceful shutdown: streams already started are finished, newer ones ignored. */
+	public void goAway() {
+		if (!goingAway) {
+			goingAway = true;
+			control.add(goAwayFrame(NO_ERROR, ""));
+		}
+	}
+
+	/**
+	 * The connection has closed: lets the handlers of bodies still arriving know they won't,
+	 * and lets go of the sources of bodies still being streamed.
+	 */
+	public void close() {
+		for (Stream stream : streams.values()) {
+			if (stream.body != null) {
+				stream.body.abort();
+				stream.body = null;
+			}
+			if (stream.streamed != null) {
+				stream.streamed.close();
+			}
+		}
+	}
+
+	private void fail(int code, String detail) {
+		close();
+		failed = true;
+		goingAway = true;
+		for (Stream stream : streams.values()) {
+			stream.node.stream = null;
+		}
+		streams.clear();
+		unsentHeaders.clear();
+		control.clear();
+		control.add(goAwayFrame(code, detail));
+	}
+
+	private void frame(int type, int flags, int streamId, byte[] bytes, int start, int length)
+			throws ConnectionError {
+		if (!settingsReceived && type != SETTINGS) {
+			throw new ConnectionError(PROTOCOL_ERROR, "the client's preface has to start with SETTINGS");
+		}
+		if (continuedStream != 0 && (type != CONTINUATION || streamId != continuedStream)) {
+			throw new ConnectionError(PROTOCOL_ERROR, "expected CONTINUATION for stream " + continuedStream);
+		}
+		switch (type) {
+			case DATA:
+				data(flags, streamId, bytes, start, length);
+				break;
+			case HEADERS:
+				headers(flags, streamId, bytes, start, length);
+				break;
+			case PRIORITY:
+				requireStream(streamId);
+				if (length != 5) {
+					reset(streamId, FRAME_SIZE_ERROR);
+				} else if (!prioritize(streamId, bytes, start)) {
+					reset(streamId, PROTOCOL_ERROR);
+				}
+				break;
+			case RST_STREAM:
+				requireStream(streamId);
+				requireLength(length, 4);
+				requireOpened(streamId);
+				Stream reset = streams.get(streamId);
+				if (reset != null) {
+					unsentHeaders.remove(reset);
+					reset.remoteClosed = true; // no need to reset it back.
+					finish(reset);
+				}
+				break;
+			case SETTINGS:
+				settings(flags, streamId, bytes, start, length);
+				break;
+			case PUSH_PROMISE:
+				throw new ConnectionError(PROTOCOL_ERROR, "clients can't push");
+			case PING:
+				if (streamId != 0) {
+					throw new ConnectionError(PROTOCOL_ERROR, "PING on a stream");
+				}
+				requireLength(length, 8);
+				if ((flags & FLAG_ACK) == 0) {
+					control.add(frame(PING, FLAG_ACK, 0, Arrays.copyOfRange(bytes, start, start + length)));
+				}
+				break;
+			case GOAWAY:
+				if (streamId != 0) {
+					throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on a stream");
+				}
+				goingAway = true;
+				break;
+			case WINDOW_UPDATE:
+				requireLength(length, 4);
+				windowUpdate(streamId, readInt(bytes, start) & Integer.MAX_VALUE);
+				break;
+			case CONTINUATION:
+				if (continuedStream == 0) {
+					throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+				}
+				appendHeaderBlock(bytes, start, length);
+				if ((flags & FLAG_END_HEADERS) != 0) {
+					continuedStream = 0;
+					headersComplete(streamId, continuedEndStream, continuedValid);
+				}
+				break;
+			default:
+				break; // unknown frame types are ignored (RFC 7540 4.1).
+		}
+	}
+
+	private void data(int flags, int streamId, byte[] bytes, int start, int length) throws ConnectionError {
+		requireStream(streamId);
+		requireOpened(streamId);
+		if ((flags & FLAG_PADDED) != 0 && (length == 0 || (bytes[start] & 0xff) >= length)) {
+			throw new ConnectionError(PROTOCOL_ERROR, "padding longer than the frame");
+		}
+		if (length > 0) {
+			// Bodies are passed on (or thrown away) as they arrive, so the client can have its
+			// window back straight away.
+			control.add(windowUpdateFrame(0, length));
+		}
+		Stream stream = streams.get(streamId);
+		if (stream == null) {
+			return; // a stream we've already finished; the client may not know yet.
+		}
+		if (stream.remoteClosed) {
+			reset(streamId, STREAM_CLOSED);
+			return;
+		}
+		boolean endStream = (flags & FLAG_END_STREAM) != 0;
+		if (endStream) {
+			stream.remoteClosed = true;
+		} else if (length > 0) {
+			control.add(windowUpdateFrame(streamId, length));
+		}
+		if (stream.body != null) {
+			int padding = (flags & FLAG_PADDED) != 0 ? bytes[start] & 0xff : -1;
+			receiveBody(stream, bytes, start + (padding < 0 ? 0 : 1), start + length - Math.max(padding, 0), endStream);
+		}
+	}
+
+	/**
+	 * Passes on a piece of a request body and, once the body is complete (or turns out to be
+	 * broken), queues the response.
+	 */
+	private void receiveBody(Stream stream, byte[] bytes, int start, int end, boolean last) {
+		RequestBody body = stream.body;
+		try {
+			try {
+				body.receiveFramed(bytes, start, end, last);
+				if (!body.isComplete()) {
+					return;
+				}
+				stream.body = null;
+				dispatcher.finishBody(body, stream);
+			} catch (HTTPRequest.MalformedRequestException e) {
+				body.abort();
+				stream.body = null;
+				dispatcher.sendMalformed(body.request, stream, e);
+			}
+			stream.prepare();
+		} catch (IOException e) {
+			dispatcher.getMetrics().failed(Metrics.Failure.HTTP2_STREAM);
+			reset(stream.id, PROTOCOL_ERROR);
+			return;
+		}
+		unsentHeaders.add(stream);
+	}
+
+	private void headers(int flags, int streamId, byte[] bytes, int start, int length) throws ConnectionError {
+		requireStream(streamId);
+		if ((streamId & 1) == 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "client stream ids are odd");
+		}
+		int end = start + length;
+		if ((flags & FLAG_PADDED) != 0) {
+			if (length == 0 || (bytes[start] & 0xff) >= length) {
+				throw new ConnectionError(PROTOCOL_ERROR, "padding longer than the frame");
+			}
+			end -= bytes[start] & 0xff;
+			start++;
+		}
+		boolean valid = true;
+		if ((flags & FLAG_PRIORITY) != 0) {
+			if (end - start < 5) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "HEADERS too short for its priority");
+			}
+			valid = prioritize(streamId, bytes, start);
+			start += 5;
+		}
+		headerBlockLength = 0;
+		appendHeaderBlock(bytes, start, end - start);
+		if ((flags & FLAG_END_HEADERS) == 0) {
+			continuedStream = streamId;
+			continuedEndStream = (flags & FLAG_END_STREAM) != 0;
+			continuedValid = valid;
+		} else {
+			headersComplete(streamId, (flags & FLAG_END_STREAM) != 0, valid);
+		}
+	}
+
+	private void appendHeaderBlock(byte[] bytes, int start, int length) throws ConnectionError {
+		if (headerBlockLength + length > HTTPRequest.MAX_HEADER_BYTES) {
+			throw new ConnectionError(ENHANCE_YOUR_CALM, "header block too large");
+		}
+		if (headerBlockLength + length > headerBlock.length) {
+			headerBlock = Arrays.copyOf(headerBlock, Math.max(2 * headerBlock.length, headerBlockLength + length));
+		}
+		System.arraycopy(bytes, start, headerBlock, headerBlockLength, length);
+		headerBlockLength += length;
+	}
+
+	/**
+	 * Decodes a complete header block and, if it opens a stream, answers the request.
+	 *
+	 * @param valid {@code false} if the HEADERS frame was already found wrong; the block is
+	 *     still decoded, to keep the decoder's table in step, but the stream is reset.
+	 */
+	private void headersComplete(int streamId, boolean endStream, boolean valid) throws ConnectionError {
+		long parseStart = System.nanoTime();
+		List<String> fields = new ArrayList<String>();
+		try {
+			decoder.decode(headerBlock, 0, headerBlockLength, fields);
+		} catch (Hpack.CompressionException e) {
+			throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+		}
+		if (!valid) {
+			lastStreamId = Math.max(lastStreamId, streamId);
+			reset(streamId, PROTOCOL_ERROR);
+			return;
+		}
+		if (streamId <= lastStreamId) {
+			// Trailers, which end the client's side of the stream, or a stream already finished.
+			Stream stream = streams.get(streamId);
+			if (stream != null && endStream) {
+				stream.remoteClosed = true;
+				if (stream.body != null) {
+					receiveBody(stream, headerBlock, 0, 0, true);
+				}
+			} else if (stream != null) {
+				reset(streamId, PROTOCOL_ERROR);
+			}
+			return;
+		}
+		lastStreamId = streamId;
+		if (goingAway) {
+			return;
+		}
+		if (streams.size() >= maxStreams) {
+			reset(streamId, REFUSED_STREAM);
+			return;
+		}
+
+		String head = requestHead(fields);
+		if (head == null) {
+			reset(streamId, PROTOCOL_ERROR);
+			return;
+		}
+		Node node = priorities.get(streamId);
+		if (node == null) {
+			node = new Node(streamId, root);
+			priorities.put(streamId, node);
+		}
+		Stream stream = new Stream(streamId, node, endStream);
+		node.stream = stream;
+		try {
+			byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+			try {
+				request.parse(headBytes, 0, headBytes.length);
+				dispatcher.getMetrics().lap(Metrics.Phase.PARSE, parseStart);
+				if (unavailable) {
+					dispatcher.sendUnavailable(request, stream);
+					goAway();
+				} else if (request.getType() == HTTPRequest.Command.POST) {
+					stream.body = dispatcher.startBody(request, endStream ? 0 : request.getContentLength(), true, stream);
+					if (stream.body != null && stream.body.isComplete()) {
+						dispatcher.finishBody(stream.body, stream);
+						stream.body = null;
+					}
+				} else {
+					dispatcher.respond(request, true, stream);
+				}
+			} catch (HTTPRequest.MalformedRequestException e) {
+				dispatcher.sendMalformed(request, stream, e);
+			}
+			if (stream.body == null) {
+				stream.prepare();
+			}
+		} catch (IOException e) {
+			dispatcher.getMetrics().failed(Metrics.Failure.HTTP2_STREAM);
+			if (stream.body != null) {
+				stream.body.abort();
+			}
+			node.stream = null;
+			reset(streamId, PROTOCOL_ERROR);
+			return;
+		}
+		streams.put(streamId, stream);
+		if (stream.body == null) {
+			unsentHeaders.add(stream);
+		}
+	}
+
+	/**
+	 * Turns a request's header fields back into an HTTP/1.1-style request head, or returns
+	 * {@code null} if they don't make a well-formed HTTP/2 request (RFC 7540 8.1.2).
+	 */
+	private static String requestHead(List<String> fields) {
+		String method = null;
+		String path = null;
+		String authority = null;
+		boolean hasHost = false;
+		StringBuilder headers = new StringBuilder();
+		for (int i = 0; i < fields.size(); i += 2) {
+			String name = fields.get(i);
+			String value = fields.get(i + 1);
+			if (name.isEmpty() || !isFieldValue(value)) {
+				return null;
+			}
+			for (int c = 0; c < name.length(); c++) {
+				char ch = name.charAt(c);
+				if ((ch >= 'A' && ch <= 'Z') || ch <= ' ' || ch >= 0x7f || (ch == ':' && c > 0)) {
+					return null;
+				}
+			}
+			if (name.charAt(0) == ':') {
+				if (headers.length() > 0) {
+					return null; // pseudo-headers come first.
+				}
+				if (name.equals(":method") && method == null) {
+					method = value;
+				} else if (name.equals(":path") && path == null) {
+					path = value;
+				} else if (name.equals(":authority") && authority == null) {
+					authority = value;
+				} else if (!name.equals(":scheme")) {
+					return null;
+				}
+				continue;
+			}
+			if (CONNECTION_HEADERS.contains(name) || (name.equals("te") && !value.equals("trailers"))) {
+				return null;
+			}
+			hasHost |= name.equals("host");
+			headers.append(name).append(": ").append(value).append("\r\n");
+		}
+		if (method == null || path == null || path.isEmpty() || path.indexOf(' ') >= 0) {
+			return null;
+		}
+		if (authority != null && !hasHost) {
+			headers.append("host: ").append(authority).append("\r\n");
+		}
+		return method + " " + path + " HTTP/2.0\r\n" + headers + "\r\n";
+	}
+
+	/** Whether {@code value} can go into a request head as it is: no CR, LF or NUL. */
+	private static boolean isFieldValue(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\r' || c == '\n' || c == '\0') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void settings(int flags, int streamId, byte[] bytes, int start, int length) throws ConnectionError {
+		if (streamId != 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+		}
+		if ((flags & FLAG_ACK) != 0) {
+			requireLength(length, 0);
+			return;
+		}
+		if (length % 6 != 0) {
+			throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+		}
+		settingsReceived = true;
+		for (int i = start; i < start + length; i += 6) {
+			int id = ((bytes[i] & 0xff) << 8) | (bytes[i + 1] & 0xff);
+			long value = readInt(bytes, i + 2) & 0xffffffffL;
+			switch (id) {
+				case SETTINGS_HEADER_TABLE_SIZE:
+					encoder.setMaxTableSize((int) Math.min(value, Hpack.DEFAULT_TABLE_SIZE));
+					break;
+				case SETTINGS_ENABLE_PUSH:
+					if (value > 1) {
+						throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH of " + value);
+					}
+					break;
+				case SETTINGS_INITIAL_WINDOW_SIZE:
+					if (value > MAX_WINDOW) {
+						throw new ConnectionError(FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE of " + value);
+					}
+					// Applies to the streams already open too (RFC 7540 6.9.2).
+					for (Stream stream : streams.values()) {
+						stream.sendWindow += value - peerInitialWindow;
+						if (stream.sendWindow > MAX_WINDOW) {
+							throw new ConnectionError(FLOW_CONTROL_ERROR, "stream window overflow");
+						}
+					}
+					peerInitialWindow = (int) value;
+					break;
+				case SETTINGS_MAX_FRAME_SIZE:
+					if (value < MAX_FRAME_BYTES || value > 0xffffff) {
+						throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE of " + value);
+					}
+					peerMaxFrame = (int) value;
+					break;
+				default:
+					break; // the rest don't change what we send.
+			}
+		}
+		control.add(frame(SETTINGS, FLAG_ACK, 0, new byte[0]));
+	}
+
+	private void windowUpdate(int streamId, int increment) throws ConnectionError {
+		if (streamId == 0) {
+			if (increment == 0) {
+				throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+			}
+			connectionWindow += increment;
+			if (connectionWindow > MAX_WINDOW) {
+				throw new ConnectionError(FLOW_CONTROL_ERROR, "connection window overflow");
+			}
+			return;
+		}
+		requireOpened(streamId);
+		Stream stream = streams.get(streamId);
+		if (stream == null) {
+			return;
+		}
+		if (increment == 0) {
+			reset(streamId, PROTOCOL_ERROR);
+			return;
+		}
+		stream.sendWindow += increment;
+		if (stream.sendWindow > MAX_WINDOW) {
+			reset(streamId, FLOW_CONTROL_ERROR);
+		}
+	}
+
+	/**
+	 * Moves a stream in the priority tree (RFC 7540 5.3.3) as the 5 bytes at
+	 * {@code bytes[start]} say. A dependency on a stream we know nothing about gets the default
+	 * priority instead.
+	 *
+	 * @return {@code false} if the stream depends on itself, which is a stream error.
+	 */
+	private boolean prioritize(int streamId, byte[] bytes, int start) {
+		int dependency = readInt(bytes, start) & Integer.MAX_VALUE;
+		boolean exclusive = bytes[start] < 0;
+		int weight = (bytes[start + 4] & 0xff) + 1;
+		if (dependency == streamId) {
+			return false;
+		}
+		Node node = priorities.get(streamId);
+		if (node == null) {
+			if (priorities.size() >= 4 * maxStreams) {
+				return true; // too many to keep track of: left at the default priority.
+			}
+			node = new Node(streamId, root);
+			priorities.put(streamId, node);
+		}
+		Node parent = priorities.get(dependency);
+		if (parent == null) {
+			parent = root;
+			weight = DEFAULT_WEIGHT;
+			exclusive = false;
+		}
+		if (parent.descendsFrom(node)) {
+			parent.parent = node.parent;
+		}
+		if (exclusive) {
+			for (Node other : priorities.values()) {
+				if (other.parent == parent && other != node) {
+					other.parent = node;
+				}
+			}
+		}
+		node.parent = parent;
+		node.weight = weight;
+		return true;
+	}
+
+	/**
+	 * The stream to send the next DATA frame for: of those with body bytes and window left,
+	 * and no ancestor that could send instead, the one furthest behind in a weighted fair
+	 * queue: each frame puts a stream {@code length * 256 / weight} further ahead.
+	 */
+	private Stream pickStream() {
+		Stream best = null;
+		long bestTime = Long.MAX_VALUE;
+		for (Stream stream : streams.values()) {
+			if (!canSend(stream)) {
+				continue;
+			}
+			boolean blocked = false;
+			for (Node ancestor = stream.node.parent; ancestor != null && !blocked; ancestor = ancestor.parent) {
+				blocked = ancestor.stream != null && canSend(ancestor.stream);
+			}
+			long time = Math.max(stream.virtualTime, virtualTime);
+			if (!blocked && time < bestTime) {
+				best = stream;
+				bestTime = time;
+			}
+		}
+		return best;
+	}
+
+	/** Whether the stream has body bytes it may send, or just has to end the stream (which costs no window). */
+	private static boolean canSend(Stream stream) {
+		return stream.bodyRemaining > 0 ? stream.sendWindow > 0 : stream.streamed != null && stream.streamed.isDone();
+	}
+
+	/** Forgets a stream whose response is done (or reset), and its place in the priority tree. */
+	private void finish(Stream stream) {
+		streams.remove(stream.id);
+		if (stream.body != null) {
+			stream.body.abort(); // reset before the body was complete.
+			stream.body = null;
+		}
+		if (stream.streamed != null) {
+			stream.streamed.close();
+		}
+		if (!stream.remoteClosed) {
+			// We're done before the client is: tell it not to bother (RFC 7540 8.1).
+			control.add(rstFrame(stream.id, NO_ERROR));
+		}
+		stream.node.stream = null;
+		forget(stream.id);
+	}
+
+	/** Takes a stream out of the priority tree; its dependents move up to its parent (RFC 7540 5.3.4). */
+	private void forget(int streamId) {
+		Node node = priorities.remove(streamId);
+		if (node != null) {
+			for (Node other : priorities.values()) {
+				if (other.parent == node) {
+					other.parent = node.parent;
+				}
+			}
+		}
+	}
+
+	/** A stream error: resets the stream, leaving the rest of the connection be. */
+	private void reset(int streamId, int code) {
+		Stream stream = streams.get(streamId);
+		if (stream != null) {
+			unsentHeaders.remove(stream);
+			stream.remoteClosed = true;
+			finish(stream);
+		} else {
+			forget(streamId);
+		}
+		control.add(rstFrame(streamId, code));
+	}
+
+	private int writeHeaders(ResponseWriter out, Stream stream) throws IOException {
+		byte[] block = stream.headerBlock;
+		int flags = stream.bodyRemaining == 0 && stream.bodyComplete() ? FLAG_END_STREAM : 0;
+		int written = 0;
+		int type = HEADERS;
+		int position = 0;
+		do {
+			int length = Math.min(block.length - position, peerMaxFrame);
+			boolean end = position + length == block.length;
+			out.write(frameHeader(length, type, flags | (end ? FLAG_END_HEADERS : 0), stream.id));
+			out.write(ByteBuffer.wrap(block, position, length));
+			written += FRAME_HEADER_BYTES + length;
+			position += length;
+			type = CONTINUATION;
+			flags = 0;
+		} while (position < block.length);
+		return written;
+	}
+
+	private void requireStream(int streamId) throws ConnectionError {
+		if (streamId == 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "stream frame on stream 0");
+		}
+	}
+
+	/** Frames for streams the client hasn't opened yet are a protocol error (RFC 7540 5.1). */
+	private void requireOpened(int streamId) throws ConnectionError {
+		if (streamId > lastStreamId) {
+			throw new ConnectionError(PROTOCOL_ERROR, "frame for idle stream " + streamId);
+		}
+	}
+
+	private static void requireLength(int length, int expected) throws ConnectionError {
+		if (length != expected) {
+			throw new ConnectionError(FRAME_SIZE_ERROR, "frame of " + length + " bytes, not " + expected);
+		}
+	}
+
+	private byte[] goAwayFrame(int code, String detail) {
+		byte[] debug = detail.getBytes(StandardCharsets.UTF_8);
+		byte[] payload = new byte[8 + debug.length];
+		writeInt(payload, 0, lastStreamId);
+		writeInt(payload, 4, code);
+		System.arraycopy(debug, 0, payload, 8, debug.length);
+		return frame(GOAWAY, 0, 0, payload);
+	}
+
+	private static byte[] rstFrame(int streamId, int code) {
+		byte[] payload = new byte[4];
+		writeInt(payload, 0, code);
+		return frame(RST_STREAM, 0, streamId, payload);
+	}
+
+	private static byte[] windowUpdateFrame(int streamId, int increment) {
+		byte[] payload = new byte[4];
+		writeInt(payload, 0, increment);
+		return frame(WINDOW_UPDATE, 0, streamId, payload);
+	}
+
+	private static byte[] frame(int type, int flags, int streamId, byte[] payload) {
+		byte[] frame = Arrays.copyOf(frameHeader(payload.length, type, flags, streamId),
+				FRAME_HEADER_BYTES + payload.length);
+		System.arraycopy(payload, 0, frame, FRAME_HEADER_BYTES, payload.length);
+		return frame;
+	}
+
+	private static byte[] frameHeader(int length, int type, int flags, int streamId) {
+		byte[] header = new byte[FRAME_HEADER_BYTES];
+		header[0] = (byte) (length >>> 16);
+		header[1] = (byte) (length >>> 8);
+		header[2] = (byte) length;
+		header[3] = (byte) type;
+		header[4] = (byte) flags;
+		writeInt(header, 5, streamId);
+		return header;
+	}
+
+	private static void setting(byte[] payload, int offset, int id, int value) {
+		payload[offset] = (byte) (id >>> 8);
+		payload[offset + 1] = (byte) id;
+		writeInt(payload, offset + 2, value);
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+				| ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	/** Returns the index of the "\r\n\r\n" ending the head at the start of {@code head}, or -1. */
+	private static int indexOfBlankLine(ByteBuffer head) {
+		if (!head.hasArray()) {
+			return -1;
+		}
+		byte[] bytes = head.array();
+		int offset = head.arrayOffset();
+		for (int i = head.position(); i + 3 < head.limit(); i++) {
+			if (bytes[offset + i] == '\r' && bytes[offset + i + 1] == '\n'
+					&& bytes[offset + i + 2] == '\r' && bytes[offset + i + 3] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,32 @@
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Formats and parses HTTP-dates (RFC 7231 7.1.1.1), e.g. "Sun, 06 Nov 1994 08:49:37 GMT".
+ */
+final class HttpDates {
+	private static final DateTimeFormatter IMF_FIXDATE =
+			DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	private HttpDates() {} // can't instantiate this static class
+
+	public static String format(long epochMillis) {
+		return IMF_FIXDATE.format(Instant.ofEpochMilli(epochMillis));
+	}
+
+	/** Returns the date in epoch milliseconds, or -1 if it isn't a date we understand. */
+	public static long parse(String httpDate) {
+		if (httpDate == null) {
+			return -1;
+		}
+		try {
+			return ZonedDateTime.parse(httpDate.trim(), IMF_FIXDATE).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+}
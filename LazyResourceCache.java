@@ -0,0 +1,209 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link ResourceLookup} that only indexes the web root at startup and loads a resource the
+ * first time it's requested, keeping loaded responses in a cache bounded by total body bytes,
+ * compressed variants included.
+ *
+ * <p>Eviction is LRU with TinyLFU admission: when making room for a newly loaded resource, it
+ * only displaces the least-recently-used entries if it has been requested more often than
+ * each of them (per a {@link FrequencySketch}). A one-off request for a cold file therefore
+ * can't flush the popular working set out of the cache.
+ *
+ * <p>Hits take no lock; their recency is recorded only if the LRU lock is free. Concurrent
+ * misses on the same path share a single load.
+ */
+final class LazyResourceCache implements ResourceLookup {
+	/** Replaced whole (copy-on-write) by {@link #update}, never modified in place. */
+	private volatile Map<String, File> index;
+	private final long maxBytes;
+	/** Files at least this big are streamed, and so only take up their head here. */
+	private final long streamMinBytes;
+	private final FrequencySketch sketch;
+	private final ConcurrentHashMap<String, CachedResponse> cache = new ConcurrentHashMap<String, CachedResponse>();
+	private final ConcurrentHashMap<String, FutureTask<CachedResponse>> loading =
+			new ConcurrentHashMap<String, FutureTask<CachedResponse>>();
+	/** Cached paths, least recently used first. Guarded by {@link #lruLock}, as is usedBytes. */
+	private final LinkedHashMap<String, CachedResponse> lru = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+	private final ReentrantLock lruLock = new ReentrantLock();
+	private long usedBytes = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+
+	public LazyResourceCache(Map<String, File> index, long maxBytes, long streamMinBytes) {
+		this.index = index;
+		this.maxBytes = maxBytes;
+		this.streamMinBytes = streamMinBytes;
+		this.sketch = new FrequencySketch(index.size());
+	}
+
+	@Override
+	public CachedResponse find(String webPath) throws IOException {
+		File file = index.get(webPath);
+		if (file == null) {
+			return null;
+		}
+		sketch.increment(webPath);
+		CachedResponse cached = cache.get(webPath);
+		if (cached != null) {
+			hits.increment();
+			if (lruLock.tryLock()) {
+				try {
+					lru.get(webPath); // moves it to the most-recently-used end.
+				} finally {
+					lruLock.unlock();
+				}
+			}
+			return cached;
+		}
+		misses.increment();
+		return load(webPath, file);
+	}
+
+	@Override
+	public void update(Map<String, File> changed, Set<String> removed) {
+		synchronized (this) {
+			Map<String, File> next = new HashMap<String, File>(index);
+			StaticResources.removeMatching(next, removed);
+			next.putAll(changed);
+			index = next;
+		}
+		lruLock.lock();
+		try {
+			for (Iterator<Map.Entry<String, CachedResponse>> entries = lru.entrySet().iterator(); entries.hasNext(); ) {
+				Map.Entry<String, CachedResponse> entry = entries.next();
+				if (changed.containsKey(entry.getKey()) || StaticResources.matchesAny(entry.getKey(), removed)) {
+					entries.remove();
+					cache.remove(entry.getKey());
+					usedBytes -= weight(entry.getValue());
+				}
+			}
+		} finally {
+			lruLock.unlock();
+		}
+	}
+
+	private CachedResponse load(final String webPath, final File file) throws IOException {
+		FutureTask<CachedResponse> task = new FutureTask<CachedResponse>(new Callable<CachedResponse>() {
+			@Override
+			public CachedResponse call() throws IOException {
+				return ResourceMap.loadFile(webPath, file, streamMinBytes);
+			}
+		});
+		FutureTask<CachedResponse> inFlight = loading.putIfAbsent(webPath, task);
+		if (inFlight == null) {
+			inFlight = task;
+			try {
+				task.run();
+				if (!task.isCancelled()) {
+					admit(webPath, file, getLoaded(task));
+				}
+			} finally {
+				loading.remove(webPath, task);
+			}
+		}
+		return getLoaded(inFlight);
+	}
+
+	private static CachedResponse getLoaded(FutureTask<CachedResponse> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for a resource to load");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("loading a resource failed", e.getCause());
+		}
+	}
+
+	private void admit(String webPath, File file, CachedResponse response) {
+		long weight = weight(response);
+		if (weight > maxBytes) {
+			rejections.increment();
+			return;
+		}
+		lruLock.lock();
+		try {
+			if (index.get(webPath) != file) {
+				return; // the file changed while it was loading; don't cache the stale copy.
+			}
+			if (lru.containsKey(webPath)) {
+				// Another load of it finished between our cache miss and our load starting.
+				return;
+			}
+			int candidateFrequency = sketch.frequency(webPath);
+			List<String> victims = new ArrayList<String>();
+			long freed = 0;
+			Iterator<Map.Entry<String, CachedResponse>> eldest = lru.entrySet().iterator();
+			while (usedBytes - freed + weight > maxBytes && eldest.hasNext()) {
+				Map.Entry<String, CachedResponse> victim = eldest.next();
+				if (sketch.frequency(victim.getKey()) >= candidateFrequency) {
+					rejections.increment();
+					return;
+				}
+				victims.add(victim.getKey());
+				freed += weight(victim.getValue());
+			}
+			for (String victim : victims) {
+				lru.remove(victim);
+				cache.remove(victim);
+				evictions.increment();
+			}
+			usedBytes += weight - freed;
+			lru.put(webPath, response);
+			cache.put(webPath, response);
+		} finally {
+			lruLock.unlock();
+		}
+	}
+
+	/** The bytes a cached response holds: its body, plus each of its encoded variants'. */
+	private static long weight(CachedResponse response) {
+		long weight = response.body.remaining();
+		for (CachedResponse encoding : response.encodings.values()) {
+			weight += encoding.body.remaining();
+		}
+		return weight;
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	public long rejections() {
+		return rejections.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("resource cache: %d hits, %d misses, %d evictions, %d rejected, %d of %d bytes used",
+				hits(), misses(), evictions(), rejections(), usedBytes, maxBytes);
+	}
+}
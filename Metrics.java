@@ -0,0 +1,218 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters and latency histograms, shared by every connection of both engines and
+ * served in the Prometheus text format by {@link RequestDispatcher}. Everything is a
+ * {@link LongAdder}, so recording from many threads at once doesn't contend on one cache line.
+ *
+ * <p>Whatever a client can make happen per connection or per request is counted here (and
+ * answered requests are in the {@link AccessLog}) rather than printed, so a client can't make
+ * the serving threads wait on stdout.
+ */
+final class Metrics {
+	/** The stages a connection and each of its requests go through, in order. */
+	enum Phase {
+		/** From accept() returning to a thread starting on the connection. */
+		ACCEPT,
+		/** The TLS handshake. */
+		HANDSHAKE,
+		/** Parsing a request head that has fully arrived. */
+		PARSE,
+		/** Finding the response: redirects, resources, content negotiation, validators. */
+		LOOKUP,
+		/** Handing the response to the connection's {@link ResponseWriter}. */
+		WRITE,
+	}
+
+	/** Ways serving a connection can go wrong; see {@link #failed}. */
+	enum Failure {
+		/** A request head or body that couldn't be parsed; it's answered with a 4xx. */
+		MALFORMED,
+		/** A request header line without a valid name, skipped. */
+		BAD_HEADER,
+		/** The connection failed, or the client went away mid-response. */
+		IO,
+		/** An HTTP/2 connection error, answered with GOAWAY. */
+		HTTP2,
+		/** An HTTP/2 stream reset because its response couldn't be completed. */
+		HTTP2_STREAM,
+		/** Anything else thrown while serving a connection, which is then closed. */
+		INTERNAL,
+	}
+
+	/**
+	 * Latency histogram with power-of-two buckets: 1us, 2us, 4us, ... ~33s, then +Inf. Finding
+	 * a bucket is a leading-zeros count.
+	 */
+	static final class Histogram {
+		private static final int BUCKETS = 26;
+
+		private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+		private final LongAdder sumNanos = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			long micros = Math.max(nanos, 0) / 1000;
+			// The smallest i such that micros <= 2^i.
+			int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+			buckets[Math.min(bucket, BUCKETS)].increment();
+			sumNanos.add(nanos);
+		}
+
+		void writeTo(StringBuilder out, String name, String labels) {
+			long cumulative = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				cumulative += buckets[i].sum();
+				String le = i < BUCKETS ? Double.toString((1L << i) / 1e6) : "+Inf";
+				out.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+						.append(cumulative).append('\n');
+			}
+			out.append(name).append("_sum{").append(labels).append("} ").append(sumNanos.sum() / 1e9).append('\n');
+			out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+		}
+	}
+
+	private final Histogram[] phases = new Histogram[Phase.values().length];
+	/** Responses by status code; index is the code. */
+	private final LongAdder[] responses = new LongAdder[600];
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder bodyBytesReceived = new LongAdder();
+	private final LongAdder connectionsAccepted = new LongAdder();
+	private final LongAdder activeConnections = new LongAdder();
+	private final LongAdder rejectedConnections = new LongAdder();
+	private final LongAdder droppedConnections = new LongAdder();
+	private final LongAdder[] timeouts = new LongAdder[ConnectionGovernor.Timeout.values().length];
+	private final LongAdder[] failures = new LongAdder[Failure.values().length];
+	private final LongAdder fullHandshakes = new LongAdder();
+	private final LongAdder resumedHandshakes = new LongAdder();
+	private final LongAdder http2Connections = new LongAdder();
+
+	public Metrics() {
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = new Histogram();
+		}
+		for (int i = 0; i < responses.length; i++) {
+			responses[i] = new LongAdder();
+		}
+		for (int i = 0; i < timeouts.length; i++) {
+			timeouts[i] = new LongAdder();
+		}
+		for (int i = 0; i < failures.length; i++) {
+			failures[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records that {@code phase} ran from {@code startNanos} until now.
+	 *
+	 * @return now, i.e. the start of whatever comes next.
+	 */
+	public long lap(Phase phase, long startNanos) {
+		long now = System.nanoTime();
+		phases[phase.ordinal()].record(now - startNanos);
+		return now;
+	}
+
+	public void connectionOpened() {
+		connectionsAccepted.increment();
+		activeConnections.increment();
+	}
+
+	public void connectionClosed() {
+		activeConnections.decrement();
+	}
+
+	/** Counts a connection turned away by the {@link ConnectionGovernor}, with a 503 or a reset. */
+	public void connectionRejected(boolean dropped) {
+		(dropped ? droppedConnections : rejectedConnections).increment();
+	}
+
+	public void timedOut(ConnectionGovernor.Timeout kind) {
+		timeouts[kind.ordinal()].increment();
+	}
+
+	public void failed(Failure kind) {
+		failures[kind.ordinal()].increment();
+	}
+
+	/** Counts a finished TLS handshake; see {@link TlsConfig#isResumed}. */
+	public void handshakeCompleted(boolean resumed) {
+		(resumed ? resumedHandshakes : fullHandshakes).increment();
+	}
+
+	/** Counts a connection that negotiated HTTP/2. */
+	public void http2ConnectionOpened() {
+		http2Connections.increment();
+	}
+
+	public void responseSent(int status, long bytes) {
+		if (status >= 0 && status < responses.length) {
+			responses[status].increment();
+		}
+		bytesSent.add(bytes);
+	}
+
+	/** Counts the data bytes of a request body that arrived whole. */
+	public void bodyReceived(long bytes) {
+		bodyBytesReceived.add(bytes);
+	}
+
+	/** Appends everything in the Prometheus text exposition format. */
+	public void writeTo(StringBuilder out) {
+		counter(out, "project2_connections_accepted_total", "Connections accepted.", connectionsAccepted.sum());
+		out.append("# HELP project2_connections_active Connections currently open.\n")
+				.append("# TYPE project2_connections_active gauge\n")
+				.append("project2_connections_active ").append(activeConnections.sum()).append('\n');
+		out.append("# HELP project2_connections_rejected_total Connections over the limit, answered with a 503 or reset.\n")
+				.append("# TYPE project2_connections_rejected_total counter\n")
+				.append("project2_connections_rejected_total{action=\"503\"} ").append(rejectedConnections.sum()).append('\n')
+				.append("project2_connections_rejected_total{action=\"reset\"} ").append(droppedConnections.sum()).append('\n');
+		out.append("# HELP project2_connection_timeouts_total Connections closed for running out of time, by what they were doing.\n")
+				.append("# TYPE project2_connection_timeouts_total counter\n");
+		for (ConnectionGovernor.Timeout kind : ConnectionGovernor.Timeout.values()) {
+			out.append("project2_connection_timeouts_total{phase=\"").append(kind.toString().toLowerCase()).append("\"} ")
+					.append(timeouts[kind.ordinal()].sum()).append('\n');
+		}
+		out.append("# HELP project2_connection_errors_total Things that went wrong serving connections, by kind.\n")
+				.append("# TYPE project2_connection_errors_total counter\n");
+		for (Failure kind : Failure.values()) {
+			out.append("project2_connection_errors_total{kind=\"").append(kind.toString().toLowerCase()).append("\"} ")
+					.append(failures[kind.ordinal()].sum()).append('\n');
+		}
+		out.append("# HELP project2_tls_handshakes_total TLS handshakes completed, full or resuming a session.\n")
+				.append("# TYPE project2_tls_handshakes_total counter\n")
+				.append("project2_tls_handshakes_total{type=\"full\"} ").append(fullHandshakes.sum()).append('\n')
+				.append("project2_tls_handshakes_total{type=\"resumed\"} ").append(resumedHandshakes.sum()).append('\n');
+		counter(out, "project2_http2_connections_total", "Connections that negotiated HTTP/2.", http2Connections.sum());
+
+		out.append("# HELP project2_responses_total Responses sent, by status code.\n")
+				.append("# TYPE project2_responses_total counter\n");
+		for (int status = 0; status < responses.length; status++) {
+			long count = responses[status].sum();
+			if (count > 0) {
+				out.append("project2_responses_total{status=\"").append(status).append("\"} ").append(count).append('\n');
+			}
+		}
+		counter(out, "project2_response_bytes_total", "Response bytes sent, headers included.", bytesSent.sum());
+		counter(out, "project2_request_body_bytes_total", "Request body bytes received, without chunked framing.",
+				bodyBytesReceived.sum());
+
+		out.append("# HELP project2_phase_seconds Time spent in each phase of serving a connection.\n")
+				.append("# TYPE project2_phase_seconds histogram\n");
+		for (Phase phase : Phase.values()) {
+			phases[phase.ordinal()].writeTo(out, "project2_phase_seconds",
+					"phase=\"" + phase.toString().toLowerCase() + "\"");
+		}
+	}
+
+	static void counter(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+				.append("# TYPE ").append(name).append(" counter\n")
+				.append(name).append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,744 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import javax.net.ssl.*;
+
+/**
+ * Non-blocking server engine: a {@link Selector} event loop per core, with TLS driven through
+ * an {@link SSLEngine} per connection instead of a blocked thread per {@link SSLSocket}.
+ * Requests are parsed with {@link HTTPRequest} and answered by the same
+ * {@link RequestDispatcher} the blocking engine uses.
+ *
+ * <p>Every loop registers a listening channel and accepts for itself, so connections are
+ * spread across loops and each connection then stays on the loop that accepted it. With
+ * --listeners=N there are N channels sharing the port through SO_REUSEPORT, and the loops are
+ * dealt out among them; with as many listeners as loops, the kernel hands each connection
+ * straight to one loop instead of waking them all.
+ *
+ * <p>Connections that negotiate HTTP/2 are served by an {@link Http2Connection} on their
+ * loop, a batch of frames at a time, just as HTTP/1.1 responses are batched.
+ *
+ * <p>Request bodies are passed on as they're decrypted, one socket read's worth per turn of
+ * the loop, so an upload neither piles up in memory nor holds up the loop's other
+ * connections for longer than a read. Likewise a {@link ResponseBody streamed} response body
+ * is read a part at a time, each once the client has taken the last.
+ */
+final class NioServer {
+	private static final int MAX_BATCHED_RESPONSE_BYTES = 64 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 1024;
+	/** TLS records encrypted into the outbound buffer before it's written to the socket. */
+	private static final int RECORDS_PER_SEND = 4;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	/** How often each loop looks for connections past a deadline. */
+	private static final long SWEEP_INTERVAL_MILLIS = 250;
+
+	private final ServerOptions options;
+	private final TlsConfig tls;
+	private final RequestDispatcher dispatcher;
+	private final Metrics metrics;
+	private final ConnectionGovernor governor;
+	private final BufferPool packetBuffers;
+	private final BufferPool appBuffers;
+	private final BufferPool sendBuffers;
+
+	public NioServer(ServerOptions options, TlsConfig tls, RequestDispatcher dispatcher,
+			ConnectionGovernor governor) {
+		this.options = options;
+		this.tls = tls;
+		this.dispatcher = dispatcher;
+		this.metrics = dispatcher.getMetrics();
+		this.governor = governor;
+		SSLSession session = tls.createEngine().getSession();
+		this.packetBuffers = new BufferPool(session.getPacketBufferSize(), MAX_POOLED_BUFFERS);
+		this.appBuffers = new BufferPool(session.getApplicationBufferSize(), MAX_POOLED_BUFFERS);
+		this.sendBuffers = new BufferPool(RECORDS_PER_SEND * session.getPacketBufferSize(), MAX_POOLED_BUFFERS);
+	}
+
+	/**
+	 * Binds the listening channel and runs the event loops; only returns if they all die.
+	 *
+	 * @throws {@link IOException} if the port is already in use.
+	 */
+	public void run() throws IOException, InterruptedException {
+		List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>();
+		for (int i = 0; i < options.listeners; i++) {
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			if (options.listeners > 1) {
+				Server.reusePort(serverChannel.socket());
+			}
+			serverChannel.bind(new InetSocketAddress(options.serverPort), options.acceptBacklog);
+			serverChannel.configureBlocking(false);
+			serverChannels.add(serverChannel);
+		}
+		System.out.println(String.format(
+				"Server bound and listening to port %d (nio, %d event loops, %d listening sockets)",
+				options.serverPort, options.eventLoops, options.listeners));
+
+		List<Thread> loops = new ArrayList<Thread>();
+		for (int i = 0; i < options.eventLoops; i++) {
+			Thread loop = new Thread(new EventLoop(serverChannels.get(i % serverChannels.size())), "nio-loop-" + i);
+			loop.start();
+			loops.add(loop);
+		}
+		for (Thread loop : loops) {
+			loop.join();
+		}
+	}
+
+	/** A connection's deadline, as queued in its {@link EventLoop}. */
+	private static final class Scheduled {
+		static final Comparator<Scheduled> BY_DEADLINE = new Comparator<Scheduled>() {
+			@Override
+			public int compare(Scheduled a, Scheduled b) {
+				return Long.compare(a.deadlineMillis, b.deadlineMillis);
+			}
+		};
+
+		final Connection connection;
+		final long deadlineMillis;
+
+		Scheduled(Connection connection, long deadlineMillis) {
+			this.connection = connection;
+			this.deadlineMillis = deadlineMillis;
+		}
+	}
+
+	private final class EventLoop implements Runnable {
+		private final ServerSocketChannel serverChannel;
+		private final Selector selector;
+		/**
+		 * The loop's connections by deadline, so a sweep only looks at those that are due.
+		 * Deadlines mostly move later, and then the entry is left where it is and checked again
+		 * when it comes up; a connection is only queued anew when its deadline moves earlier,
+		 * and the entry it leaves behind is skipped once it comes up.
+		 */
+		private final PriorityQueue<Scheduled> deadlines = new PriorityQueue<Scheduled>(64, Scheduled.BY_DEADLINE);
+
+		EventLoop(ServerSocketChannel serverChannel) throws IOException {
+			this.serverChannel = serverChannel;
+			this.selector = Selector.open();
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+
+		@Override
+		public void run() {
+			long lastSweep = System.currentTimeMillis();
+			while (true) {
+				try {
+					selector.select(SWEEP_INTERVAL_MILLIS);
+				} catch (IOException e) {
+					System.out.println("Selector failed, stopping event loop. Details: " + e);
+					return;
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						Connection connection = (Connection) key.attachment();
+						connection.handle();
+						schedule(connection);
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+					closeExpiredConnections(now);
+					lastSweep = now;
+				}
+			}
+		}
+
+		private void accept() {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				System.out.println("IOException in accept()");
+				return;
+			}
+			if (channel == null) {
+				return; // another loop got to it first.
+			}
+			long acceptedNanos = System.nanoTime();
+			ConnectionGovernor.Admission admission = governor.admit();
+			if (admission == ConnectionGovernor.Admission.DROP) {
+				ConnectionGovernor.reset(channel.socket());
+				return;
+			}
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				SSLEngine engine = tls.createEngine();
+				engine.beginHandshake();
+				Connection connection = new Connection(channel, engine, admission);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				metrics.connectionOpened();
+				connection.handshakeStart = metrics.lap(Metrics.Phase.ACCEPT, acceptedNanos);
+				connection.handshakeStartMillis = System.currentTimeMillis();
+				schedule(connection);
+			} catch (IOException e) {
+				metrics.failed(Metrics.Failure.IO);
+				governor.release(admission);
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+					// nothing more to do.
+				}
+			}
+		}
+
+		/** Queues the connection's deadline, unless one at least as early is queued already. */
+		private void schedule(Connection connection) {
+			if (connection.closed) {
+				return;
+			}
+			long deadline = connection.deadline();
+			if (connection.scheduledMillis == 0 || deadline < connection.scheduledMillis) {
+				connection.scheduledMillis = deadline;
+				deadlines.add(new Scheduled(connection, deadline));
+			}
+		}
+
+		private void closeExpiredConnections(long now) {
+			Scheduled due;
+			while ((due = deadlines.peek()) != null && due.deadlineMillis < now) {
+				deadlines.poll();
+				Connection connection = due.connection;
+				if (connection.closed || due.deadlineMillis != connection.scheduledMillis) {
+					continue; // superseded by an earlier deadline.
+				}
+				connection.scheduledMillis = 0;
+				ConnectionGovernor.Timeout expired = connection.expired(now);
+				if (expired != null) {
+					metrics.timedOut(expired);
+					connection.close();
+				} else {
+					schedule(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One TLS connection. Network buffers are borrowed from the pools only while they hold
+	 * bytes, so an idle keep-alive connection costs little more than its socket. Responses are
+	 * queued as buffers and encrypted straight out of them, including the off-heap resource
+	 * bodies, so no heap copy of a body is ever made.
+	 */
+	private final class Connection implements ResponseWriter {
+		private final SocketChannel channel;
+		private final SSLEngine engine;
+		private SelectionKey key;
+		private ByteBuffer netIn;
+		private ByteBuffer netOut;
+		private ByteBuffer appIn;
+		/** Decrypted request bytes not yet parsed. */
+		private byte[] requestBytes = new byte[1024];
+		private int requestLength = 0;
+		/** Re-parsed for every request; see {@link HTTPRequest}. */
+		private final HTTPRequest request;
+		/** Plaintext response buffers not yet encrypted, and the first one with bytes left. */
+		private ByteBuffer[] pendingOut;
+		private int pendingIndex = 0;
+		private final List<ByteBuffer> queuedOut = new ArrayList<ByteBuffer>();
+		private long queuedBytes = 0;
+		private long bytesWritten = 0;
+		private int served = 0;
+		private boolean closeAfterFlush = false;
+		private boolean closed = false;
+		private long lastActive = System.currentTimeMillis();
+		/** When the handshake began, or 0 once it's done and timed. */
+		private long handshakeStart;
+		private long handshakeStartMillis;
+		/** When the first bytes of a request not yet complete arrived, or 0 if there are none. */
+		private long headerStartMillis = 0;
+		/**
+		 * While there's a {@link #pendingOut} to send, when the client last took some of it (or
+		 * we started); 0 otherwise.
+		 */
+		private long writeProgressMillis = 0;
+		/** The deadline the connection is queued under in its loop, or 0 if it isn't. */
+		private long scheduledMillis = 0;
+		private final ConnectionGovernor.Admission admission;
+		/** Set once the handshake has negotiated HTTP/2. */
+		private Http2Connection http2;
+		/** The body of the request being read, if it has one we're still waiting for. */
+		private RequestBody body;
+		/** The body of the response being sent, if it's streamed and not all queued yet. */
+		private ResponseBody streaming;
+
+		Connection(SocketChannel channel, SSLEngine engine, ConnectionGovernor.Admission admission) {
+			this.channel = channel;
+			this.engine = engine;
+			this.admission = admission;
+			this.request = new HTTPRequest(channel.socket().getInetAddress());
+		}
+
+		void handle() {
+			try {
+				process();
+			} catch (IOException e) {
+				metrics.failed(Metrics.Failure.IO);
+				close();
+			} catch (RuntimeException e) {
+				metrics.failed(Metrics.Failure.INTERNAL);
+				close();
+			}
+		}
+
+		private void process() throws IOException {
+			lastActive = System.currentTimeMillis();
+			if (!flushNet() || !pumpInbound()) {
+				return;
+			}
+			if (handshakeStart != 0 && handshakeDone()) {
+				metrics.lap(Metrics.Phase.HANDSHAKE, handshakeStart);
+				metrics.handshakeCompleted(TlsConfig.isResumed(engine.getSession(), handshakeStartMillis));
+				handshakeStart = 0;
+				if (Http2Connection.PROTOCOL.equals(engine.getApplicationProtocol())) {
+					metrics.http2ConnectionOpened();
+					http2 = new Http2Connection(dispatcher, request, options.http2MaxStreams,
+							admission == ConnectionGovernor.Admission.REJECT);
+				}
+			}
+			while (handshakeDone()) {
+				if (pendingOut == null) {
+					serveRequests();
+					if (pendingOut == null) {
+						break;
+					}
+				}
+				if (!flushOutput()) {
+					return; // the socket is full; we'll be called again once it's writable.
+				}
+			}
+			if (closeAfterFlush) {
+				close();
+				return;
+			}
+			releaseIdleBuffers();
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		/** Returns the deadline the connection has missed, if any. */
+		ConnectionGovernor.Timeout expired(long now) {
+			return now > deadline() ? pendingTimeout() : null;
+		}
+
+		/** What the connection has to get done next, or be closed; see {@link #deadline}. */
+		private ConnectionGovernor.Timeout pendingTimeout() {
+			if (handshakeStart != 0) {
+				return ConnectionGovernor.Timeout.HANDSHAKE;
+			}
+			if (writeProgressMillis != 0) {
+				return ConnectionGovernor.Timeout.WRITE;
+			}
+			if (headerStartMillis != 0) {
+				return ConnectionGovernor.Timeout.HEADER;
+			}
+			return ConnectionGovernor.Timeout.IDLE;
+		}
+
+		/** When the connection will have missed its {@link #pendingTimeout}, as things stand. */
+		long deadline() {
+			switch (pendingTimeout()) {
+				case HANDSHAKE:
+					return handshakeStartMillis + options.handshakeTimeoutMillis;
+				case WRITE:
+					return writeProgressMillis + options.writeTimeoutMillis;
+				case HEADER:
+					return headerStartMillis + options.headerTimeoutMillis;
+				default:
+					return lastActive + options.idleTimeoutMillis;
+			}
+		}
+
+		private boolean handshakeDone() {
+			SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+			return status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+					|| status == SSLEngineResult.HandshakeStatus.FINISHED;
+		}
+
+		/**
+		 * Reads what the socket has and feeds it through the engine, running the handshake as
+		 * needed. Decrypted bytes end up in {@link #requestBytes}.
+		 *
+		 * @return {@code false} if the connection closed or is waiting for the socket to drain.
+		 */
+		private boolean pumpInbound() throws IOException {
+			if (netIn == null) {
+				netIn = packetBuffers.acquire();
+			}
+			// Don't read further requests while we still owe the client earlier responses.
+			if (pendingOut == null && streaming == null && channel.read(netIn) < 0) {
+				close();
+				return false;
+			}
+			while (true) {
+				SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+				if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					Runnable task;
+					while ((task = engine.getDelegatedTask()) != null) {
+						task.run();
+					}
+					continue;
+				}
+				if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					if (!wrap(EMPTY)) {
+						return false;
+					}
+					continue;
+				}
+				if (netIn.position() == 0) {
+					return true;
+				}
+				if (appIn == null) {
+					appIn = appBuffers.acquire();
+				}
+				netIn.flip();
+				SSLEngineResult result = engine.unwrap(netIn, appIn);
+				netIn.compact();
+				drainAppIn();
+				switch (result.getStatus()) {
+					case BUFFER_UNDERFLOW:
+						return true; // wait for the rest of the TLS record.
+					case BUFFER_OVERFLOW:
+						continue; // appIn was just drained, so try again.
+					case CLOSED:
+						close();
+						return false;
+					default:
+						if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+								&& engine.getHandshakeStatus() == status) {
+							return true;
+						}
+				}
+			}
+		}
+
+		private void drainAppIn() throws IOException {
+			appIn.flip();
+			int length = appIn.remaining();
+			if (requestLength + length > HTTPRequest.MAX_BUFFERED_BYTES) {
+				// Requests are parsed after every read, so this is a head that never ends.
+				throw new HTTPRequest.MalformedRequestException("431 Request Header Fields Too Large",
+						"request head too large");
+			}
+			if (requestLength + length > requestBytes.length) {
+				requestBytes = Arrays.copyOf(requestBytes,
+						Math.min(Math.max(2 * requestBytes.length, requestLength + length), HTTPRequest.MAX_BUFFERED_BYTES));
+			}
+			appIn.get(requestBytes, requestLength, length);
+			requestLength += length;
+			appIn.clear();
+		}
+
+		/**
+		 * Answers every complete request in {@link #requestBytes}, in order, batching the
+		 * responses into {@link #pendingOut}. A streamed response holds up the ones after it
+		 * until it has all been queued.
+		 */
+		private void serveRequests() throws IOException {
+			if (http2 != null) {
+				serveHttp2();
+				return;
+			}
+			if (streaming != null && !queueStreamed()) {
+				startSending(System.currentTimeMillis());
+				return;
+			}
+			int start = 0;
+			while (!closeAfterFlush && streaming == null && queuedBytes < MAX_BATCHED_RESPONSE_BYTES) {
+				if (body != null) {
+					try {
+						start = body.receive(requestBytes, start, requestLength);
+					} catch (HTTPRequest.MalformedRequestException e) {
+						metrics.failed(Metrics.Failure.MALFORMED);
+						body.abort();
+						dispatcher.sendMalformed(body.request, this, e);
+						body = null;
+						closeAfterFlush = true;
+						start = requestLength;
+						break;
+					}
+					if (!body.isComplete()) {
+						break;
+					}
+					RequestBody complete = body;
+					body = null;
+					if (!dispatcher.finishBody(complete, this)) {
+						closeAfterFlush = true;
+					}
+					continue;
+				}
+				int end;
+				long parseStart = System.nanoTime();
+				try {
+					end = request.parse(requestBytes, start, requestLength);
+				} catch (HTTPRequest.MalformedRequestException e) {
+					metrics.failed(Metrics.Failure.MALFORMED);
+					dispatcher.sendMalformed(request, this, e);
+					closeAfterFlush = true;
+					start = requestLength;
+					break;
+				}
+				if (end < 0) {
+					break;
+				}
+				start = end;
+				metrics.lap(Metrics.Phase.PARSE, parseStart);
+
+				if (admission == ConnectionGovernor.Admission.REJECT) {
+					dispatcher.sendUnavailable(request, this);
+					closeAfterFlush = true;
+					break;
+				}
+				served++;
+				boolean keepAlive = served < options.maxRequestsPerConnection && request.askingForPersistent();
+				if (request.hasBody()) {
+					body = dispatcher.startBody(request, request.getBodyLength(), keepAlive, this);
+					if (body == null) {
+						closeAfterFlush = true;
+					}
+				} else if (!dispatcher.respond(request, keepAlive, this)) {
+					closeAfterFlush = true;
+				}
+			}
+			System.arraycopy(requestBytes, start, requestBytes, 0, requestLength - start);
+			requestLength -= start;
+			long now = System.currentTimeMillis();
+			if (requestLength == 0 || body != null) {
+				headerStartMillis = 0; // a body only has to keep coming, within the idle timeout.
+			} else if (start > 0 || headerStartMillis == 0) {
+				headerStartMillis = now; // the start of a request we haven't got all of yet.
+			}
+			startSending(now);
+		}
+
+		/**
+		 * Queues the next part of the {@link #streaming} body; it's read only once the last one
+		 * has gone out, so the client's pace sets ours.
+		 *
+		 * @return {@code true} once the whole body has been queued.
+		 */
+		private boolean queueStreamed() throws IOException {
+			ByteBuffer part = streaming.next(true);
+			if (part != null) {
+				queuedOut.add(part);
+				queuedBytes += part.remaining();
+				if (streaming.length() < 0) {
+					bytesWritten += part.remaining();
+				}
+			}
+			if (!streaming.isDone()) {
+				return false;
+			}
+			streaming.close();
+			streaming = null;
+			return true;
+		}
+
+		/**
+		 * Hands what has arrived to the {@link Http2Connection} and queues up to a batch of
+		 * what it has to send. Called again once that's out, until it has nothing more.
+		 */
+		private void serveHttp2() throws IOException {
+			int start = http2.receive(requestBytes, 0, requestLength);
+			System.arraycopy(requestBytes, start, requestBytes, 0, requestLength - start);
+			requestLength -= start;
+			http2.send(this, MAX_BATCHED_RESPONSE_BYTES);
+			if (http2.isDone()) {
+				closeAfterFlush = true;
+			}
+			startSending(System.currentTimeMillis());
+		}
+
+		/** Makes the responses queued so far the {@link #pendingOut} to send. */
+		private void startSending(long now) {
+			if (!queuedOut.isEmpty()) {
+				pendingOut = queuedOut.toArray(new ByteBuffer[queuedOut.size()]);
+				pendingIndex = 0;
+				queuedOut.clear();
+				queuedBytes = 0;
+				writeProgressMillis = now;
+			}
+		}
+
+		@Override
+		public void write(byte[] bytes) {
+			write(ByteBuffer.wrap(bytes));
+		}
+
+		@Override
+		public void write(ByteBuffer bytes) {
+			queuedOut.add(bytes);
+			queuedBytes += bytes.remaining();
+			bytesWritten += bytes.remaining();
+		}
+
+		@Override
+		public boolean transferFile(CachedResponse response, long offset, long length) {
+			return false; // the engine has to encrypt every byte.
+		}
+
+		@Override
+		public void stream(ResponseBody body) {
+			streaming = body;
+			if (body.length() >= 0) {
+				bytesWritten += body.length();
+			}
+		}
+
+		@Override
+		public void flush() {
+			// queued buffers go out once all pipelined requests have been answered.
+		}
+
+		@Override
+		public long bytesWritten() {
+			return bytesWritten;
+		}
+
+		/** Encrypts and sends {@link #pendingOut}; returns {@code false} if the socket filled up. */
+		private boolean flushOutput() throws IOException {
+			while (true) {
+				while (pendingIndex < pendingOut.length && !pendingOut[pendingIndex].hasRemaining()) {
+					pendingIndex++;
+				}
+				if (pendingIndex == pendingOut.length) {
+					break;
+				}
+				if (!wrap(pendingOut, pendingIndex)) {
+					return false;
+				}
+			}
+			pendingOut = null;
+			writeProgressMillis = 0;
+			return true;
+		}
+
+		private boolean wrap(ByteBuffer source) throws IOException {
+			return wrap(new ByteBuffer[] {source}, 0);
+		}
+
+		/**
+		 * Encrypts {@code sources[offset..]}, record by record, until they're done or the outbound
+		 * buffer has no room for another record, and sends what it holds in one write.
+		 */
+		private boolean wrap(ByteBuffer[] sources, int offset) throws IOException {
+			if (netOut == null) {
+				netOut = sendBuffers.acquire();
+			}
+			while (true) {
+				SSLEngineResult result = engine.wrap(sources, offset, sources.length - offset, netOut);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					flushNet();
+					throw new IOException("SSLEngine closed");
+				}
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					if (!flushNet()) {
+						return false;
+					}
+				} else if (result.bytesConsumed() == 0 || netOut.remaining() < packetBuffers.bufferSize()) {
+					break;
+				}
+			}
+			return flushNet();
+		}
+
+		/** Writes out encrypted bytes; switches to waiting for writability if they don't all fit. */
+		private boolean flushNet() throws IOException {
+			if (netOut == null || netOut.position() == 0) {
+				return true;
+			}
+			netOut.flip();
+			if (channel.write(netOut) > 0 && writeProgressMillis != 0) {
+				writeProgressMillis = System.currentTimeMillis();
+			}
+			netOut.compact();
+			if (netOut.position() > 0) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return false;
+			}
+			return true;
+		}
+
+		private void releaseIdleBuffers() {
+			if (netIn != null && netIn.position() == 0) {
+				packetBuffers.release(netIn);
+				netIn = null;
+			}
+			if (netOut != null && netOut.position() == 0) {
+				sendBuffers.release(netOut);
+				netOut = null;
+			}
+			if (appIn != null) {
+				appBuffers.release(appIn);
+				appIn = null;
+			}
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (body != null) {
+				body.abort();
+				body = null;
+			}
+			if (streaming != null) {
+				streaming.close();
+				streaming = null;
+			}
+			if (http2 != null) {
+				http2.close();
+			}
+			metrics.connectionClosed();
+			governor.release(admission);
+			try {
+				// Best-effort close_notify; a client that's already gone won't get it anyway.
+				engine.closeOutbound();
+				if (netOut == null) {
+					netOut = sendBuffers.acquire();
+				}
+				engine.wrap(EMPTY, netOut);
+				netOut.flip();
+				channel.write(netOut);
+			} catch (IOException e) {
+				// the client is gone; nothing to notify.
+			}
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// it's ok; the client already closed the connection.
+			}
+			if (netIn != null) {
+				packetBuffers.release(netIn);
+				netIn = null;
+			}
+			if (netOut != null) {
+				sendBuffers.release(netOut);
+				netOut = null;
+			}
+			if (appIn != null) {
+				appBuffers.release(appIn);
+				appIn = null;
+			}
+		}
+	}
+}
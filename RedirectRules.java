@@ -0,0 +1,338 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The redirects from www/redirect.defs, compiled for lookup. One rule per line:
+ *
+ * <pre>
+ * # comment
+ * /old-page          /new-page
+ * /blog/&#42;/feed       /feeds/$1
+ * /old/*             /new/$1
+ * /gone/*            http://example.com/
+ * </pre>
+ *
+ * A {@code *} segment matches exactly one path segment, except as the last segment, where it
+ * matches the rest of the path (possibly several segments, possibly nothing). {@code $1} to
+ * {@code $9} in the target are replaced with what the wildcards matched, left to right;
+ * {@code $$} is a literal {@code $}. What they matched comes from the request, so it's
+ * percent-encoded down to RFC 3986 path characters before it goes into a target.
+ *
+ * <p>Precedence doesn't depend on the order of the file: a rule without wildcards beats any
+ * rule with them, and otherwise, comparing segment by segment from the left, a literal segment
+ * beats {@code *}, which beats a trailing {@code *}. Of two rules with the same pattern the
+ * first one wins.
+ *
+ * <p>Rules without wildcards are in a hash map of pre-rendered 301s, as they always were.
+ * The rest are compiled into a trie of path segments, so matching walks the path once (with
+ * a little backtracking past wildcards) however many rules there are. Targets that don't use
+ * captures are pre-rendered too; only substituted targets are rendered per request.
+ */
+final class RedirectRules {
+	private static final String[] NO_LABELS = new String[0];
+	private static final Node[] NO_NODES = new Node[0];
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private static final class Rule {
+		final int lineNumber;
+		/** The target split at its captures: {@code literals[0] $refs[0] literals[1] ...}. */
+		final String[] literals;
+		final int[] refs;
+		/** Pre-rendered, if the target has no captures. */
+		final CachedResponse response;
+
+		Rule(int lineNumber, String[] literals, int[] refs) {
+			this.lineNumber = lineNumber;
+			this.literals = literals;
+			this.refs = refs;
+			this.response = refs.length == 0 ? ResourceMap.render301(literals[0]) : null;
+		}
+
+		CachedResponse respond(String path, int[] captures) {
+			if (response != null) {
+				return response;
+			}
+			StringBuilder target = new StringBuilder(literals[0]);
+			for (int i = 0; i < refs.length; i++) {
+				int ref = refs[i] - 1;
+				appendPathEncoded(target, path, captures[2 * ref], captures[2 * ref + 1]);
+				target.append(literals[i + 1]);
+			}
+			return ResourceMap.render301(target.toString());
+		}
+
+		/**
+		 * Appends {@code path[start, end)}, percent-encoding all but the characters allowed in a
+		 * path (RFC 3986 pchar, and "/"). Escapes already in the path are kept as they are.
+		 */
+		private static void appendPathEncoded(StringBuilder target, String path, int start, int end) {
+			for (int i = start; i < end; i++) {
+				char c = path.charAt(i);
+				if (isPathChar(c) || (c == '%' && i + 2 < end && isHex(path.charAt(i + 1)) && isHex(path.charAt(i + 2)))) {
+					target.append(c);
+				} else if (c < 0x100) {
+					appendEscape(target, c); // request heads are read as ISO-8859-1, so this is the byte.
+				} else {
+					int codePoint = path.codePointAt(i);
+					i += Character.charCount(codePoint) - 1;
+					for (byte b : new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8)) {
+						appendEscape(target, b & 0xff);
+					}
+				}
+			}
+		}
+	}
+
+	/** A trie node: what follows a path prefix. Literal children are sorted by label. */
+	private static final class Node {
+		String[] labels = NO_LABELS;
+		Node[] children = NO_NODES;
+		/** Matches any one segment. */
+		Node anySegment;
+		/** A rule whose pattern ends here. */
+		Rule rule;
+		/** A rule whose pattern ends here with a trailing {@code *}, taking the rest of the path. */
+		Rule rest;
+
+		Node child(String label) {
+			int index = Arrays.binarySearch(labels, label);
+			if (index >= 0) {
+				return children[index];
+			}
+			index = -index - 1;
+			Node child = new Node();
+			labels = insert(labels, index, label);
+			children = insert(children, index, child);
+			return child;
+		}
+
+		/** The literal child for {@code path[start, end)}, without allocating. */
+		Node find(String path, int start, int end) {
+			int low = 0;
+			int high = labels.length - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int comparison = compare(labels[middle], path, start, end);
+				if (comparison < 0) {
+					low = middle + 1;
+				} else if (comparison > 0) {
+					high = middle - 1;
+				} else {
+					return children[middle];
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Map<String, Rule> exact = new HashMap<String, Rule>();
+	private final Node root = new Node();
+	/** The most wildcards in any one pattern. */
+	private int maxCaptures = 0;
+	private int wildcardRules = 0;
+
+	private RedirectRules() {}
+
+	/**
+	 * Compiles redirect.defs. Lines that can't be used are reported and skipped, so one bad
+	 * rule doesn't take the others down with it.
+	 */
+	public static RedirectRules parse(String defs) {
+		RedirectRules rules = new RedirectRules();
+		String[] lines = defs.split("\n");
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String error = rules.add(line.split("\\s+"), i + 1);
+			if (error != null) {
+				System.out.println(String.format("redirect.defs line %d: %s; skipping \"%s\"", i + 1, error, line));
+			}
+		}
+		System.out.println(String.format("Loaded %d redirects (%d with wildcards)",
+				rules.exact.size() + rules.wildcardRules, rules.wildcardRules));
+		return rules;
+	}
+
+	public static RedirectRules empty() {
+		return new RedirectRules();
+	}
+
+	/** Returns the redirect for {@code path}, or {@code null} if no rule matches it. */
+	public CachedResponse find(String path) {
+		Rule rule = exact.get(path);
+		if (rule != null) {
+			return rule.response;
+		}
+		if (wildcardRules == 0 || path.isEmpty() || path.charAt(0) != '/') {
+			return null;
+		}
+		int[] captures = new int[2 * maxCaptures];
+		rule = match(root, path, 1, captures, 0);
+		return rule == null ? null : rule.respond(path, captures);
+	}
+
+	/** Returns an error message, or {@code null} if the rule was added. */
+	private String add(String[] parts, int lineNumber) {
+		if (parts.length != 2) {
+			return "expected \"from to\"";
+		}
+		String pattern = parts[0];
+		if (!pattern.startsWith("/")) {
+			return "the path has to start with /";
+		}
+		String[] segments = pattern.substring(1).split("/", -1);
+		int wildcards = 0;
+		for (String segment : segments) {
+			if (segment.equals("*")) {
+				wildcards++;
+			} else if (segment.indexOf('*') >= 0) {
+				return "* has to be a whole segment";
+			}
+		}
+
+		List<String> literals = new ArrayList<String>();
+		List<Integer> refs = new ArrayList<Integer>();
+		StringBuilder literal = new StringBuilder();
+		String target = parts[1];
+		for (int i = 0; i < target.length(); i++) {
+			char c = target.charAt(i);
+			if (c != '$') {
+				literal.append(c);
+			} else if (i + 1 < target.length() && target.charAt(i + 1) == '$') {
+				literal.append('$');
+				i++;
+			} else {
+				int ref = i + 1 < target.length() ? Character.digit(target.charAt(i + 1), 10) : -1;
+				if (ref < 1 || ref > wildcards) {
+					return String.format("$ has to be $$ or $1 to $%d, one per wildcard", wildcards);
+				}
+				literals.add(literal.toString());
+				literal.setLength(0);
+				refs.add(ref);
+				i++;
+			}
+		}
+		literals.add(literal.toString());
+		int[] refArray = new int[refs.size()];
+		for (int i = 0; i < refArray.length; i++) {
+			refArray[i] = refs.get(i);
+		}
+		Rule rule = new Rule(lineNumber, literals.toArray(new String[0]), refArray);
+
+		if (wildcards == 0) {
+			Rule existing = exact.putIfAbsent(pattern, rule);
+			return existing == null ? null : "same pattern as line " + existing.lineNumber;
+		}
+		Node node = root;
+		for (int i = 0; i < segments.length - 1; i++) {
+			if (segments[i].equals("*")) {
+				if (node.anySegment == null) {
+					node.anySegment = new Node();
+				}
+				node = node.anySegment;
+			} else {
+				node = node.child(segments[i]);
+			}
+		}
+		String last = segments[segments.length - 1];
+		Rule existing;
+		if (last.equals("*")) {
+			existing = node.rest;
+			if (existing == null) {
+				node.rest = rule;
+			}
+		} else {
+			node = node.child(last);
+			existing = node.rule;
+			if (existing == null) {
+				node.rule = rule;
+			}
+		}
+		if (existing != null) {
+			return "same pattern as line " + existing.lineNumber;
+		}
+		wildcardRules++;
+		maxCaptures = Math.max(maxCaptures, wildcards);
+		return null;
+	}
+
+	/**
+	 * Matches {@code path[start..]} (the segments after a '/') against the rules below
+	 * {@code node}, most specific first, noting wildcard matches in {@code captures} from index
+	 * {@code capture} on.
+	 */
+	private static Rule match(Node node, String path, int start, int[] captures, int capture) {
+		int end = path.indexOf('/', start);
+		boolean lastSegment = end < 0;
+		if (lastSegment) {
+			end = path.length();
+		}
+
+		Node literal = node.find(path, start, end);
+		if (literal != null) {
+			Rule rule = lastSegment ? literal.rule : match(literal, path, end + 1, captures, capture);
+			if (rule != null) {
+				return rule;
+			}
+		}
+		if (node.anySegment != null) {
+			captures[2 * capture] = start;
+			captures[2 * capture + 1] = end;
+			Rule rule = lastSegment ? node.anySegment.rule : match(node.anySegment, path, end + 1, captures, capture + 1);
+			if (rule != null) {
+				return rule;
+			}
+		}
+		if (node.rest != null) {
+			captures[2 * capture] = start;
+			captures[2 * capture + 1] = path.length();
+			return node.rest;
+		}
+		return null;
+	}
+
+	/** Compares {@code label} with {@code path[start, end)} as {@link String#compareTo} would. */
+	private static int compare(String label, String path, int start, int end) {
+		int length = Math.min(label.length(), end - start);
+		for (int i = 0; i < length; i++) {
+			int difference = label.charAt(i) - path.charAt(start + i);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return label.length() - (end - start);
+	}
+
+	private static String[] insert(String[] array, int index, String value) {
+		String[] grown = Arrays.copyOf(array, array.length + 1);
+		System.arraycopy(array, index, grown, index + 1, array.length - index);
+		grown[index] = value;
+		return grown;
+	}
+
+	private static Node[] insert(Node[] array, int index, Node value) {
+		Node[] grown = Arrays.copyOf(array, array.length + 1);
+		System.arraycopy(array, index, grown, index + 1, array.length - index);
+		grown[index] = value;
+		return grown;
+	}
+
+	private static boolean isPathChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| "-._~!$&'()*+,;=:@/".indexOf(c) >= 0;
+	}
+
+	private static boolean isHex(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	private static void appendEscape(StringBuilder target, int b) {
+		target.append('%').append(HEX[b >> 4]).append(HEX[b & 0xf]);
+	}
+}
@@ -0,0 +1,215 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The body of an HTTP/1.1 request, as it arrives. Like {@link Http2Connection}, it doesn't
+ * care which engine it's on: the connection passes in whatever it has read, and the body takes
+ * what belongs to it, undoing chunked framing, and passes the data on to its
+ * {@link RequestBodyHandler.Body} straight out of the connection's receive buffer. Over
+ * HTTP/2 the {@link Http2Connection} does the framing, and hands over each DATA frame's data
+ * with {@link #receiveFramed}. The most
+ * this holds on to is a partial chunk-size line, so however big the body, it never takes more
+ * memory than the connection's buffer already does.
+ *
+ * <p>The request is a {@link HTTPRequest#detach detached} copy, so it can be answered (and
+ * logged) once the body has arrived, however much of the buffer the body went through.
+ */
+final class RequestBody {
+	/** Longest chunk-size line accepted, extensions included. */
+	private static final int MAX_CHUNK_LINE_BYTES = 1024;
+
+	private enum State {
+		/** Expecting a chunk-size line. */
+		SIZE,
+		DATA,
+		/** Expecting the line break after a chunk's data. */
+		DATA_END,
+		/** Past the last chunk, reading (and ignoring) trailer fields up to a blank line. */
+		TRAILERS,
+		DONE,
+	}
+
+	final HTTPRequest request;
+	final boolean keepAlive;
+	/** Where the data goes, or {@code null} if it's thrown away. */
+	private final RequestBodyHandler.Body sink;
+	private final long maxBytes;
+	/** The body's length, or -1 if it isn't known up front. */
+	private final long length;
+	private final boolean chunked;
+	private State state;
+	/** Data bytes left in the body, or in the current chunk if it's chunked. */
+	private long remaining;
+	private long received = 0;
+	private int trailerBytes = 0;
+	private boolean aborted = false;
+	/** Wraps the receive buffer for {@link #sink}; rewrapped only if the connection grows it. */
+	private ByteBuffer slice;
+
+	/**
+	 * @param length the body's length, or -1 if it isn't known up front: it's chunked, unless
+	 *     it's to be passed in with {@link #receiveFramed}.
+	 * @param sink where the data goes, or {@code null} to throw it away.
+	 */
+	RequestBody(HTTPRequest request, boolean keepAlive, long length, long maxBytes, RequestBodyHandler.Body sink) {
+		this.request = request;
+		this.keepAlive = keepAlive;
+		this.sink = sink;
+		this.maxBytes = maxBytes;
+		this.length = length;
+		this.chunked = length < 0;
+		this.remaining = Math.max(length, 0);
+		this.state = chunked ? State.SIZE : length == 0 ? State.DONE : State.DATA;
+	}
+
+	/**
+	 * Takes the body's bytes from {@code bytes[start, end)}; anything after the body is left
+	 * for the next request.
+	 *
+	 * @return the offset just past what was taken.
+	 * @throws HTTPRequest.MalformedRequestException if the chunked framing is broken, the body
+	 *     is too large, or the handler can't take it.
+	 */
+	public int receive(byte[] bytes, int start, int end) throws HTTPRequest.MalformedRequestException {
+		int pos = start;
+		while (pos < end && state != State.DONE) {
+			if (state == State.DATA) {
+				int length = (int) Math.min(remaining, end - pos);
+				pass(bytes, pos, length);
+				pos += length;
+				remaining -= length;
+				if (remaining == 0) {
+					state = chunked ? State.DATA_END : State.DONE;
+				}
+				continue;
+			}
+			int lineEnd = -1;
+			for (int i = pos; i < end; i++) {
+				if (bytes[i] == '\n') {
+					lineEnd = i;
+					break;
+				}
+			}
+			if (lineEnd < 0) {
+				if (end - pos > MAX_CHUNK_LINE_BYTES) {
+					throw new HTTPRequest.MalformedRequestException("400 Bad Request", "chunk line too long");
+				}
+				break; // wait for the rest of the line.
+			}
+			int contentEnd = lineEnd > pos && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+			if (state == State.SIZE) {
+				chunkSize(bytes, pos, contentEnd);
+			} else if (state == State.DATA_END) {
+				if (contentEnd != pos) {
+					throw new HTTPRequest.MalformedRequestException("400 Bad Request", "chunk longer than its size");
+				}
+				state = State.SIZE;
+			} else if (contentEnd == pos) {
+				state = State.DONE;
+			} else {
+				trailerBytes += lineEnd + 1 - pos;
+				if (trailerBytes > HTTPRequest.MAX_HEADER_BYTES) {
+					throw new HTTPRequest.MalformedRequestException("431 Request Header Fields Too Large",
+							"trailers too large");
+				}
+			}
+			pos = lineEnd + 1;
+		}
+		return pos;
+	}
+
+	/**
+	 * Takes body data that comes framed some other way (an HTTP/2 DATA frame's).
+	 *
+	 * @param last whether this is the end of the body.
+	 * @throws HTTPRequest.MalformedRequestException if the body doesn't match its length, is too
+	 *     large, or the handler can't take it.
+	 */
+	public void receiveFramed(byte[] bytes, int start, int end, boolean last)
+			throws HTTPRequest.MalformedRequestException {
+		int size = end - start;
+		if (size > maxBytes - received) {
+			throw new HTTPRequest.MalformedRequestException("413 Payload Too Large", "request body too large");
+		}
+		if (length >= 0 && (size > remaining || (last && size != remaining))) {
+			throw new HTTPRequest.MalformedRequestException("400 Bad Request", "body doesn't match its Content-Length");
+		}
+		pass(bytes, start, size);
+		if (length >= 0) {
+			remaining -= size;
+		}
+		if (last) {
+			state = State.DONE;
+		}
+	}
+
+	/** Parses a chunk-size line, ignoring any chunk extensions. */
+	private void chunkSize(byte[] bytes, int start, int end) throws HTTPRequest.MalformedRequestException {
+		long size = 0;
+		int pos = start;
+		for (; pos < end; pos++) {
+			int digit = Character.digit(bytes[pos], 16);
+			if (digit < 0) {
+				break;
+			}
+			if (size > (maxBytes - received) >> 4) {
+				throw new HTTPRequest.MalformedRequestException("413 Payload Too Large", "request body too large");
+			}
+			size = 16 * size + digit;
+		}
+		if (pos == start || (pos < end && bytes[pos] != ';' && bytes[pos] != ' ' && bytes[pos] != '\t')) {
+			throw new HTTPRequest.MalformedRequestException("400 Bad Request", "malformed chunk size");
+		}
+		if (size > maxBytes - received) {
+			throw new HTTPRequest.MalformedRequestException("413 Payload Too Large", "request body too large");
+		}
+		remaining = size;
+		state = size == 0 ? State.TRAILERS : State.DATA;
+	}
+
+	private void pass(byte[] bytes, int offset, int length) throws HTTPRequest.MalformedRequestException {
+		received += length;
+		if (sink == null) {
+			return;
+		}
+		if (slice == null || slice.array() != bytes) {
+			slice = ByteBuffer.wrap(bytes);
+		}
+		slice.limit(offset + length).position(offset);
+		try {
+			sink.write(slice);
+		} catch (IOException e) {
+			System.out.println("Couldn't take a request body: " + e.getMessage());
+			throw new HTTPRequest.MalformedRequestException("500 Internal Server Error", "couldn't store the body");
+		}
+	}
+
+	public boolean isComplete() {
+		return state == State.DONE;
+	}
+
+	/** Whether the body is thrown away, rather than going to a {@link RequestBodyHandler}. */
+	public boolean isDiscarded() {
+		return sink == null;
+	}
+
+	/** Data bytes received so far, not counting chunked framing. */
+	public long bytesReceived() {
+		return received;
+	}
+
+	/** Has the handler answer the request, once the body {@link #isComplete}. */
+	int finish(ResponseWriter out) throws IOException {
+		return sink.finish(out, keepAlive);
+	}
+
+	/** Lets the handler know the body won't be finished; does nothing if it was. */
+	public void abort() {
+		if (!aborted && state != State.DONE) {
+			aborted = true;
+			if (sink != null) {
+				sink.abort();
+			}
+		}
+	}
+}
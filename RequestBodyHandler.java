@@ -0,0 +1,39 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Takes the bodies of the POSTs under a path, registered with
+ * {@link RequestDispatcher#addBodyHandler}. A body is handed over as it arrives, a slice of
+ * the connection's receive buffer at a time, so a handler that doesn't keep the bytes on the
+ * heap can take a body of any size without the server's memory noticing.
+ *
+ * <p>On the NIO engine a handler runs on the connection's event loop, between its other
+ * connections' reads and writes, so it should be quick about each slice.
+ */
+interface RequestBodyHandler {
+	/**
+	 * Starts taking a request's body, before any of it has been read (and before the client is
+	 * told to go ahead with a 100 Continue).
+	 *
+	 * @param length the body's length, or -1 if it's chunked and so not known up front.
+	 * @throws HTTPRequest.MalformedRequestException to refuse the body, with the status to answer.
+	 */
+	Body open(HTTPRequest request, long length) throws IOException;
+
+	/** One request's body, on its way in. */
+	interface Body {
+		/** Takes all the remaining bytes of {@code bytes}, which are only valid during the call. */
+		void write(ByteBuffer bytes) throws IOException;
+
+		/**
+		 * The whole body has arrived: writes the response to the request.
+		 *
+		 * @param keepAlive whether the response should keep the connection open.
+		 * @return the status sent.
+		 */
+		int finish(ResponseWriter out, boolean keepAlive) throws IOException;
+
+		/** The body won't be finished, since the client went away or broke the framing. */
+		void abort();
+	}
+}
@@ -0,0 +1,317 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers parsed requests out of the shared resources and redirect rules. Shared by every
+ * connection of both server engines (the blocking {@link ConnectionHandler} and the
+ * {@link NioServer}), so it holds no per-connection state; the content it serves can be
+ * swapped underneath it by the {@link ContentWatcher}.
+ *
+ * <p>Requests with a body go through {@link #startBody} and {@link #finishBody} instead of
+ * {@link #respond}: a POST's body goes to the {@link RequestBodyHandler} for its path as it
+ * arrives, and anything else's is read and thrown away.
+ */
+final class RequestDispatcher {
+	/** The most of a body we'll read only to throw it away; past this, the connection is closed. */
+	private static final long MAX_DISCARDED_BODY_BYTES = 64 * 1024;
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	/** A {@link RequestBodyHandler} and what it takes, from {@link #addBodyHandler}. */
+	private static final class BodyRoute {
+		final String pathPrefix;
+		final RequestBodyHandler handler;
+		final long maxBytes;
+
+		BodyRoute(String pathPrefix, RequestBodyHandler handler, long maxBytes) {
+			this.pathPrefix = pathPrefix;
+			this.handler = handler;
+			this.maxBytes = maxBytes;
+		}
+	}
+
+	private final ResourceLookup resources;
+	private final AccessLog accessLog;
+	private final Metrics metrics;
+	/** Where {@link #metrics} are served, or {@code null} if they aren't. */
+	private final String metricsPath;
+	/** Swapped whole by {@link #setRedirects} when redirect.defs changes. */
+	private volatile RedirectRules redirects;
+	/** Filled in before the server starts serving, and only read after that. */
+	private final List<BodyRoute> bodyRoutes = new ArrayList<BodyRoute>();
+
+	public RequestDispatcher(ResourceLookup resources, RedirectRules redirects,
+			AccessLog accessLog, Metrics metrics, String metricsPath) {
+		this.resources = resources;
+		this.accessLog = accessLog;
+		this.metrics = metrics;
+		this.metricsPath = metricsPath;
+		this.redirects = redirects;
+	}
+
+	public void setRedirects(RedirectRules redirects) {
+		this.redirects = redirects;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sends the bodies of POSTs to paths starting with {@code pathPrefix} to {@code handler},
+	 * up to {@code maxBytes} each. Call before the server starts serving.
+	 */
+	public void addBodyHandler(String pathPrefix, RequestBodyHandler handler, long maxBytes) {
+		bodyRoutes.add(new BodyRoute(pathPrefix, handler, maxBytes));
+	}
+
+	/**
+	 * Writes the response to {@code request} to the given stream, and logs and counts it.
+	 *
+	 * @param keepAlive whether the connection may stay open after this response.
+	 * @return {@code true} if the connection should stay open for another request.
+	 */
+	public boolean respond(HTTPRequest request, boolean keepAlive, ResponseWriter toClientStream)
+			throws IOException {
+		long written = toClientStream.bytesWritten();
+		if (request.getType() != HTTPRequest.Command.GET &&
+				request.getType() != HTTPRequest.Command.HEAD) {
+			// Over HTTP/1.1, POSTs go through startBody; this is an unknown method, which may
+			// frame a body we can't tell the end of, or a POST over HTTP/2.
+			send403(toClientStream, request, String.format("%s not supported.", request.getType()), false);
+			served(request, 403, toClientStream.bytesWritten() - written);
+			return false;
+		}
+
+		int status;
+		if (request.getPath().equals(metricsPath)) {
+			status = sendMetrics(toClientStream, request, keepAlive);
+		} else {
+			long start = System.nanoTime();
+			CachedResponse response = lookup(request);
+			start = metrics.lap(Metrics.Phase.LOOKUP, start);
+			if (response == null) {
+				send404(toClientStream, request, keepAlive);
+				status = 404;
+			} else {
+				status = write(response, request, keepAlive, toClientStream);
+			}
+			metrics.lap(Metrics.Phase.WRITE, start);
+		}
+		served(request, status, toClientStream.bytesWritten() - written);
+		return keepAlive;
+	}
+
+	/**
+	 * Decides what to do with a request's body (see {@link HTTPRequest#hasBody}) before any of
+	 * it is read, and tells the client to go ahead if it's waiting for a 100 Continue.
+	 *
+	 * @param length the body's length, or -1 if it isn't known up front.
+	 * @param keepAlive whether the connection may stay open after the response.
+	 * @return the body, for the connection to feed what arrives until it's complete and then
+	 *     hand to {@link #finishBody}; or {@code null} if the request has been answered without
+	 *     reading the body, in which case the connection has to be closed.
+	 */
+	public RequestBody startBody(HTTPRequest request, long length, boolean keepAlive,
+			ResponseWriter toClientStream) throws IOException {
+		RequestBodyHandler.Body sink = null;
+		long maxBytes = MAX_DISCARDED_BODY_BYTES;
+		if (request.getType() == HTTPRequest.Command.POST) {
+			BodyRoute route = findBodyRoute(request.getPath());
+			if (route == null) {
+				long written = toClientStream.bytesWritten();
+				send403(toClientStream, request, "POST not supported.", false);
+				served(request, 403, toClientStream.bytesWritten() - written);
+				return null;
+			}
+			maxBytes = route.maxBytes;
+			if (length <= maxBytes) {
+				try {
+					sink = route.handler.open(request, length);
+				} catch (HTTPRequest.MalformedRequestException e) {
+					sendMalformed(request, toClientStream, e);
+					return null;
+				} catch (IOException e) {
+					System.out.println("Couldn't take a request body: " + e.getMessage());
+					sendMalformed(request, toClientStream, new HTTPRequest.MalformedRequestException(
+							"500 Internal Server Error", "couldn't store the body"));
+					return null;
+				}
+			}
+		} else if (request.getType() != HTTPRequest.Command.GET && request.getType() != HTTPRequest.Command.HEAD) {
+			respond(request, false, toClientStream);
+			return null;
+		}
+		if (length > maxBytes) {
+			sendMalformed(request, toClientStream,
+					new HTTPRequest.MalformedRequestException("413 Payload Too Large", "request body too large"));
+			return null;
+		}
+		if (request.expectsContinue()) {
+			toClientStream.write(CONTINUE);
+		}
+		return new RequestBody(request.detach(), keepAlive, length, maxBytes, sink);
+	}
+
+	/**
+	 * Answers a request once its body has all arrived: an upload by its handler, anything else
+	 * just as {@link #respond} would have without the body.
+	 *
+	 * @return {@code true} if the connection should stay open for another request.
+	 */
+	public boolean finishBody(RequestBody body, ResponseWriter toClientStream) throws IOException {
+		metrics.bodyReceived(body.bytesReceived());
+		if (body.isDiscarded()) {
+			return respond(body.request, body.keepAlive, toClientStream);
+		}
+		long written = toClientStream.bytesWritten();
+		long start = System.nanoTime();
+		int status = body.finish(toClientStream);
+		metrics.lap(Metrics.Phase.WRITE, start);
+		served(body.request, status, toClientStream.bytesWritten() - written);
+		return body.keepAlive;
+	}
+
+	private BodyRoute findBodyRoute(String path) {
+		for (BodyRoute route : bodyRoutes) {
+			if (path.startsWith(route.pathPrefix)) {
+				return route;
+			}
+		}
+		return null;
+	}
+
+	private void served(HTTPRequest request, int status, long bytes) {
+		accessLog.record(request, status, bytes);
+		metrics.responseSent(status, bytes);
+		if (request.getBadHeaderCount() > 0) {
+			metrics.failed(Metrics.Failure.BAD_HEADER);
+		}
+	}
+
+	/** Returns the representation to send, or {@code null} if there's nothing at that path. */
+	private CachedResponse lookup(HTTPRequest request) throws IOException {
+		// See if this is supposed to be a redirect, first. Redirects and resources are
+		// pre-rendered at load time, so answering them is just a lookup and one write.
+		CachedResponse response = redirects.find(request.getPath());
+		if (response == null && !request.getPath().endsWith(".defs")) {
+			response = resources.find(request.getPath());
+		}
+		if (response == null) {
+			return null;
+		}
+		response = response.negotiate(request.getHeader("Accept-Encoding"));
+		if (response.isNotModified(request.getHeader("If-None-Match"), request.getHeader("If-Modified-Since"))) {
+			response = response.notModified;
+		}
+		return response;
+	}
+
+	/** Sends {@code response}, or the part of it a Range header asks for; returns the status sent. */
+	private int write(CachedResponse response, HTTPRequest request, boolean keepAlive,
+			ResponseWriter toClientStream) throws IOException {
+		String range = request.getHeader("Range");
+		if (range != null && request.getType() == HTTPRequest.Command.GET && response.status == 200) {
+			int status = ByteRanges.respond(toClientStream, response, range, request.getHeader("If-Range"), keepAlive);
+			if (status != 0) {
+				return status;
+			}
+		}
+		response.writeTo(toClientStream, request.getType(), keepAlive);
+		return response.status;
+	}
+
+	private void send404(ResponseWriter toClientStream, HTTPRequest request, boolean keepAlive) throws IOException {
+		String responseBody = new StringBuilder()
+				.append("<HTML><HEAD><TITLE>404 Not Found</TITLE></HEAD>\r\n")
+				.append("<BODY><H1>I can't find any resource of the name \r\n")
+				.append(String.format("[%s] on this server.\r\n", Utils.escapeHtml(request.getPath())))
+				.append("</BODY></HTML>\r\n")
+				.toString();
+
+		StringBuilder response = new StringBuilder()
+				.append("HTTP/1.1 404 Not Found\r\n")
+				.append("Content-Type: text/html; charset=UTF-8\r\n")
+				.append(persistentConnection(keepAlive))
+				.append(String.format("Content-Length: %d\r\n\r\n", responseBody.length()));
+		if (request.getType() == HTTPRequest.Command.GET) {
+				response.append(responseBody);
+		}
+		try {
+			toClientStream.write(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+		} catch (IOException e) {
+			metrics.failed(Metrics.Failure.IO); // the client went away before we finished.
+		}
+	}
+
+	private void send403(ResponseWriter toClientStream, HTTPRequest request, String errorDetail, boolean keepAlive) throws IOException {
+		StringBuilder response = new StringBuilder()
+				.append("HTTP/1.1 403 Forbidden\r\n")
+				.append(persistentConnection(keepAlive))
+				.append(String.format("Content-Length: %d\r\n\r\n", errorDetail.length()))
+				.append(errorDetail);
+		toClientStream.write(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Answers a request that couldn't be parsed (see {@link HTTPRequest.MalformedRequestException});
+	 * the connection is closed afterwards.
+	 */
+	public void sendMalformed(HTTPRequest request, ResponseWriter toClientStream,
+			HTTPRequest.MalformedRequestException e) throws IOException {
+		long written = toClientStream.bytesWritten();
+		StringBuilder response = new StringBuilder()
+				.append("HTTP/1.1 ").append(e.status).append("\r\n")
+				.append(persistentConnection(false))
+				.append(String.format("Content-Length: %d\r\n\r\n", e.getMessage().length()))
+				.append(e.getMessage());
+		toClientStream.write(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+		served(request, Integer.parseInt(e.status.substring(0, 3)), toClientStream.bytesWritten() - written);
+	}
+
+	/**
+	 * Answers a request on a connection the {@link ConnectionGovernor} turned away with a 503;
+	 * the connection is closed afterwards.
+	 */
+	public void sendUnavailable(HTTPRequest request, ResponseWriter toClientStream) throws IOException {
+		long written = toClientStream.bytesWritten();
+		toClientStream.write(ConnectionGovernor.SERVICE_UNAVAILABLE);
+		served(request, 503, toClientStream.bytesWritten() - written);
+	}
+
+	/** Sends the {@link Metrics}, plus the resource cache's and access log's own counters. */
+	private int sendMetrics(ResponseWriter toClientStream, HTTPRequest request, boolean keepAlive)
+			throws IOException {
+		StringBuilder body = new StringBuilder();
+		metrics.writeTo(body);
+		Metrics.counter(body, "project2_access_log_dropped_total",
+				"Access log records dropped because the writer fell behind.", accessLog.droppedRecords());
+		if (resources instanceof LazyResourceCache) {
+			LazyResourceCache cache = (LazyResourceCache) resources;
+			Metrics.counter(body, "project2_resource_cache_hits_total", "Resource cache hits.", cache.hits());
+			Metrics.counter(body, "project2_resource_cache_misses_total", "Resource cache misses.", cache.misses());
+			Metrics.counter(body, "project2_resource_cache_evictions_total", "Resources evicted from the cache.",
+					cache.evictions());
+			Metrics.counter(body, "project2_resource_cache_rejections_total",
+					"Loaded resources not admitted to the cache.", cache.rejections());
+		}
+		byte[] bodyBytes = body.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+		StringBuilder response = new StringBuilder()
+				.append("HTTP/1.1 200 OK\r\n")
+				.append("Content-Type: text/plain; version=0.0.4\r\n")
+				.append("Cache-Control: no-store\r\n")
+				.append(persistentConnection(keepAlive))
+				.append(String.format("Content-Length: %d\r\n\r\n", bodyBytes.length));
+		toClientStream.write(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+		if (request.getType() == HTTPRequest.Command.GET) {
+			toClientStream.write(bodyBytes);
+		}
+		return 200;
+	}
+
+    public static String persistentConnection(boolean keepAlive){
+        return "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n";
+    }
+}
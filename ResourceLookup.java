@@ -0,0 +1,22 @@
+import java.io.*;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the pre-rendered 200 response for a web path. Implemented by {@link StaticResources}
+ * (everything loaded up front) and {@link LazyResourceCache} (loaded on first request).
+ */
+interface ResourceLookup {
+	/** Returns the response for {@code webPath}, or {@code null} if there's no such resource. */
+	CachedResponse find(String webPath) throws IOException;
+
+	/**
+	 * Applies a batch of changes to the web root, as seen by the {@link ContentWatcher}.
+	 * Requests see either none or all of the batch, and are never blocked by it.
+	 *
+	 * @param changed files created or modified, by web path.
+	 * @param removed web paths deleted; a path also removes everything below it, so "/" removes
+	 *     everything. Removals are applied before changes.
+	 */
+	void update(Map<String, File> changed, Set<String> removed) throws IOException;
+}
@@ -0,0 +1,241 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+final class ResourceMap {
+	private static final String REDIRECT_DEFS_FILENAME = "/redirect.defs";
+	/** Files at least this big are streamed from disk rather than loaded; see --streamMinBytes. */
+	static final long DEFAULT_STREAM_MIN_BYTES = 64L * 1024 * 1024;
+
+	private ResourceMap() {}
+
+	/**
+	 * Loads every file under www/ into an off-heap {@link ResourceStore} and pre-renders its
+	 * 200 response, keyed by web path. Files of {@code streamMinBytes} or more are only
+	 * rendered {@link CachedResponse#streamed streamed}, and read for each request.
+	 *
+	 * <p>Files are read, hashed and compressed on a thread per core, so a big web root loads
+	 * about as fast as the disk and the cores allow.
+	 */
+	public static Map<String, CachedResponse> loadFiles(final long streamMinBytes) throws IOException {
+		final ResourceStore store = new ResourceStore();
+		List<String> webPaths = new ArrayList<String>();
+		List<Callable<CachedResponse>> loads = new ArrayList<Callable<CachedResponse>>();
+		int streamed = 0;
+		for (Map.Entry<String, File> entry : indexFiles().entrySet()) {
+			final String relativeWebPath = entry.getKey();
+			final File file = entry.getValue();
+			if (isStreamed(file, streamMinBytes)) {
+				streamed++;
+			}
+			webPaths.add(relativeWebPath);
+			loads.add(new Callable<CachedResponse>() {
+				@Override
+				public CachedResponse call() throws IOException {
+					if (isStreamed(file, streamMinBytes)) {
+						return render200Streamed(relativeWebPath, file);
+					}
+					return render200(relativeWebPath, store.add(file), file);
+				}
+			});
+		}
+
+		Map<String, CachedResponse> resources = new HashMap<String, CachedResponse>();
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try {
+			List<Future<CachedResponse>> loaded = pool.invokeAll(loads);
+			for (int i = 0; i < loaded.size(); i++) {
+				resources.put(webPaths.get(i), getLoaded(loaded.get(i)));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		System.out.println(String.format("stored %d bytes off-heap (%d more deduplicated), %d files streamed from disk",
+				store.storedBytes(), store.dedupedBytes(), streamed));
+		return resources;
+	}
+
+	private static CachedResponse getLoaded(Future<CachedResponse> load) throws IOException {
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for resources to load");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("loading a resource failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Finds every servable file under www/ without reading any of them, keyed by web path.
+	 * Symbolic links are followed, as if their targets were in the tree.
+	 */
+	public static Map<String, File> indexFiles() throws IOException {
+		final Map<String, File> index = new HashMap<String, File>();
+
+		final Path root = webRoot();
+		System.out.println("web root = " + root);
+		Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+				new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				String relativeWebPath = webPath(root, file);
+				if (attrs.isRegularFile() && !relativeWebPath.equals(REDIRECT_DEFS_FILENAME)) {
+					index.put(relativeWebPath, file.toFile());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+				if (e instanceof FileSystemLoopException) {
+					System.out.println("Not following a link back up the tree: " + file);
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				throw e;
+			}
+		});
+		System.out.println(String.format("found %d files", index.size()));
+		return index;
+	}
+
+	static Path webRoot() {
+		return Paths.get(System.getProperty("user.dir"), "www");
+	}
+
+	/** {@code file}'s path under the web root, as a URL path, e.g. "/img/logo.png". */
+	static String webPath(Path root, Path file) {
+		return "/" + root.relativize(file).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Reads a single file on demand and pre-renders its 200 response (streamed, if it's
+	 * {@code streamMinBytes} or more). Used by the {@link LazyResourceCache} instead of
+	 * {@link #loadFiles}.
+	 */
+	public static CachedResponse loadFile(String webPath, File file, long streamMinBytes) throws IOException {
+		if (isStreamed(file, streamMinBytes)) {
+			return render200Streamed(webPath, file);
+		}
+		return render200(webPath, ResourceStore.loadStandalone(file), file);
+	}
+
+	/** Files over 2GB can't be held in a buffer, so they're streamed whatever the threshold. */
+	private static boolean isStreamed(File file, long streamMinBytes) {
+		long length = file.length();
+		return length >= streamMinBytes || length > Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Loads and compiles www/redirect.defs; see {@link RedirectRules} for the format.
+	 */
+	public static RedirectRules loadRedirects() throws IOException {
+		Path redirFile = Paths.get(webRoot() + REDIRECT_DEFS_FILENAME);
+		if (!Files.exists(redirFile)) {
+			System.out.println("No redirects defined (file does not exist).");
+			return RedirectRules.empty();
+		}
+		return RedirectRules.parse(new String(Files.readAllBytes(redirFile), StandardCharsets.UTF_8));
+	}
+
+	static CachedResponse render200(String webPath, ResourceStore.Content content, File file) throws IOException {
+		Map<String, String> headers = headers200(webPath, strongETag(content.sha256), file.lastModified());
+		if (Compression.isCompressible(headers.get("Content-Type"))) {
+			return CachedResponse.renderCompressible("200 OK", headers, content.body, file);
+		}
+		return CachedResponse.render("200 OK", headers, content.body, file);
+	}
+
+	/**
+	 * Renders a packed file's 200 from a {@link ContentPack}. It gets the same headers, ETags
+	 * included, as it would loaded from www/, so clients' caches carry over.
+	 *
+	 * @param encoded its body in each content-coding the pack holds.
+	 */
+	static CachedResponse render200Packed(String webPath, ByteBuffer body, String sha256, long lastModified,
+			Map<String, ByteBuffer> encoded) {
+		Map<String, String> headers = headers200(webPath, strongETag(sha256), lastModified);
+		if (Compression.isCompressible(headers.get("Content-Type"))) {
+			return CachedResponse.renderEncoded("200 OK", headers, body, null, encoded);
+		}
+		return CachedResponse.render("200 OK", headers, body);
+	}
+
+	/** A strong validator: the first 128 bits of the content hash. */
+	private static String strongETag(String sha256) {
+		return "\"" + sha256.substring(0, 32) + "\"";
+	}
+
+	/**
+	 * Renders a file's 200 without reading it. It's sent as it is, uncompressed, and since
+	 * hashing it would mean reading it all, its ETag is made of its length and modification
+	 * time instead, as most servers do.
+	 */
+	static CachedResponse render200Streamed(String webPath, File file) {
+		long length = file.length();
+		String etag = String.format("\"%x-%x\"", length, file.lastModified());
+		return CachedResponse.renderStreamed("200 OK", headers200(webPath, etag, file.lastModified()), file, length);
+	}
+
+	private static Map<String, String> headers200(String webPath, String etag, long lastModified) {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Content-Type", contentTypeFromFilename(webPath));
+		headers.put("Server", "project2");
+		headers.put("ETag", etag);
+		headers.put("Last-Modified", HttpDates.format(lastModified));
+		headers.put("Accept-Ranges", "bytes");
+		return headers;
+	}
+
+	static CachedResponse render301(String newUrl) {
+		String responseBody = new StringBuilder()
+				.append("<HTML><HEAD><TITLE>301 Moved</TITLE></HEAD>\r\n")
+				.append("<BODY><H1>These aren't the droids you're looking for.</H1>\r\n")
+				.append(String.format("This resource has moved <A HREF=\"%s\">here</A>.\r\n", Utils.escapeHtml(newUrl)))
+				.append("</BODY></HTML>\r\n")
+				.toString();
+
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Location", newUrl);
+		headers.put("Content-Type", "text/html; charset=UTF-8");
+		return CachedResponse.render("301 Moved Permanently", headers,
+				ByteBuffer.wrap(responseBody.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	public static String contentTypeFromFilename(String fileName) {
+		if (fileName.endsWith(".html") || fileName.endsWith(".htm")) {
+			return "text/html; charset=utf-8";
+		} else if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg")) {
+			return "image/jpg";
+		} else if (fileName.endsWith(".png")) {
+			return "image/png";
+		} else if (fileName.endsWith(".gif")) {
+			return "image/gif";
+		} else if (fileName.endsWith(".css")) {
+			return "text/css; charset=utf-8";
+		} else if (fileName.endsWith(".txt")) {
+			return "text/plain; charset=utf-8";
+		} else if (fileName.endsWith(".pdf")) {
+			return "application/pdf";
+		} else if (fileName.endsWith(".bz2")) {
+			return "application/bzip2";
+		} else {
+			return "application/octet-stream";
+		}
+	}
+}
@@ -0,0 +1,152 @@
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Off-heap storage for resource bodies, so the heap (and GC pauses) stay small no matter how
+ * big the web root is.
+ *
+ * <p>Small files are copied into large direct-memory arena chunks; large ones into direct
+ * buffers of their own, rather than taking up most of a chunk. Either way the store holds a
+ * copy, not a mapping of the file under www/, so a deploy that rewrites a file in place can't
+ * change (or, by truncating it, pull away) bytes that already went out under the old ETag.
+ * Files with identical contents share one copy. Each stored body is handed out as a read-only
+ * slice of its buffer or chunk, i.e. an offset/length window onto off-heap memory.
+ *
+ * <p>Direct memory is capped by -XX:MaxDirectMemorySize, which defaults to the heap's maximum,
+ * so a big web root needs that raised to fit.
+ *
+ * <p>{@link #add} may be called from several threads at once: files are read and hashed in
+ * parallel, and only deduplicating and copying into a chunk take turns.
+ */
+final class ResourceStore {
+	private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+	/** Files at least this big get a buffer of their own instead of space in a chunk. */
+	private static final long OWN_BUFFER_THRESHOLD = 1024 * 1024;
+
+	/** A stored body plus the SHA-256 of its contents (hex). */
+	static final class Content {
+		public final ByteBuffer body;
+		public final String sha256;
+
+		Content(ByteBuffer body, String sha256) {
+			this.body = body;
+			this.sha256 = sha256;
+		}
+	}
+
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private final Map<String, Content> byDigest = new HashMap<String, Content>();
+	private long storedBytes = 0;
+	private long dedupedBytes = 0;
+
+	/**
+	 * Stores the given file's contents, or returns the existing copy if a file with the same
+	 * contents was stored before.
+	 */
+	public Content add(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(String.format("%s is too large to serve (%d bytes)", file, size));
+			}
+			if (size >= OWN_BUFFER_THRESHOLD) {
+				ByteBuffer own = ByteBuffer.allocateDirect((int) size);
+				readFully(channel, own, file);
+				return dedupe(own, sha256(own), false);
+			}
+			// Read outside the lock, into a staging buffer; only unique contents get copied in.
+			ByteBuffer staged = ByteBuffer.allocate((int) size);
+			readFully(channel, staged, file);
+			return dedupe(staged, sha256(staged), true);
+		}
+	}
+
+	/**
+	 * Reads a file outside of any store, into a direct buffer if it's large, otherwise onto the
+	 * heap; either way the GC reclaims it once it's dropped. Nothing is deduplicated.
+	 */
+	public static Content loadStandalone(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(String.format("%s is too large to serve (%d bytes)", file, size));
+			}
+			ByteBuffer body = size >= OWN_BUFFER_THRESHOLD
+					? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+			readFully(channel, body, file);
+			return new Content(body.asReadOnlyBuffer(), sha256(body));
+		}
+	}
+
+	/** Fills {@code buffer} from the start of the channel, and flips it. */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, File file) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException(String.format("%s shrank while being read", file));
+			}
+		}
+		buffer.flip();
+	}
+
+	public synchronized long storedBytes() {
+		return storedBytes;
+	}
+
+	public synchronized long dedupedBytes() {
+		return dedupedBytes;
+	}
+
+	/**
+	 * Returns the stored copy of {@code body}, storing it first if it's new.
+	 *
+	 * @param copy whether {@code body} is only staged, and has to be copied into a chunk; if not,
+	 *     it's stored as it is.
+	 */
+	private synchronized Content dedupe(ByteBuffer body, String digest, boolean copy) {
+		Content existing = byDigest.get(digest);
+		if (existing != null) {
+			dedupedBytes += body.remaining();
+			return existing;
+		}
+		if (copy) {
+			ByteBuffer chunk = chunkWithRoomFor(body.remaining());
+			int start = chunk.position();
+			chunk.put(body.duplicate());
+			ByteBuffer stored = chunk.duplicate();
+			stored.position(start).limit(chunk.position());
+			body = stored.slice();
+		}
+		Content content = new Content(body.asReadOnlyBuffer(), digest);
+		byDigest.put(digest, content);
+		storedBytes += body.remaining();
+		return content;
+	}
+
+	private ByteBuffer chunkWithRoomFor(int size) {
+		ByteBuffer current = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+		if (current == null || current.remaining() < size) {
+			current = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, size));
+			chunks.add(current);
+		}
+		return current;
+	}
+
+	static String sha256(ByteBuffer body) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(body.duplicate());
+			return String.format("%064x", new BigInteger(1, digest.digest()));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("every JVM ships SHA-256", e);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * A response body produced as it goes out, instead of being held whole like a
+ * {@link CachedResponse}'s: read from an {@link InputStream}, a {@link ReadableByteChannel}
+ * or a {@link Producer} a buffer at a time, so neither the memory it takes nor the time to its
+ * first byte depends on how big it is. It's the other half of a {@link RequestBody}, and like
+ * it, doesn't care which engine it's on.
+ *
+ * <p>The head is written as usual (see {@link #head}), then the body is handed over with
+ * {@link ResponseWriter#stream}. A blocking writer sends it all there and then; the NIO engine
+ * and {@link Http2Connection} take a part each time the last one has gone out, so a slow
+ * client holds back the reads rather than the server's memory filling up. On the NIO engine
+ * that happens on the connection's event loop, so the source should be quick about each read
+ * (a file, or something computed), not wait on the network.
+ *
+ * <p>A body of unknown length goes out chunked over HTTP/1.1, and HTTP/2 frames it anyway;
+ * an HTTP/1.0 client gets it unframed, ended by closing the connection.
+ */
+final class ResponseBody {
+	/** The most body data in one part. */
+	private static final int PART_BYTES = 32 * 1024;
+	/** Room ahead of a part's data for its chunk-size line: up to 8 hex digits and CRLF. */
+	private static final int CHUNK_HEAD_BYTES = 10;
+	private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	/** Generates a body. */
+	interface Producer {
+		/**
+		 * Puts the next bytes of the body into {@code into}, blocking if need be until there are
+		 * some.
+		 *
+		 * @return the bytes put, or -1 once the body is over.
+		 */
+		int produce(ByteBuffer into) throws IOException;
+	}
+
+	private final Producer producer;
+	/** Closed along with the body, or {@code null}. */
+	private final Closeable source;
+	private final long length;
+	/** Data bytes left, if the length is known. */
+	private long remaining;
+	private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_HEAD_BYTES + PART_BYTES + CRLF.length + LAST_CHUNK.length);
+	/** Set by {@link #head} if closing the connection is what ends the body. */
+	private boolean closeDelimited = false;
+	private boolean done = false;
+	private boolean closed = false;
+
+	private ResponseBody(Producer producer, Closeable source, long length) {
+		this.producer = producer;
+		this.source = source;
+		this.length = length;
+		this.remaining = length;
+	}
+
+	/**
+	 * @param length the body's length, or -1 if it isn't known. If it's known, exactly that
+	 *     much is sent; a producer that ends sooner breaks the response off.
+	 */
+	public static ResponseBody of(Producer producer, long length) {
+		return new ResponseBody(producer, null, length);
+	}
+
+	/** Reads the body from a blocking channel, which is closed once the body is over. */
+	public static ResponseBody of(final ReadableByteChannel channel, long length) {
+		return new ResponseBody(new Producer() {
+			@Override
+			public int produce(ByteBuffer into) throws IOException {
+				return channel.read(into);
+			}
+		}, channel, length);
+	}
+
+	/** Reads the body from a stream, which is closed once the body is over. */
+	public static ResponseBody of(InputStream in, long length) {
+		return of(Channels.newChannel(in), length);
+	}
+
+	/** Reads {@code length} bytes of {@code file}, starting at {@code offset}. */
+	public static ResponseBody ofFile(File file, long offset, long length) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		channel.position(offset);
+		return of(channel, length);
+	}
+
+	/**
+	 * Renders the status line and headers to send ahead of the body over HTTP/1.x. A body of
+	 * unknown length goes to an HTTP/1.1 client chunked. An HTTP/1.0 client doesn't know
+	 * chunked framing, so it gets the data as it is, ended by closing the connection, whatever
+	 * {@code keepAlive} says; see {@link #closesConnection}.
+	 *
+	 * @param statusLine e.g. "200 OK".
+	 * @param headers headers other than Connection, Content-Length and Transfer-Encoding.
+	 * @param version the request's HTTP version, e.g. "HTTP/1.1".
+	 */
+	public byte[] head(String statusLine, Map<String, String> headers, String version, boolean keepAlive) {
+		closeDelimited = length < 0 && !"HTTP/1.1".equals(version);
+		StringBuilder head = new StringBuilder()
+				.append("HTTP/1.1 ").append(statusLine).append("\r\n");
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		head.append(RequestDispatcher.persistentConnection(keepAlive && !closeDelimited));
+		if (length >= 0) {
+			head.append("Content-Length: ").append(length).append("\r\n");
+		} else if (!closeDelimited) {
+			head.append("Transfer-Encoding: chunked\r\n");
+		}
+		return head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/** The body's length, or -1 if it isn't known. */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Whether the connection has to be closed once the body is sent, because that's how its
+	 * end is marked (see {@link #head}); the caller mustn't keep it open for another request.
+	 */
+	public boolean closesConnection() {
+		return closeDelimited;
+	}
+
+	/** Whether the last part has been taken with {@link #next}. */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Reads the next part of the body, as it goes on the wire. The part is only good until the
+	 * next call, so the caller has to have sent it by then.
+	 *
+	 * @param chunked whether a body of unknown length needs chunked framing: over HTTP/1.x it
+	 *     does, unless {@link #head} made it close-delimited, while HTTP/2 frames it anyway.
+	 * @return the part (possibly empty, if it only ends the body), or {@code null} once the body
+	 *     is done.
+	 * @throws IOException if the source fails or ends short of the promised length; the
+	 *     response can't be completed, so the connection (or HTTP/2 stream) has to be given up.
+	 */
+	ByteBuffer next(boolean chunked) throws IOException {
+		if (done) {
+			return null;
+		}
+		chunked = chunked && length < 0 && !closeDelimited;
+		int dataStart = chunked ? CHUNK_HEAD_BYTES : 0;
+		buffer.clear().position(dataStart);
+		buffer.limit(dataStart + (int) (length < 0 ? PART_BYTES : Math.min(PART_BYTES, remaining)));
+		boolean ended = length == 0;
+		while (buffer.hasRemaining()) {
+			int read = producer.produce(buffer);
+			if (read < 0) {
+				ended = true;
+				break;
+			}
+			if (read == 0 && buffer.position() > dataStart) {
+				break; // send what we have rather than wait for more.
+			}
+		}
+		int data = buffer.position() - dataStart;
+		if (length >= 0) {
+			remaining -= data;
+			if (ended && remaining > 0) {
+				throw new IOException(String.format("response body ended %d bytes short", remaining));
+			}
+			ended = remaining == 0;
+		}
+		int start = dataStart;
+		buffer.limit(buffer.capacity());
+		if (chunked) {
+			if (data > 0) {
+				buffer.put(CRLF);
+				byte[] size = (Integer.toHexString(data) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+				start = dataStart - size.length;
+				System.arraycopy(size, 0, buffer.array(), start, size.length);
+			}
+			if (ended) {
+				buffer.put(LAST_CHUNK);
+			}
+		}
+		buffer.flip().position(start);
+		done = ended;
+		return buffer;
+	}
+
+	/**
+	 * Sends the whole body to a writer that's done with each buffer once {@code write} returns,
+	 * i.e. a blocking one, and then closes it.
+	 */
+	void writeTo(ResponseWriter out) throws IOException {
+		try {
+			ByteBuffer part;
+			while ((part = next(true)) != null) {
+				out.write(part);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/** Lets go of the source; the body is over, whether or not it was all sent. */
+	public void close() {
+		if (!closed) {
+			closed = true;
+			if (source != null) {
+				try {
+					source.close();
+				} catch (IOException e) {
+					System.out.println("Couldn't close a response body's source: " + e.getMessage());
+				}
+			}
+		}
+	}
+}
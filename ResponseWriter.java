@@ -0,0 +1,42 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Where {@link RequestDispatcher} sends response bytes. Each engine supplies its own: the
+ * blocking engine writes to the socket's stream (or, for plaintext connections, its channel),
+ * the NIO engine queues buffers for its {@link javax.net.ssl.SSLEngine}.
+ */
+interface ResponseWriter {
+	void write(byte[] bytes) throws IOException;
+
+	/**
+	 * Writes the remaining bytes of {@code bytes}. Bodies are shared, read-only, off-heap
+	 * buffers, so callers pass a {@link ByteBuffer#duplicate() duplicate} the writer may consume.
+	 */
+	void write(ByteBuffer bytes) throws IOException;
+
+	/**
+	 * Sends {@code length} bytes of {@code response}'s {@link CachedResponse#file file}, starting
+	 * at {@code offset}, directly, if this writer can do so more cheaply than writing the stored
+	 * copy, and the file is still the one the copy was loaded from.
+	 *
+	 * @return {@code false} if the caller should write the stored body instead.
+	 */
+	boolean transferFile(CachedResponse response, long offset, long length) throws IOException;
+
+	/**
+	 * Sends a body produced as it goes out, after the head (see {@link ResponseBody}), and
+	 * closes it once it's over. A blocking writer sends it before returning; the NIO engine and
+	 * HTTP/2 take over the body and send it a part at a time, as the client takes it, so
+	 * nothing more may be written for this response, nor, on the same HTTP/1.1 connection,
+	 * for later ones until it's done. A body of known length counts toward
+	 * {@link #bytesWritten} in full when it's handed over, one of unknown length as it's sent.
+	 */
+	void stream(ResponseBody body) throws IOException;
+
+	/** Pushes out anything buffered; called at the end of each response. */
+	void flush() throws IOException;
+
+	/** Total bytes handed to this writer so far, including transferred files. */
+	long bytesWritten();
+}
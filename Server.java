@@ -1,74 +1,143 @@
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.net.ssl.*;
-import java.security.KeyStore;
 
 public final class Server {
 	private final int serverPort;
-	private Map<String, byte[]> resourceMap;
-	private Map<String, String> redirectMap;
-	private DataOutputStream toClientStream;
-	private DataInputStream fromClientStream;
-    private SSLServerSocketFactory sslserversocketfactory;
-    private SSLServerSocket sslserversocket;
-    private boolean keepAlive = false;
-
-	public Server(int serverPort) {
-		this.serverPort = serverPort;
-        this.sslserversocketfactory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
+	private final ServerOptions options;
+	private ResourceLookup resources;
+	private RedirectRules redirects;
+	private RequestDispatcher dispatcher;
+	private ConnectionGovernor governor;
+    private final List<SSLServerSocket> sslserversockets = new ArrayList<SSLServerSocket>();
+
+	public Server(ServerOptions options) {
+		this.options = options;
+		this.serverPort = options.serverPort;
 	}
 
 	public void loadResources() throws IOException {
-		resourceMap = ResourceMap.loadFiles();
-		redirectMap = ResourceMap.loadRedirects();
+		if (options.pack != null) {
+			ContentPack pack = ContentPack.open(Paths.get(options.pack));
+			resources = new StaticResources(pack.resources, options.streamMinBytes);
+			redirects = pack.redirects;
+		} else if (options.resourceMode.equals("lazy")) {
+			resources = new LazyResourceCache(ResourceMap.indexFiles(), options.cacheMaxBytes, options.streamMinBytes);
+			redirects = ResourceMap.loadRedirects();
+		} else {
+			resources = new StaticResources(ResourceMap.loadFiles(options.streamMinBytes), options.streamMinBytes);
+			redirects = ResourceMap.loadRedirects();
+		}
+		final AccessLog accessLog = new AccessLog(AccessLog.Level.valueOf(options.accessLogLevel.toUpperCase()),
+				options.accessLog, options.accessLogMaxBytes);
+		accessLog.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				accessLog.close();
+			}
+		});
+		dispatcher = new RequestDispatcher(resources, redirects, accessLog, new Metrics(), options.metricsPath);
+		governor = new ConnectionGovernor(options.maxConnections, dispatcher.getMetrics());
+		if (options.uploadDir != null) {
+			dispatcher.addBodyHandler(options.uploadPath,
+					new FileUploadHandler(Paths.get(options.uploadDir), options.uploadPath), options.maxUploadBytes);
+			System.out.println(String.format("Taking uploads to %s* into %s, up to %d bytes each",
+					options.uploadPath, options.uploadDir, options.maxUploadBytes));
+		}
+		if (options.watch) {
+			new ContentWatcher(resources, dispatcher).start();
+		}
+	}
+
+	public RequestDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	public ConnectionGovernor getGovernor() {
+		return governor;
 	}
 
 	/**
-	 * Creates a socket + binds to the desired server-side port #.
+	 * Creates a socket + binds to the desired server-side port #. With --listeners=N there are
+	 * N sockets on the port, all with SO_REUSEPORT, and the kernel spreads new connections
+	 * across them.
 	 *
-	 * @throws {@link java.io.IOException} if the port is already in use.
+	 * @throws {@link java.io.IOException} if the port is already in use, or N > 1 and the
+	 *     platform has no SO_REUSEPORT.
 	 */
-	public void bind() throws Exception {
-
-        //refs
-        //http://www.java2s.com/Tutorial/Java/0490__Security/KeyStoreExample.htm
-        //http://www.java2s.com/Tutorial/Java/0490__Security/SSLContextandKeymanager.htm
-
-        SSLContext context;
-        KeyManagerFactory kmgmrfactory;
-        KeyStore kstore;
-        char[] storepass = "password".toCharArray();
-        char[] keypass = "password".toCharArray();
-        String storename = "server.jks";
+	public void bind(TlsConfig tls) throws Exception {
+		SSLServerSocketFactory sslServerSocketFactory = tls.context().getServerSocketFactory();
 
-        context = SSLContext.getInstance("TLS");
-        kmgmrfactory = KeyManagerFactory.getInstance("SunX509");
-        FileInputStream fin = new FileInputStream(storename);
-        kstore = KeyStore.getInstance("JKS");
-        kstore.load(fin, storepass);
-
-        kmgmrfactory.init(kstore, keypass);
+		for (int i = 0; i < options.listeners; i++) {
+			SSLServerSocket sslserversocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket();
+			if (options.listeners > 1) {
+				reusePort(sslserversocket);
+			}
+			tls.configure(sslserversocket);
+			sslserversocket.bind(new InetSocketAddress(serverPort), options.acceptBacklog);
+			sslserversockets.add(sslserversocket);
+		}
+		System.out.println(String.format("Server bound and listening to port %d (%d listening sockets)",
+				serverPort, options.listeners));
+	}
 
-        context.init(kmgmrfactory.getKeyManagers(), null, null);
-        SSLServerSocketFactory sslServerSocketFactory = context.getServerSocketFactory();
+	/** Lets several listening sockets share a port; Linux balances connections between them. */
+	static void reusePort(ServerSocket socket) throws IOException {
+		if (!socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+			throw new IOException("SO_REUSEPORT isn't supported here, so --listeners has to be 1.");
+		}
+		socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+	}
 
-        sslserversocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket(serverPort);
-        //sslserversocket = (SSLServerSocket) sslserversocketfactory.createServerSocket(serverPort);
-		System.out.println("Server bound and listening to port " + serverPort);
+	/**
+	 * Accepts on every listening socket, each on a thread of its own, and hands connections to
+	 * that listener's handlers: the first listener's run on {@code executor} (which the
+	 * plaintext listener shares), every other one gets an executor of its own. Only returns if
+	 * all the acceptors die.
+	 */
+	public void acceptForever(ExecutorService executor) throws InterruptedException {
+		List<Thread> acceptors = new ArrayList<Thread>();
+		for (int i = 0; i < sslserversockets.size(); i++) {
+			final SSLServerSocket listener = sslserversockets.get(i);
+			final ExecutorService handlers = i == 0 ? executor
+					: newHandlerExecutor(options.handlerMode, options.poolSize);
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						SSLSocket clientSocket = acceptFromClient(listener);
+						if (clientSocket != null && clientSocket.isConnected()) {
+							dispatch(clientSocket, handlers);
+						}
+					}
+				}
+			}, "tls-acceptor-" + i);
+			acceptor.start();
+			acceptors.add(acceptor);
+		}
+		for (Thread acceptor : acceptors) {
+			acceptor.join();
+		}
 	}
 
 	/**
-	 * Waits for a client to connect, and then sets up stream objects for communication
- 	 * in both directions.
+	 * Waits for a client to connect. The streams for the connection are set up by the
+	 * {@link ConnectionHandler} that ends up serving it.
 	 *
-	 * @return The newly-created client {@link java.net.Socket} if the connection is successfully
+	 * @return The newly-created client {@link javax.net.ssl.SSLSocket} if the connection is successfully
 	 *     established, or {@code null} otherwise.
-	 * @throws {@link java.io.IOException} if the server fails to accept the connection.
 	 */
-	public SSLSocket acceptFromClient() throws IOException {
+	public SSLSocket acceptFromClient(SSLServerSocket sslserversocket) {
 		SSLSocket clientSocket;
 		try {
 			clientSocket = (SSLSocket) sslserversocket.accept();
@@ -82,170 +151,112 @@ public final class Server {
 			System.out.println("IOException in socket.accept()");
 			return null;
 		}
-
-		try {
-			toClientStream = new DataOutputStream(clientSocket.getOutputStream());
-			fromClientStream = new DataInputStream(clientSocket.getInputStream());
-		} catch (IOException e) {
-			System.out.println("exception creating the stream objects.");
-		}
 		return clientSocket;
 	}
 
-	public void handleRequest() throws IOException {
-		List<String> rawRequest = new ArrayList<String>();
-		String inputLine;
-        BufferedReader brdFromClientStream = new BufferedReader(new InputStreamReader(fromClientStream));
-		do {
-			inputLine = brdFromClientStream.readLine();
-			//if (inputLine == null) {
-			//	System.out.println("inputLine was null!\n");
-		//		break;
-		//	}
-			rawRequest.add(inputLine);
-		} while ((inputLine != null) && (inputLine.length() > 0));
-
-		System.out.println(String.format("[%s]", rawRequest));	
-		HTTPRequest request = new HTTPRequest(rawRequest);	
-		System.out.println(request);
-
-		// TODO(ajn): support POST along with GET/HEAD
-		if (request.getType() != HTTPRequest.Command.GET && 
-				request.getType() != HTTPRequest.Command.HEAD) {
-			send403(request, String.format("%s not supported.", request.getType()));
+	/**
+	 * Hands an accepted connection off to its own {@link ConnectionHandler}, run on the
+	 * given executor, unless the {@link ConnectionGovernor} says to reset it right away.
+	 */
+	public void dispatch(Socket clientSocket, ExecutorService executor) {
+		ConnectionGovernor.Admission admission = governor.admit();
+		if (admission == ConnectionGovernor.Admission.DROP) {
+			ConnectionGovernor.reset(clientSocket);
 			return;
 		}
-
-		// See if this is supposed to be a redirect, first.
-		if (redirectMap.containsKey(request.getPath())) {
-			send301(request, redirectMap.get(request.getPath()));
-		} else if (request.getPath().endsWith(".defs") || !resourceMap.containsKey(request.getPath())) {
-			send404(request);
-		} else {
-			byte[] content = resourceMap.get(request.getPath());
-			send200(request, content);	
-		}
-	}
-
-	private void send301(HTTPRequest request, String newUrl) throws IOException {
-		String responseBody = new StringBuilder()
-				.append("<HTML><HEAD><TITLE>301 Moved</TITLE></HEAD>\r\n")
-    		.append("<BODY><H1>These aren't the droids you're looking for.</H1>\r\n")
-    		.append(String.format("This resource has moved <A HREF=\"%s\">here</A>.\r\n", newUrl))
-    		.append("</BODY></HTML>\r\n")
-				.toString();
-
-		StringBuilder response = new StringBuilder()
-				.append("HTTPS/1.1 301 Moved Permanently\r\n")
-				.append(String.format("Location: %s\r\n", newUrl))
-				.append(String.format("Content-Type: text/html; charset=UTF-8\r\n"))
-				.append("Connection: close\r\n")
-				.append(String.format("Content-Length: %d\r\n", responseBody.length()));
-		if (request.getType() == HTTPRequest.Command.GET) {
-				response.append(String.format("\r\n%s", responseBody));
-		}
-		toClientStream.writeBytes(response.toString());
+		executor.execute(new ConnectionHandler(clientSocket, dispatcher, options, governor, admission));
 	}
 
-	private void send404(HTTPRequest request) throws IOException {
-		String responseBody = new StringBuilder()
-				.append("<HTML><HEAD><TITLE>404 Not Found</TITLE></HEAD>\r\n")
-				.append("<BODY><H1>I can't find any resource of the name \r\n")
-				.append(String.format("[%s] on this server.\r\n", request.getPath()))
-				.append("</BODY></HTML>\r\n")
-				.toString();
-
-		StringBuilder response = new StringBuilder()
-				.append("HTTPS/1.1 404 Not Found\r\n")
-				.append("Content-Type: text/html; charset=UTF-8\r\n")
-				.append("Connection: close\r\n")
-				.append(String.format("Content-Length: %d\r\n", responseBody.length()));
-		if (request.getType() == HTTPRequest.Command.GET) {
-				response.append(String.format("\r\n%s\r\n", responseBody));
-		}
-		try {
-			toClientStream.writeBytes(response.toString());	
-		} catch (IOException e) {
-			System.out.println("Client closed the socket before we finished the whole message.");
-		}
-	}
-
-	private void send403(HTTPRequest request, String errorDetail) throws IOException {
-		StringBuilder response = new StringBuilder()
-				.append("HTTPS/1.1 403 Forbidden\r\n")
-				.append("Connection: close\r\n")
-				.append(String.format("Context-Length: %d\r\n", errorDetail.length()));
-		if (request.getType() == HTTPRequest.Command.GET) {
-				response.append(String.format("\r\n%s\r\n", errorDetail));
-		}
-		toClientStream.writeBytes(response.toString());	
+	/**
+	 * Opens the optional plaintext listener on --httpPort and accepts from it on a thread of
+	 * its own. Its connections are blocking {@link SocketChannel}s, so file bodies can be sent
+	 * with sendfile (see {@link ChannelResponseWriter}); otherwise they're served exactly like
+	 * TLS connections.
+	 *
+	 * @throws {@link java.io.IOException} if the port is already in use.
+	 */
+	public void startPlaintextListener(final ExecutorService executor) throws IOException {
+		final ServerSocketChannel httpChannel = ServerSocketChannel.open();
+		httpChannel.bind(new InetSocketAddress(options.httpPort), options.acceptBacklog);
+		System.out.println("Plaintext listener bound and listening to port " + options.httpPort);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					SocketChannel clientChannel;
+					try {
+						clientChannel = httpChannel.accept();
+					} catch (IOException e) {
+						System.out.println("IOException in accept() on the plaintext listener");
+						continue;
+					}
+					dispatch(clientChannel.socket(), executor);
+				}
+			}
+		}, "http-acceptor");
+		// It mustn't keep the JVM up, serving on its own, if the TLS listener fails to start.
+		acceptor.setDaemon(true);
+		acceptor.start();
 	}
 
-	private void send200(HTTPRequest request, byte[] content) throws IOException {
-		StringBuilder response = new StringBuilder()
-				.append("HTTPS/1.1 200 OK\r\n")
-				.append("Content-Type: text/html; charset=utf-8\r\n")
-				.append("Server: project2\r\n")
-				.append(persistentConnection(request.askingForPersistent()))
-				.append(String.format("Content-Length: %d\r\n", content.length));
-		toClientStream.writeBytes(response.toString());
-		if (request.getType() == HTTPRequest.Command.GET) {
-				toClientStream.writeBytes("\r\n");
-				ByteArrayOutputStream outByteStream = new ByteArrayOutputStream();
-				outByteStream.write(content, 0, content.length);
-				outByteStream.writeTo(toClientStream);
+	/**
+	 * Builds the executor that connection handlers run on. "virtual" uses one virtual thread
+	 * per connection when the JVM supports them (JDK 21+), and otherwise falls back to a
+	 * fixed pool of {@code poolSize} platform threads; "pool" always uses the fixed pool.
+	 */
+	static ExecutorService newHandlerExecutor(String mode, int poolSize) {
+		if (mode.equals("virtual")) {
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				System.out.println("Handling connections on virtual threads.");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("Virtual threads not available on this JVM; using a thread pool.");
+			}
 		}
+		System.out.println("Handling connections on a pool of " + poolSize + " threads.");
+		return Executors.newFixedThreadPool(poolSize);
 	}
 
-    public String persistentConnection(boolean persist){
-        if(persist){
-            keepAlive = true;
-        }
-        return "Connection: " + (persist ? "keep-alive" : "close") + "\r\n";
-    }
-
 	public static void main(String argv[]) throws Exception{
-		Map<String, String> flags = Utils.parseCmdlineFlags(argv);
-		if (!flags.containsKey("--serverPort")) {
-			System.out.println("usage: Server --serverPort=12345");
-			System.exit(-1);
-		}
-
-
-		int serverPort = -1;
+		ServerOptions options = null;
+		TlsConfig tls = null;
 		try {
-			serverPort = Integer.parseInt(flags.get("--serverPort"));
-		} catch (NumberFormatException e) {
-			System.out.println("Invalid port number! Must be an integer.");
+			options = ServerOptions.fromFlags(Utils.parseCmdlineFlags(argv));
+			tls = TlsConfig.fromOptions(options);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.exit(-1);
+		} catch (IOException | GeneralSecurityException e) {
+			// A missing keystore, a wrong password, an unreadable secret: say which, not how.
+			System.out.println("Couldn't set up TLS: " + e.getMessage());
 			System.exit(-1);
 		}
 
-		Server server = new Server(serverPort);
+		Server server = new Server(options);
+		ExecutorService executor = null;
 		try {
 			server.loadResources();
-			server.bind();
-			while(true) {
-				Socket clientSocket = server.acceptFromClient();
-				if (clientSocket != null && clientSocket.isConnected()) {
-					try {
-						server.handleRequest();
-					} catch (IOException e) {
-						System.out.println("IO exception handling request, continuing.");
-					}
-					if (!server.keepAlive){
-                        try {
-                            clientSocket.close();
-                        } catch (IOException e) {
-                            System.out.println("it's ok; the server already closed the connection.");
-                        }
-                    } else{
-                        server.keepAlive = false;
-                    }
-				}
+			if (options.engine.equals("blocking") || options.httpPort > 0) {
+				executor = newHandlerExecutor(options.handlerMode, options.poolSize);
+			}
+			if (options.httpPort > 0) {
+				server.startPlaintextListener(executor);
+			}
+			if (options.engine.equals("nio")) {
+				new NioServer(options, tls, server.getDispatcher(), server.getGovernor()).run();
+				return;
 			}
+
+			server.bind(tls);
+			server.acceptForever(executor);
 		} catch (IOException e) {
 			System.out.println("Error communicating with client. aborting. Details: " + e);
+			System.exit(-1);
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
 		}
 	}
 }
-
@@ -0,0 +1,237 @@
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Startup configuration for {@link Server}, built from the parsed command line flags.
+ */
+final class ServerOptions {
+	static final String USAGE = "usage: Server --serverPort=12345 [--httpPort=8080]"
+			+ " [--engine=blocking|nio] [--eventLoops=N]"
+			+ " [--handlerMode=virtual|pool] [--poolSize=N]"
+			+ " [--idleTimeoutMillis=N] [--maxRequestsPerConnection=N]"
+			+ " [--listeners=N] [--maxConnections=N] [--acceptBacklog=N] [--handshakeTimeoutMillis=N]"
+			+ " [--headerTimeoutMillis=N] [--writeTimeoutMillis=N]"
+			+ " [--resourceMode=eager|lazy] [--cacheMaxBytes=N] [--streamMinBytes=N] [--pack=www.pack|off]"
+			+ " [--watch=true]"
+			+ " [--accessLog=access.log] [--accessLogLevel=off|basic|verbose] [--accessLogMaxBytes=N]"
+			+ " [--metricsPath=/_metrics|off]"
+			+ " [--keystore=server.jks] [--keystoreType=JKS|PKCS12]"
+			+ " [--keystorePassword=secret|env:NAME|file:path] [--keyPassword=secret|env:NAME|file:path]"
+			+ " [--tlsProtocols=TLSv1.3,TLSv1.2] [--tlsCipherSuites=A,B,...]"
+			+ " [--tlsSessionCacheSize=N] [--tlsSessionTimeoutSeconds=N] [--tlsSessionTickets=true|false]"
+			+ " [--http2=true|false] [--http2MaxStreams=N]"
+			+ " [--uploadDir=uploads|off] [--uploadPath=/upload/] [--maxUploadBytes=N]";
+	/** Every flag there is, i.e. every one {@link #USAGE} lists. */
+	private static final Set<String> FLAGS = new HashSet<String>();
+
+	static {
+		Matcher flag = Pattern.compile("--\\w+").matcher(USAGE);
+		while (flag.find()) {
+			FLAGS.add(flag.group());
+		}
+	}
+
+	public final int serverPort;
+	/** Port for the optional plaintext listener, or -1 for none. */
+	public final int httpPort;
+	public final String engine;
+	public final int eventLoops;
+	public final String handlerMode;
+	public final int poolSize;
+	public final int idleTimeoutMillis;
+	public final int maxRequestsPerConnection;
+	/**
+	 * Listening sockets on --serverPort, sharing it with SO_REUSEPORT, each with its own
+	 * acceptor thread (blocking engine) or event loops (nio).
+	 */
+	public final int listeners;
+	/** Connections served at once, across both listeners; see {@link ConnectionGovernor}. */
+	public final int maxConnections;
+	/** Connections the kernel may queue for us before refusing more. */
+	public final int acceptBacklog;
+	public final int handshakeTimeoutMillis;
+	/** How long a client has to send a request head once it has started one. */
+	public final int headerTimeoutMillis;
+	/** How long a client may go without taking any of a response off our hands. */
+	public final int writeTimeoutMillis;
+	public final String resourceMode;
+	/** Body bytes the lazy resource cache may hold, compressed variants included. */
+	public final long cacheMaxBytes;
+	/** Files at least this big are read from disk for each request instead of being loaded. */
+	public final long streamMinBytes;
+	/** A {@link ContentPack} to serve instead of loading www/, or {@code null}. */
+	public final String pack;
+	/** Whether to pick up changes under www/ without a restart. */
+	public final boolean watch;
+	public final String accessLog;
+	public final String accessLogLevel;
+	/** Size at which the access log is rotated. */
+	public final long accessLogMaxBytes;
+	/** Path the metrics are served at, or {@code null} to not serve them. */
+	public final String metricsPath;
+	public final String keystore;
+	public final String keystoreType;
+	/** The keystore's password, as given; see {@link TlsConfig#secret}. */
+	public final String keystorePassword;
+	/** The key's password, as given, or {@code null} if it's the keystore's. */
+	public final String keyPassword;
+	/** Protocol versions to enable, comma-separated; the newest the client also has wins. */
+	public final String tlsProtocols;
+	/** Cipher suites in order of preference, comma-separated, or empty for our default order. */
+	public final String tlsCipherSuites;
+	public final int tlsSessionCacheSize;
+	public final int tlsSessionTimeoutSeconds;
+	/** Whether to hand out stateless session tickets, so resumption needn't hit the cache. */
+	public final boolean tlsSessionTickets;
+	/** Whether to offer HTTP/2 through ALPN; see {@link Http2Connection}. */
+	public final boolean http2;
+	/** Requests one HTTP/2 connection may have in progress at once. */
+	public final int http2MaxStreams;
+	/** Where POSTed files are stored, or {@code null} to not take uploads; see {@link FileUploadHandler}. */
+	public final String uploadDir;
+	/** Path prefix uploads are POSTed under, ending in /. */
+	public final String uploadPath;
+	/** Largest upload accepted; bigger ones get 413. */
+	public final long maxUploadBytes;
+
+	private ServerOptions(Map<String, String> flags) {
+		this.serverPort = intFlag(flags, "--serverPort", -1);
+		this.httpPort = intFlag(flags, "--httpPort", -1);
+		this.engine = stringFlag(flags, "--engine", "blocking");
+		if (!engine.equals("blocking") && !engine.equals("nio")) {
+			throw new IllegalArgumentException("Invalid engine! Must be one of: blocking, nio.");
+		}
+		this.eventLoops = intFlag(flags, "--eventLoops", Runtime.getRuntime().availableProcessors());
+		this.handlerMode = stringFlag(flags, "--handlerMode", "virtual");
+		if (!handlerMode.equals("virtual") && !handlerMode.equals("pool")) {
+			throw new IllegalArgumentException("Invalid handler mode! Must be one of: virtual, pool.");
+		}
+		this.poolSize = intFlag(flags, "--poolSize",
+				Math.max(16, 4 * Runtime.getRuntime().availableProcessors()));
+		this.idleTimeoutMillis = intFlag(flags, "--idleTimeoutMillis", 5000);
+		this.maxRequestsPerConnection = intFlag(flags, "--maxRequestsPerConnection", 100);
+		this.listeners = intFlag(flags, "--listeners", 1);
+		if (listeners < 1) {
+			throw new IllegalArgumentException("Invalid number of listeners! Must be at least 1.");
+		}
+		this.maxConnections = intFlag(flags, "--maxConnections", 10000);
+		this.acceptBacklog = intFlag(flags, "--acceptBacklog", 1024);
+		this.handshakeTimeoutMillis = intFlag(flags, "--handshakeTimeoutMillis", 10000);
+		this.headerTimeoutMillis = intFlag(flags, "--headerTimeoutMillis", 10000);
+		this.writeTimeoutMillis = intFlag(flags, "--writeTimeoutMillis", 60000);
+		if (maxConnections < 1 || acceptBacklog < 1 || handshakeTimeoutMillis < 1 || headerTimeoutMillis < 1
+				|| writeTimeoutMillis < 1) {
+			throw new IllegalArgumentException("Invalid connection limits! Must be positive.");
+		}
+		this.resourceMode = stringFlag(flags, "--resourceMode", "eager");
+		if (!resourceMode.equals("eager") && !resourceMode.equals("lazy")) {
+			throw new IllegalArgumentException("Invalid resource mode! Must be one of: eager, lazy.");
+		}
+		this.cacheMaxBytes = longFlag(flags, "--cacheMaxBytes", 256L * 1024 * 1024);
+		this.streamMinBytes = longFlag(flags, "--streamMinBytes", ResourceMap.DEFAULT_STREAM_MIN_BYTES);
+		if (streamMinBytes < 0) {
+			throw new IllegalArgumentException("Invalid --streamMinBytes! Must not be negative.");
+		}
+		String pack = stringFlag(flags, "--pack", "off");
+		this.pack = pack.equals("off") ? null : pack;
+		if (this.pack != null && resourceMode.equals("lazy")) {
+			throw new IllegalArgumentException("Invalid --pack! A pack is served whole; it can't be used with --resourceMode=lazy.");
+		}
+		this.watch = booleanFlag(flags, "--watch", false);
+		if (this.pack != null && watch) {
+			throw new IllegalArgumentException("Invalid --pack! A pack is built from www/ ahead of time; it can't be used with --watch.");
+		}
+		this.accessLog = stringFlag(flags, "--accessLog", "access.log");
+		this.accessLogLevel = stringFlag(flags, "--accessLogLevel", "basic");
+		if (!accessLogLevel.equals("off") && !accessLogLevel.equals("basic") && !accessLogLevel.equals("verbose")) {
+			throw new IllegalArgumentException("Invalid access log level! Must be one of: off, basic, verbose.");
+		}
+		this.accessLogMaxBytes = longFlag(flags, "--accessLogMaxBytes", 64L * 1024 * 1024);
+		String metricsPath = stringFlag(flags, "--metricsPath", "/_metrics");
+		if (!metricsPath.equals("off") && !metricsPath.startsWith("/")) {
+			throw new IllegalArgumentException("Invalid metrics path! Must start with / (or be off).");
+		}
+		this.metricsPath = metricsPath.equals("off") ? null : metricsPath;
+		this.keystore = stringFlag(flags, "--keystore", "server.jks");
+		this.keystoreType = stringFlag(flags, "--keystoreType", "JKS");
+		this.keystorePassword = stringFlag(flags, "--keystorePassword", "password");
+		this.keyPassword = stringFlag(flags, "--keyPassword", null);
+		this.tlsProtocols = stringFlag(flags, "--tlsProtocols", "TLSv1.3,TLSv1.2");
+		this.tlsCipherSuites = stringFlag(flags, "--tlsCipherSuites", "");
+		this.tlsSessionCacheSize = intFlag(flags, "--tlsSessionCacheSize", 20480);
+		this.tlsSessionTimeoutSeconds = intFlag(flags, "--tlsSessionTimeoutSeconds", 4 * 60 * 60);
+		if (tlsSessionCacheSize < 0 || tlsSessionTimeoutSeconds < 0) {
+			throw new IllegalArgumentException("Invalid TLS session cache settings! Must not be negative.");
+		}
+		this.tlsSessionTickets = booleanFlag(flags, "--tlsSessionTickets", true);
+		this.http2 = booleanFlag(flags, "--http2", true);
+		this.http2MaxStreams = intFlag(flags, "--http2MaxStreams", 100);
+		if (http2MaxStreams < 1) {
+			throw new IllegalArgumentException("Invalid --http2MaxStreams! Must be at least 1.");
+		}
+		String uploadDir = stringFlag(flags, "--uploadDir", "off");
+		this.uploadDir = uploadDir.equals("off") ? null : uploadDir;
+		this.uploadPath = stringFlag(flags, "--uploadPath", "/upload/");
+		if (!uploadPath.startsWith("/") || !uploadPath.endsWith("/")) {
+			throw new IllegalArgumentException("Invalid upload path! Must start and end with /.");
+		}
+		this.maxUploadBytes = longFlag(flags, "--maxUploadBytes", 256L * 1024 * 1024);
+		if (maxUploadBytes < 0) {
+			throw new IllegalArgumentException("Invalid --maxUploadBytes! Must not be negative.");
+		}
+	}
+
+	/**
+	 * Builds the options from the flags returned by {@link Utils#parseCmdlineFlags}.
+	 *
+	 * @throws {@link IllegalArgumentException} if a flag is missing, malformed or unknown.
+	 */
+	public static ServerOptions fromFlags(Map<String, String> flags) {
+		if (!flags.containsKey("--serverPort")) {
+			throw new IllegalArgumentException(USAGE);
+		}
+		for (String name : flags.keySet()) {
+			if (!FLAGS.contains(name)) {
+				throw new IllegalArgumentException(String.format("Unknown flag %s!\n%s", name, USAGE));
+			}
+		}
+		return new ServerOptions(flags);
+	}
+
+	private static String stringFlag(Map<String, String> flags, String name, String defaultValue) {
+		return flags.containsKey(name) ? flags.get(name) : defaultValue;
+	}
+
+	private static boolean booleanFlag(Map<String, String> flags, String name, boolean defaultValue) {
+		if (!flags.containsKey(name)) {
+			return defaultValue;
+		}
+		String value = flags.get(name);
+		if (!value.equals("true") && !value.equals("false")) {
+			throw new IllegalArgumentException(String.format("Invalid value for %s! Must be true or false.", name));
+		}
+		return Boolean.parseBoolean(value);
+	}
+
+	private static int intFlag(Map<String, String> flags, String name, int defaultValue) {
+		long value = longFlag(flags, name, defaultValue);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format("Invalid value for %s! Out of range.", name));
+		}
+		return (int) value;
+	}
+
+	private static long longFlag(Map<String, String> flags, String name, long defaultValue) {
+		if (!flags.containsKey(name)) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(flags.get(name));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Invalid value for %s! Must be an integer.", name));
+		}
+	}
+}
@@ -0,0 +1,62 @@
+import java.io.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link ResourceLookup} over responses that were all loaded at startup by
+ * {@link ResourceMap#loadFiles}. Updates build a new map and swap it in whole
+ * (copy-on-write), so lookups never lock or see a half-applied update.
+ */
+final class StaticResources implements ResourceLookup {
+	private volatile Map<String, CachedResponse> resources;
+	/** Files at least this big are streamed; see {@link ResourceMap#loadFiles}. */
+	private final long streamMinBytes;
+
+	public StaticResources(Map<String, CachedResponse> resources, long streamMinBytes) {
+		this.resources = resources;
+		this.streamMinBytes = streamMinBytes;
+	}
+
+	@Override
+	public CachedResponse find(String webPath) {
+		return resources.get(webPath);
+	}
+
+	@Override
+	public synchronized void update(Map<String, File> changed, Set<String> removed) {
+		Map<String, CachedResponse> next = new HashMap<String, CachedResponse>(resources);
+		removeMatching(next, removed);
+		for (Map.Entry<String, File> entry : changed.entrySet()) {
+			try {
+				next.put(entry.getKey(), ResourceMap.loadFile(entry.getKey(), entry.getValue(), streamMinBytes));
+			} catch (IOException e) {
+				System.out.println(String.format("couldn't reload [%s], dropping it: %s", entry.getKey(), e));
+				next.remove(entry.getKey());
+			}
+		}
+		resources = next;
+	}
+
+	/** Removes every key that is, or is below, one of the {@code removed} web paths. */
+	static void removeMatching(Map<String, ?> map, Set<String> removed) {
+		if (removed.isEmpty()) {
+			return;
+		}
+		for (Iterator<String> keys = map.keySet().iterator(); keys.hasNext(); ) {
+			if (matchesAny(keys.next(), removed)) {
+				keys.remove();
+			}
+		}
+	}
+
+	static boolean matchesAny(String webPath, Set<String> removed) {
+		for (String prefix : removed) {
+			if (webPath.equals(prefix) || webPath.startsWith(prefix.endsWith("/") ? prefix : prefix + "/")) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
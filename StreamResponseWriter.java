@@ -0,0 +1,103 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link ResponseWriter} for a blocking socket's {@link OutputStream}.
+ *
+ * <p>Every write to an {@link javax.net.ssl.SSLSocket}'s stream goes out at once as at least
+ * one TLS record of its own, so writing a response's head and body separately would cost two
+ * records and two sends (and, with Nagle, could hold the second one back for a delayed ACK).
+ * Instead, bytes are gathered in one reusable per-connection buffer the size of a full record
+ * and written a record at a time; whatever is left goes out on {@link #flush}, at the end of
+ * the response. A small response is a single record. Off-heap bodies are copied out through
+ * the same buffer, so serving a resource never allocates a heap copy of it.
+ */
+final class StreamResponseWriter implements ResponseWriter {
+	/** The most plaintext a TLS record carries. */
+	private static final int RECORD_BYTES = 16 * 1024;
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[RECORD_BYTES];
+	private int buffered = 0;
+	private long bytesWritten = 0;
+
+	public StreamResponseWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(byte[] bytes) throws IOException {
+		write(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public void write(ByteBuffer bytes) throws IOException {
+		if (bytes.hasArray()) {
+			write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+			bytes.position(bytes.limit());
+			return;
+		}
+		bytesWritten += bytes.remaining();
+		while (bytes.hasRemaining()) {
+			int length = Math.min(bytes.remaining(), buffer.length - buffered);
+			bytes.get(buffer, buffered, length);
+			buffered += length;
+			if (buffered == buffer.length) {
+				out.write(buffer, 0, buffered);
+				buffered = 0;
+			}
+		}
+	}
+
+	/**
+	 * Tops up the buffer and sends it once it's full, writes whole records' worth straight from
+	 * {@code bytes}, and keeps the rest for the next write or the flush.
+	 */
+	private void write(byte[] bytes, int offset, int length) throws IOException {
+		bytesWritten += length;
+		if (buffered > 0) {
+			int fill = Math.min(length, buffer.length - buffered);
+			System.arraycopy(bytes, offset, buffer, buffered, fill);
+			buffered += fill;
+			offset += fill;
+			length -= fill;
+			if (buffered < buffer.length) {
+				return;
+			}
+			out.write(buffer, 0, buffered);
+			buffered = 0;
+		}
+		int wholeRecords = length - length % buffer.length;
+		if (wholeRecords > 0) {
+			out.write(bytes, offset, wholeRecords);
+			offset += wholeRecords;
+			length -= wholeRecords;
+		}
+		System.arraycopy(bytes, offset, buffer, 0, length);
+		buffered = length;
+	}
+
+	@Override
+	public boolean transferFile(CachedResponse response, long offset, long length) {
+		return false; // TLS has to see every byte, so there's nothing to gain.
+	}
+
+	@Override
+	public void stream(ResponseBody body) throws IOException {
+		body.writeTo(this);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (buffered > 0) {
+			out.write(buffer, 0, buffered);
+			buffered = 0;
+		}
+		out.flush();
+	}
+
+	@Override
+	public long bytesWritten() {
+		return bytesWritten;
+	}
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import javax.net.ssl.*;
+
+/**
+ * The TLS setup shared by both engines: the keystore, which protocol versions and cipher
+ * suites are offered and in what order, the session cache and tickets that let a returning
+ * client resume its session instead of paying for a full handshake, and the application
+ * protocols (HTTP/2, HTTP/1.1) offered through ALPN.
+ */
+final class TlsConfig {
+	/**
+	 * Preferred first when no suites are given explicitly: AES-GCM, which has hardware support
+	 * nearly everywhere, then ChaCha20 for clients without it. The rest keep the JDK's order.
+	 */
+	private static final String[] PREFERRED_SUITE_MARKERS = {"AES_128_GCM", "AES_256_GCM", "CHACHA20"};
+
+	private final SSLContext context;
+	private final SSLParameters parameters;
+
+	private TlsConfig(SSLContext context, SSLParameters parameters) {
+		this.context = context;
+		this.parameters = parameters;
+	}
+
+	/**
+	 * Loads the keystore and builds the context and parameters the options ask for.
+	 *
+	 * <p>Has to run before anything else touches JSSE: whether session tickets are issued is a
+	 * system property the JDK only reads once.
+	 *
+	 * @throws {@link IllegalArgumentException} if a protocol or cipher suite isn't supported.
+	 */
+	public static TlsConfig fromOptions(ServerOptions options) throws IOException, GeneralSecurityException {
+		System.setProperty("jdk.tls.server.enableSessionTicketExtension", Boolean.toString(options.tlsSessionTickets));
+
+		char[] storePassword = secret(options.keystorePassword);
+		char[] keyPassword = options.keyPassword == null ? storePassword : secret(options.keyPassword);
+		KeyStore keystore = KeyStore.getInstance(options.keystoreType);
+		try (InputStream in = new FileInputStream(options.keystore)) {
+			keystore.load(in, storePassword);
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keystore, keyPassword);
+		Arrays.fill(storePassword, '\0');
+		Arrays.fill(keyPassword, '\0');
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), null, null);
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(options.tlsSessionCacheSize);
+		sessions.setSessionTimeout(options.tlsSessionTimeoutSeconds);
+
+		SSLParameters supported = context.getSupportedSSLParameters();
+		SSLParameters parameters = context.getDefaultSSLParameters();
+		parameters.setProtocols(pick("protocol", options.tlsProtocols, supported.getProtocols()));
+		if (options.tlsCipherSuites.isEmpty()) {
+			parameters.setCipherSuites(preferredOrder(parameters.getCipherSuites()));
+		} else {
+			parameters.setCipherSuites(pick("cipher suite", options.tlsCipherSuites, supported.getCipherSuites()));
+		}
+		// Our order, not the client's: otherwise we'd get whatever it happens to list first.
+		parameters.setUseCipherSuitesOrder(true);
+		if (options.http2) {
+			// In our order of preference; clients that don't do ALPN get HTTP/1.1 anyway.
+			parameters.setApplicationProtocols(new String[] {Http2Connection.PROTOCOL, "http/1.1"});
+		}
+
+		System.out.println(String.format("TLS: %s; ALPN %s; session cache %d entries for %ds, tickets %s; %d suites, %s first",
+				String.join(",", parameters.getProtocols()),
+				options.http2 ? String.join(",", parameters.getApplicationProtocols()) : "off", options.tlsSessionCacheSize,
+				options.tlsSessionTimeoutSeconds, options.tlsSessionTickets ? "on" : "off",
+				parameters.getCipherSuites().length, parameters.getCipherSuites()[0]));
+		return new TlsConfig(context, parameters);
+	}
+
+	public SSLContext context() {
+		return context;
+	}
+
+	/** Applies the protocols and suites to a listening socket; the sockets it accepts inherit them. */
+	public void configure(SSLServerSocket serverSocket) {
+		serverSocket.setSSLParameters(parameters);
+	}
+
+	/** A server-side engine for one connection. */
+	public SSLEngine createEngine() {
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		engine.setSSLParameters(parameters);
+		return engine;
+	}
+
+	/**
+	 * Whether a completed handshake resumed an earlier session rather than creating one. A
+	 * resumed session, whether found in the cache or rebuilt from a ticket, keeps the creation
+	 * time of the handshake that first made it.
+	 */
+	public static boolean isResumed(SSLSession session, long handshakeStartMillis) {
+		return session.getCreationTime() < handshakeStartMillis;
+	}
+
+	/**
+	 * Reads a secret given on the command line, so it needn't be: "env:NAME" is the value of
+	 * an environment variable, "file:path" the first line of a file, anything else is literal.
+	 */
+	static char[] secret(String value) throws IOException {
+		if (value.startsWith("env:")) {
+			String name = value.substring("env:".length());
+			String secret = System.getenv(name);
+			if (secret == null) {
+				throw new IOException("Environment variable " + name + " isn't set.");
+			}
+			return secret.toCharArray();
+		}
+		if (value.startsWith("file:")) {
+			Path file = Paths.get(value.substring("file:".length()));
+			if (!Files.isReadable(file)) {
+				throw new IOException("Secret file " + file + " doesn't exist or isn't readable.");
+			}
+			List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+			return (lines.isEmpty() ? "" : lines.get(0)).toCharArray();
+		}
+		return value.toCharArray();
+	}
+
+	/** Splits a comma-separated list, in its order, rejecting anything not {@code supported}. */
+	private static String[] pick(String what, String list, String[] supported) {
+		List<String> supportedList = Arrays.asList(supported);
+		List<String> picked = new ArrayList<String>();
+		for (String name : list.split(",")) {
+			name = name.trim();
+			if (name.isEmpty()) {
+				continue;
+			}
+			if (!supportedList.contains(name)) {
+				throw new IllegalArgumentException(String.format("Unsupported TLS %s: %s", what, name));
+			}
+			picked.add(name);
+		}
+		if (picked.isEmpty()) {
+			throw new IllegalArgumentException(String.format("No TLS %s given.", what));
+		}
+		return picked.toArray(new String[0]);
+	}
+
+	/**
+	 * Puts the forward-secret suites (all of TLS 1.3's, and ECDHE and DHE ones) ahead of the rest
+	 * and, within each of those two groups, orders them by {@link #PREFERRED_SUITE_MARKERS}. The
+	 * sort is stable, so otherwise the JDK's order stands.
+	 */
+	static String[] preferredOrder(String[] suites) {
+		List<String> ordered = new ArrayList<String>(Arrays.asList(suites));
+		ordered.sort(Comparator.comparingInt(TlsConfig::rank));
+		return ordered.toArray(new String[0]);
+	}
+
+	private static int rank(String suite) {
+		boolean forwardSecret = suite.startsWith("TLS_AES_") || suite.startsWith("TLS_CHACHA20_")
+				|| suite.contains("_ECDHE_") || suite.contains("_DHE_");
+		int marker = 0;
+		while (marker < PREFERRED_SUITE_MARKERS.length && !suite.contains(PREFERRED_SUITE_MARKERS[marker])) {
+			marker++;
+		}
+		return (forwardSecret ? 0 : PREFERRED_SUITE_MARKERS.length + 1) + marker;
+	}
+}
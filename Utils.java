@@ -0,0 +1,57 @@
+import java.util.HashMap;
+import java.util.Map;
+
+final class Utils {
+	private Utils() {}; // can't instantiate this static class
+
+	/**
+	 * Chews on the provided arguments and builds a map. Each is --name=value; the value is
+	 * everything after the first =, so it may hold = signs of its own.
+	 *
+	 * @throws {@link IllegalArgumentException} for an argument that isn't a flag.
+	 */
+	static Map<String, String> parseCmdlineFlags(String argv[]) {
+		Map<String, String> flags = new HashMap<String, String>();
+		for (String flag : argv) {
+			int equals = flag.indexOf('=');
+			if (!flag.startsWith("--") || equals == 2) {
+				// Not echoed, in case it's a password that lost its flag.
+				throw new IllegalArgumentException("Invalid argument! Flags look like --name=value.");
+			}
+			if (equals < 0) {
+				throw new IllegalArgumentException(String.format("Invalid flag %s! Flags look like --name=value.", flag));
+			}
+			flags.put(flag.substring(0, equals), flag.substring(equals + 1));
+		}
+		return flags;
+	}
+
+	/** Escapes text for HTML, inside an element or a quoted attribute value. */
+	static String escapeHtml(String text) {
+		StringBuilder escaped = new StringBuilder(text.length() + 16);
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '&':
+					escaped.append("&amp;");
+					break;
+				case '<':
+					escaped.append("&lt;");
+					break;
+				case '>':
+					escaped.append("&gt;");
+					break;
+				case '"':
+					escaped.append("&quot;");
+					break;
+				case '\'':
+					escaped.append("&#39;");
+					break;
+				default:
+					escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+}
+
@@ -0,0 +1,98 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+
+/** The server side of {@link bench.Targets}; see there for why this exists. */
+public final class BenchTargets implements bench.Targets {
+	@Override
+	public Callable<Object> parse(final byte[] requestHead) {
+		final HTTPRequest request = new HTTPRequest(null);
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws IOException {
+				return request.parse(requestHead, 0, requestHead.length);
+			}
+		};
+	}
+
+	@Override
+	public Callable<Object> parseAndReadHeaders(final byte[] requestHead) {
+		final HTTPRequest request = new HTTPRequest(null);
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws IOException {
+				request.parse(requestHead, 0, requestHead.length);
+				return request.askingForPersistent()
+						? length(request.getPath()) + length(request.getHeader("Accept-Encoding"))
+								+ length(request.getHeader("If-None-Match")) + length(request.getHeader("If-Modified-Since"))
+								+ length(request.getHeader("Range"))
+						: 0;
+			}
+		};
+	}
+
+	private static int length(String value) {
+		return value == null ? 0 : value.length();
+	}
+
+	@Override
+	public Dispatcher dispatcher() throws IOException {
+		RedirectRules redirects = RedirectRules.parse("/old http://example.com/new");
+		long streamMinBytes = ResourceMap.DEFAULT_STREAM_MIN_BYTES;
+		final RequestDispatcher dispatcher = new RequestDispatcher(
+				new StaticResources(ResourceMap.loadFiles(streamMinBytes), streamMinBytes),
+				redirects, new AccessLog(AccessLog.Level.OFF, "access.log", 0), new Metrics(), null);
+		final ResponseWriter out = new StreamResponseWriter(OutputStream.nullOutputStream());
+		return new Dispatcher() {
+			@Override
+			public Callable<Object> respondTo(String requestHead) throws IOException {
+				final HTTPRequest request = new HTTPRequest(null);
+				byte[] bytes = requestHead.getBytes(StandardCharsets.ISO_8859_1);
+				request.parse(bytes, 0, bytes.length);
+				return new Callable<Object>() {
+					@Override
+					public Object call() throws IOException {
+						boolean keepAlive = dispatcher.respond(request, true, out);
+						out.flush();
+						return keepAlive;
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public Callable<Object> loadFiles() {
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws IOException {
+				return ResourceMap.loadFiles(ResourceMap.DEFAULT_STREAM_MIN_BYTES);
+			}
+		};
+	}
+
+	@Override
+	public Lookup lookup(boolean lazy, long cacheMaxBytes) throws IOException {
+		long streamMinBytes = ResourceMap.DEFAULT_STREAM_MIN_BYTES;
+		final ResourceLookup resources = lazy
+				? new LazyResourceCache(ResourceMap.indexFiles(), cacheMaxBytes, streamMinBytes)
+				: new StaticResources(ResourceMap.loadFiles(streamMinBytes), streamMinBytes);
+		return new Lookup() {
+			@Override
+			public Object find(String webPath) throws IOException {
+				return resources.find(webPath);
+			}
+		};
+	}
+
+	@Override
+	public Lookup redirects(String defs) {
+		final RedirectRules rules = RedirectRules.parse(defs);
+		return new Lookup() {
+			@Override
+			public Object find(String webPath) {
+				return rules.find(webPath);
+			}
+		};
+	}
+}
@@ -0,0 +1,77 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing request heads as they arrive from real clients, and then reading the headers the
+ * dispatcher reads for every request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpRequestBenchmark {
+	private static final String CURL = "GET /index.html HTTP/1.1\r\n"
+			+ "Host: localhost:8443\r\n"
+			+ "User-Agent: curl/7.88.1\r\n"
+			+ "Accept: */*\r\n"
+			+ "\r\n";
+	private static final String BROWSER = "GET /static/css/site.min.css?v=20240611 HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "sec-ch-ua: \"Chromium\";v=\"124\", \"Google Chrome\";v=\"124\", \"Not-A.Brand\";v=\"99\"\r\n"
+			+ "sec-ch-ua-mobile: ?0\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)"
+			+ " Chrome/124.0.0.0 Safari/537.36\r\n"
+			+ "sec-ch-ua-platform: \"Linux\"\r\n"
+			+ "Accept: text/css,*/*;q=0.1\r\n"
+			+ "Sec-Fetch-Site: same-origin\r\n"
+			+ "Sec-Fetch-Mode: no-cors\r\n"
+			+ "Sec-Fetch-Dest: style\r\n"
+			+ "Referer: https://www.example.com/\r\n"
+			+ "Accept-Encoding: gzip, deflate, br, zstd\r\n"
+			+ "Accept-Language: en-US,en;q=0.9\r\n"
+			+ "Cookie: session=6f1c0e2a9b7d4c3e8f5a; prefs=dark; _ga=GA1.1.123456789.1700000000\r\n"
+			+ "If-None-Match: \"4011f04fdb18f6d74d306a424edf365b\"\r\n"
+			+ "If-Modified-Since: Tue, 11 Jun 2024 08:12:31 GMT\r\n"
+			+ "\r\n";
+
+	@Param({"curl", "browser"})
+	public String client;
+
+	private Callable<Object> parse;
+	private Callable<Object> parseAndReadHeaders;
+
+	@Setup
+	public void setUp() {
+		byte[] head = (client.equals("curl") ? CURL : BROWSER).getBytes(StandardCharsets.ISO_8859_1);
+		Targets targets = Targets.load();
+		parse = targets.parse(head);
+		parseAndReadHeaders = targets.parseAndReadHeaders(head);
+	}
+
+	@Benchmark
+	public Object parse() throws Exception {
+		return parse.call();
+	}
+
+	@Benchmark
+	public Object parseAndReadHeaders() throws Exception {
+		return parseAndReadHeaders.call();
+	}
+}
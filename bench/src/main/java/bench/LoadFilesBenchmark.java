@@ -0,0 +1,56 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Startup cost: loading a synthetic web root the way the server does, i.e. reading, hashing,
+ * storing off-heap and compressing every file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-XX:MaxDirectMemorySize=4g")
+@State(Scope.Benchmark)
+public class LoadFilesBenchmark {
+	@Param({"100", "1000"})
+	public int files;
+
+	private SyntheticWebRoot webRoot;
+	private Callable<Object> loadFiles;
+	private PrintStream stdout;
+
+	@Setup
+	public void setUp() throws IOException {
+		webRoot = SyntheticWebRoot.create(files, 42);
+		loadFiles = Targets.load().loadFiles();
+		// Loading prints every path it finds; keep that out of the results.
+		stdout = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		System.setOut(stdout);
+		webRoot.delete();
+	}
+
+	@Benchmark
+	public Object loadFiles() throws Exception {
+		return loadFiles.call();
+	}
+}
@@ -0,0 +1,491 @@
+package bench;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * End-to-end load test: starts {@code Server} in a child JVM on a free port, serving a
+ * {@link SyntheticWebRoot} with a freshly generated keystore, drives it over TLS from a number
+ * of client threads, and reports throughput and the latency distribution.
+ *
+ * <p>Closed loop (the default) means each client sends its next request as soon as the last
+ * one is answered. With {@code --rate} the clients instead send on a fixed schedule, and latency
+ * is measured from when a request was due rather than when it went out, so a stalled server
+ * shows up as latency instead of quietly lowering the request rate.
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar bench.LoadGenerator --concurrency=32 --durationSeconds=30 \
+ *     --keepAlive=false --mix=hit:80,notfound:10,redirect:10 --serverArgs="--engine=nio"
+ * </pre>
+ */
+public final class LoadGenerator {
+	static final String USAGE = "usage: LoadGenerator [--concurrency=16] [--durationSeconds=10] [--warmupSeconds=3]"
+			+ " [--keepAlive=true|false] [--mix=hit:90,notfound:5,redirect:5] [--rate=0 (requests/s, 0 = closed loop)]"
+			+ " [--files=500] [--redirects=20] [--seed=42] [--serverArgs=\"--engine=nio ...\"] [--serverJvmArgs=\"-Xmx1g ...\"]";
+
+	private static final long SERVER_START_TIMEOUT_MILLIS = 60 * 1000;
+	private static final int SOCKET_TIMEOUT_MILLIS = 10 * 1000;
+
+	private enum Kind {
+		HIT, NOTFOUND, REDIRECT
+	}
+
+	private final int concurrency;
+	private final long durationNanos;
+	private final long warmupNanos;
+	private final boolean keepAlive;
+	/** Cumulative percentages for each {@link Kind}, in order. */
+	private final int[] mix = new int[Kind.values().length];
+	private final double rate;
+	private final List<String> hits;
+	private final List<String> redirects;
+	private final SSLSocketFactory sockets;
+	private final InetSocketAddress server;
+
+	private volatile long startNanos;
+
+	private LoadGenerator(Map<String, String> flags, List<String> hits, List<String> redirects,
+			InetSocketAddress server) throws Exception {
+		this.concurrency = Integer.parseInt(flag(flags, "--concurrency", "16"));
+		this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(flag(flags, "--durationSeconds", "10")));
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(flag(flags, "--warmupSeconds", "3")));
+		this.keepAlive = Boolean.parseBoolean(flag(flags, "--keepAlive", "true"));
+		this.rate = Double.parseDouble(flag(flags, "--rate", "0"));
+		int total = 0;
+		Map<Kind, Integer> weights = new HashMap<Kind, Integer>();
+		for (String part : flag(flags, "--mix", "hit:90,notfound:5,redirect:5").split(",")) {
+			String[] weight = part.split(":");
+			weights.put(Kind.valueOf(weight[0].trim().toUpperCase()), Integer.parseInt(weight[1].trim()));
+		}
+		for (Kind kind : Kind.values()) {
+			Integer weight = weights.get(kind);
+			total += weight == null ? 0 : weight;
+			mix[kind.ordinal()] = total;
+		}
+		if (total != 100) {
+			throw new IllegalArgumentException("--mix has to add up to 100, not " + total);
+		}
+		this.hits = hits;
+		this.redirects = redirects;
+		this.server = server;
+
+		// We only ever talk to the server we just started, with the certificate we just made.
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] {new X509TrustManager() {
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		}}, new SecureRandom());
+		this.sockets = context.getSocketFactory();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> flags = new HashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0) {
+				System.err.println(USAGE);
+				System.exit(1);
+			}
+			flags.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+
+		SyntheticWebRoot webRoot = SyntheticWebRoot.create(
+				Integer.parseInt(flag(flags, "--files", "500")), Long.parseLong(flag(flags, "--seed", "42")));
+		Process process = null;
+		try {
+			List<String> redirects = webRoot.writeRedirects(Integer.parseInt(flag(flags, "--redirects", "20")));
+			generateKeystore(webRoot.root());
+			int port = freePort();
+			process = startServer(webRoot.root(), port, flag(flags, "--serverJvmArgs", ""),
+					flag(flags, "--serverArgs", ""));
+			InetSocketAddress server = new InetSocketAddress("localhost", port);
+			awaitServer(process, server, webRoot.root().resolve("server.log"));
+
+			LoadGenerator generator = new LoadGenerator(flags, webRoot.webPaths(), redirects, server);
+			generator.run();
+		} finally {
+			if (process != null) {
+				process.destroy();
+				if (!process.waitFor(5, TimeUnit.SECONDS)) {
+					process.destroyForcibly().waitFor();
+				}
+			}
+			webRoot.delete();
+		}
+	}
+
+	private void run() throws InterruptedException {
+		Client[] clients = new Client[concurrency];
+		Thread[] threads = new Thread[concurrency];
+		for (int i = 0; i < concurrency; i++) {
+			clients[i] = new Client(i);
+			threads[i] = new Thread(clients[i], "load-" + i);
+		}
+		System.out.println(String.format("%d clients, %s, %s, %ds warmup + %ds against %s",
+				concurrency, keepAlive ? "keep-alive" : "a connection per request",
+				rate > 0 ? "open loop at " + rate + " requests/s" : "closed loop",
+				TimeUnit.NANOSECONDS.toSeconds(warmupNanos), TimeUnit.NANOSECONDS.toSeconds(durationNanos), server));
+		startNanos = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		report(clients);
+		reportHandshakes();
+	}
+
+	private void report(Client[] clients) {
+		long count = 0;
+		long errors = 0;
+		long connections = 0;
+		Map<Integer, Long> statuses = new TreeMap<Integer, Long>();
+		for (Client client : clients) {
+			count += client.latencyCount;
+			errors += client.errors;
+			connections += client.connections;
+			for (Map.Entry<Integer, Long> status : client.statuses.entrySet()) {
+				statuses.merge(status.getKey(), status.getValue(), Long::sum);
+			}
+		}
+		long[] latencies = new long[(int) count];
+		int at = 0;
+		for (Client client : clients) {
+			System.arraycopy(client.latencies, 0, latencies, at, client.latencyCount);
+			at += client.latencyCount;
+		}
+		Arrays.sort(latencies);
+
+		double seconds = durationNanos / 1e9;
+		System.out.println(String.format("requests:    %d (%.1f/s)", count, count / seconds));
+		System.out.println(String.format("connections: %d (%.1f/s)", connections, connections / seconds));
+		System.out.println(String.format("errors:      %d", errors));
+		System.out.println("statuses:    " + statuses);
+		if (count > 0) {
+			System.out.println(String.format("latency ms:  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+					percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+					percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6));
+		}
+	}
+
+	/**
+	 * Prints the server's count of full and resumed TLS handshakes over the whole run, warmup
+	 * included, from its metrics (if they're at the default path).
+	 */
+	private void reportHandshakes() {
+		try (SSLSocket socket = (SSLSocket) sockets.createSocket(server.getHostString(), server.getPort())) {
+			socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+			socket.getOutputStream().write(("GET /_metrics HTTP/1.1\r\nHost: " + server.getHostString()
+					+ "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if (line.startsWith("project2_tls_handshakes_total")) {
+					System.out.println("server:      " + line);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Couldn't read the server's metrics: " + e);
+		}
+	}
+
+	private static double percentile(long[] sorted, double fraction) {
+		int index = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+
+	/** One simulated user, with at most one connection and one request in flight at a time. */
+	private final class Client implements Runnable {
+		private final Random random;
+		private long[] latencies = new long[64 * 1024];
+		private int latencyCount = 0;
+		private long errors = 0;
+		private long connections = 0;
+		private boolean measuring = false;
+		private final Map<Integer, Long> statuses = new HashMap<Integer, Long>();
+
+		private SSLSocket socket;
+		private OutputStream out;
+		private InputStream in;
+		private final byte[] skip = new byte[64 * 1024];
+		private final StringBuilder line = new StringBuilder();
+
+		Client(int index) {
+			this.random = new Random(index);
+		}
+
+		@Override
+		public void run() {
+			long measureFrom = startNanos + warmupNanos;
+			long end = measureFrom + durationNanos;
+			// Each client sends its share of the rate, staggered so they don't all fire at once.
+			long intervalNanos = rate > 0 ? (long) (1e9 * concurrency / rate) : 0;
+			long due = startNanos + (intervalNanos > 0 ? random.nextInt((int) Math.min(intervalNanos, Integer.MAX_VALUE)) : 0);
+			while (true) {
+				if (intervalNanos > 0) {
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				} else {
+					due = System.nanoTime();
+				}
+				if (due >= end) {
+					break;
+				}
+				measuring = due >= measureFrom;
+				int status;
+				try {
+					status = request(nextPath());
+				} catch (IOException e) {
+					status = -1;
+					closeQuietly();
+				}
+				long done = System.nanoTime();
+				if (measuring) {
+					if (status < 0) {
+						errors++;
+					} else {
+						statuses.merge(status, 1L, Long::sum);
+						record(done - due);
+					}
+				}
+				due += intervalNanos;
+			}
+			closeQuietly();
+		}
+
+		private String nextPath() {
+			int pick = random.nextInt(100);
+			if (pick < mix[Kind.HIT.ordinal()]) {
+				// Skewed towards the first files, as real traffic is towards a few popular pages.
+				double uniform = random.nextDouble();
+				return hits.get((int) (uniform * uniform * uniform * hits.size()));
+			} else if (pick < mix[Kind.NOTFOUND.ordinal()]) {
+				return "/missing/" + random.nextInt(1000) + ".html";
+			} else {
+				return redirects.get(random.nextInt(redirects.size()));
+			}
+		}
+
+		/** Sends a GET for {@code path} and reads the whole response; returns its status. */
+		private int request(String path) throws IOException {
+			if (socket == null) {
+				socket = (SSLSocket) sockets.createSocket(server.getHostString(), server.getPort());
+				socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+				socket.setTcpNoDelay(true);
+				socket.startHandshake();
+				out = new BufferedOutputStream(socket.getOutputStream());
+				in = new BufferedInputStream(socket.getInputStream());
+				if (measuring) {
+					connections++;
+				}
+			}
+			out.write(("GET " + path + " HTTP/1.1\r\n"
+					+ "Host: " + server.getHostString() + "\r\n"
+					+ "Accept-Encoding: gzip, deflate\r\n"
+					+ "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+
+			String statusLine = readLine();
+			if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12) {
+				throw new IOException("Bad status line: " + statusLine);
+			}
+			int status = Integer.parseInt(statusLine.substring(9, 12));
+			long contentLength = -1;
+			boolean chunked = false;
+			boolean close = !keepAlive;
+			for (String header = readLine(); !header.isEmpty(); header = readLine()) {
+				int colon = header.indexOf(':');
+				if (colon < 0) {
+					continue;
+				}
+				String name = header.substring(0, colon).trim();
+				String value = header.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					contentLength = Long.parseLong(value);
+				} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+					chunked = value.equalsIgnoreCase("chunked");
+				} else if (name.equalsIgnoreCase("Connection")) {
+					close |= value.equalsIgnoreCase("close");
+				}
+			}
+			if (chunked) {
+				for (long size = chunkSize(); size > 0; size = chunkSize()) {
+					skipBytes(size);
+					readLine();
+				}
+				while (!readLine().isEmpty()) {
+					// trailers
+				}
+			} else if (contentLength >= 0) {
+				skipBytes(contentLength);
+			} else {
+				while (in.read(skip) >= 0) {
+					// no length: the body ends with the connection.
+				}
+				close = true;
+			}
+			if (close) {
+				closeQuietly();
+			}
+			return status;
+		}
+
+		private long chunkSize() throws IOException {
+			String size = readLine();
+			int extension = size.indexOf(';');
+			return Long.parseLong((extension < 0 ? size : size.substring(0, extension)).trim(), 16);
+		}
+
+		private String readLine() throws IOException {
+			line.setLength(0);
+			int b;
+			while ((b = in.read()) != '\n') {
+				if (b < 0) {
+					throw new EOFException("Connection closed mid-response");
+				}
+				if (b != '\r') {
+					line.append((char) b);
+				}
+			}
+			return line.toString();
+		}
+
+		private void skipBytes(long count) throws IOException {
+			while (count > 0) {
+				int read = in.read(skip, 0, (int) Math.min(skip.length, count));
+				if (read < 0) {
+					throw new EOFException("Connection closed mid-body");
+				}
+				count -= read;
+			}
+		}
+
+		private void record(long nanos) {
+			if (latencyCount == latencies.length) {
+				latencies = Arrays.copyOf(latencies, latencies.length * 2);
+			}
+			latencies[latencyCount++] = nanos;
+		}
+
+		private void closeQuietly() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// nothing more to do with it
+				}
+				socket = null;
+			}
+		}
+	}
+
+	private static String flag(Map<String, String> flags, String name, String defaultValue) {
+		String value = flags.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/** A self-signed certificate in {@code dir}/server.jks, where {@code Server} looks for it. */
+	private static void generateKeystore(Path dir) throws IOException, InterruptedException {
+		String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server",
+				"-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost", "-validity", "2",
+				"-storetype", "JKS", "-keystore", "server.jks", "-storepass", "password", "-keypass", "password")
+				.directory(dir.toFile())
+				.redirectErrorStream(true)
+				.redirectOutput(dir.resolve("keytool.log").toFile())
+				.start();
+		if (process.waitFor() != 0) {
+			throw new IOException("keytool failed: " + new String(Files.readAllBytes(dir.resolve("keytool.log"))));
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/** Runs {@code Server} from our own class path, with {@code dir} as its working directory. */
+	private static Process startServer(Path dir, int port, String jvmArgs, String serverArgs) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+		addWords(command, jvmArgs);
+		command.add("-cp");
+		List<String> classPath = new ArrayList<String>();
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			classPath.add(new File(entry).getAbsolutePath()); // the server runs somewhere else.
+		}
+		command.add(String.join(File.pathSeparator, classPath));
+		command.add("Server");
+		command.add("--serverPort=" + port);
+		addWords(command, serverArgs);
+		System.out.println("Starting " + String.join(" ", command));
+		return new ProcessBuilder(command)
+				.directory(dir.toFile())
+				.redirectErrorStream(true)
+				.redirectOutput(dir.resolve("server.log").toFile())
+				.start();
+	}
+
+	private static void addWords(List<String> command, String words) {
+		for (String word : words.trim().split("\\s+")) {
+			if (!word.isEmpty()) {
+				command.add(word);
+			}
+		}
+	}
+
+	/** Waits until the server accepts connections, or fails with its output if it died first. */
+	private static void awaitServer(Process process, InetSocketAddress server, Path log)
+			throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT_MILLIS;
+		while (true) {
+			if (!process.isAlive()) {
+				throw new IOException("Server exited with " + process.exitValue() + ":\n"
+						+ new String(Files.readAllBytes(log), StandardCharsets.ISO_8859_1));
+			}
+			try (Socket probe = new Socket()) {
+				probe.connect(server, 1000);
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new IOException("Server didn't start listening on " + server + " in time");
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+}
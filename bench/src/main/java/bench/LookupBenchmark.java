@@ -0,0 +1,73 @@
+package bench;
+
+import java.io.*;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resource lookups from several threads at once, with a skewed popularity like real traffic's:
+ * over eagerly loaded resources, and over the lazy cache sized to hold only part of the site,
+ * so it misses, loads and evicts as well.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-XX:MaxDirectMemorySize=4g")
+@Threads(4)
+public class LookupBenchmark {
+	private static final int FILES = 500;
+
+	@State(Scope.Benchmark)
+	public static class Site {
+		@Param({"eager", "lazy"})
+		public String resourceMode;
+
+		SyntheticWebRoot webRoot;
+		Targets.Lookup resources;
+		String[] paths;
+
+		@Setup
+		public void setUp() throws IOException {
+			webRoot = SyntheticWebRoot.create(FILES, 42);
+			resources = Targets.load().lookup(resourceMode.equals("lazy"), 16L * 1024 * 1024);
+			List<String> webPaths = webRoot.webPaths();
+			paths = webPaths.toArray(new String[webPaths.size()]);
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			webRoot.delete();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Reader {
+		private final SplittableRandom random = new SplittableRandom();
+
+		/** Cubing a uniform draw favors the first paths heavily, as real traffic does. */
+		String nextPath(Site site) {
+			double draw = random.nextDouble();
+			return site.paths[(int) (draw * draw * draw * site.paths.length)];
+		}
+	}
+
+	@Benchmark
+	public Object find(Site site, Reader reader) throws IOException {
+		return site.resources.find(reader.nextPath(site));
+	}
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching request paths against a migrated site's worth of redirect rules: exact ones,
+ * one-segment wildcards and trailing wildcards, half of them capturing. The time per match
+ * should stay about the same as the number of rules grows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RedirectBenchmark {
+	@Param({"10", "1000", "100000"})
+	public int rules;
+
+	private Targets.Lookup redirects;
+	private String[] exactPaths;
+	private String[] wildcardPaths;
+	private String[] missPaths;
+	private final SplittableRandom random = new SplittableRandom(42);
+
+	@Setup
+	public void setUp() {
+		StringBuilder defs = new StringBuilder();
+		exactPaths = new String[1024];
+		wildcardPaths = new String[1024];
+		missPaths = new String[1024];
+		for (int i = 0; i < rules; i++) {
+			switch (i % 3) {
+				case 0:
+					defs.append("/page/").append(i).append(" /pages/").append(i).append('\n');
+					break;
+				case 1:
+					defs.append("/section").append(i).append("/*/index.html /s").append(i).append("/$1\n");
+					break;
+				default:
+					defs.append("/archive").append(i).append("/* /static/archive").append(i).append('\n');
+			}
+		}
+		for (int i = 0; i < exactPaths.length; i++) {
+			int rule = random.nextInt(rules);
+			exactPaths[i] = "/page/" + (rule - rule % 3);
+			wildcardPaths[i] = rule % 3 == 1 || rule + 1 >= rules
+					? "/section" + (rule - rule % 3 + 1) + "/topic" + i + "/index.html"
+					: "/archive" + (rule - rule % 3 + 2) + "/2019/05/post" + i + ".html";
+			missPaths[i] = "/dir" + (i % 10) + "/page" + i + ".html";
+		}
+		redirects = Targets.load().redirects(defs.toString());
+	}
+
+	@Benchmark
+	public Object exact() throws Exception {
+		return redirects.find(exactPaths[random.nextInt(exactPaths.length)]);
+	}
+
+	@Benchmark
+	public Object wildcard() throws Exception {
+		return redirects.find(wildcardPaths[random.nextInt(wildcardPaths.length)]);
+	}
+
+	/** The common case: most requests aren't redirected at all. */
+	@Benchmark
+	public Object miss() throws Exception {
+		return redirects.find(missPaths[random.nextInt(missPaths.length)]);
+	}
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Answering a parsed request end to end through the server's dispatcher, into a stream that
+ * discards everything: a pre-rendered 200 (identity and gzip), a 301 and a dynamic 404.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+	private SyntheticWebRoot webRoot;
+	private Callable<Object> send200;
+	private Callable<Object> send200Gzip;
+	private Callable<Object> send301;
+	private Callable<Object> send404;
+
+	@Setup
+	public void setUp() throws IOException {
+		webRoot = SyntheticWebRoot.create(50, 42);
+		Targets.Dispatcher dispatcher = Targets.load().dispatcher();
+		String page = webRoot.webPaths().get(0);
+		send200 = dispatcher.respondTo("GET " + page + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+		send200Gzip = dispatcher.respondTo(
+				"GET " + page + " HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip, deflate\r\n\r\n");
+		send301 = dispatcher.respondTo("GET /old HTTP/1.1\r\nHost: localhost\r\n\r\n");
+		send404 = dispatcher.respondTo("GET /no/such/page.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		webRoot.delete();
+	}
+
+	@Benchmark
+	public Object send200() throws Exception {
+		return send200.call();
+	}
+
+	@Benchmark
+	public Object send200Gzip() throws Exception {
+		return send200Gzip.call();
+	}
+
+	@Benchmark
+	public Object send301() throws Exception {
+		return send301.call();
+	}
+
+	@Benchmark
+	public Object send404() throws Exception {
+		return send404.call();
+	}
+}
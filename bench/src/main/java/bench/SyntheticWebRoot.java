@@ -0,0 +1,104 @@
+package bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * A throwaway web root for the benchmarks: a www/ tree in a temp directory, which becomes the
+ * "user.dir" the server serves from.
+ *
+ * <p>The mix is roughly a real site's: mostly small HTML, CSS and text, which get compressed
+ * variants; some medium images; and a few files large enough to get a buffer of their own.
+ */
+public final class SyntheticWebRoot {
+	private static final String[] TEXT_TYPES = {".html", ".css", ".txt"};
+
+	private final Path root;
+	private final List<String> webPaths = new ArrayList<String>();
+
+	private SyntheticWebRoot(Path root) {
+		this.root = root;
+	}
+
+	/** Creates {@code files} files (always the same ones for the same seed) and serves from them. */
+	public static SyntheticWebRoot create(int files, long seed) throws IOException {
+		SyntheticWebRoot webRoot = new SyntheticWebRoot(Files.createTempDirectory("project2-bench"));
+		Random random = new Random(seed);
+		for (int i = 0; i < files; i++) {
+			int kind = random.nextInt(100);
+			String name;
+			byte[] contents;
+			if (kind < 80) {
+				name = "page" + i + TEXT_TYPES[i % TEXT_TYPES.length];
+				contents = text(random, 1024 + random.nextInt(15 * 1024));
+			} else if (kind < 98) {
+				name = "image" + i + ".jpg";
+				contents = binary(random, 64 * 1024 + random.nextInt(192 * 1024));
+			} else {
+				name = "download" + i + ".jpg";
+				contents = binary(random, 2 * 1024 * 1024);
+			}
+			String webPath = "/dir" + (i % 10) + "/" + name;
+			Path file = webRoot.root.resolve("www" + webPath);
+			Files.createDirectories(file.getParent());
+			Files.write(file, contents);
+			webRoot.webPaths.add(webPath);
+		}
+		System.setProperty("user.dir", webRoot.root.toString());
+		return webRoot;
+	}
+
+	/** The directory holding www/. */
+	public Path root() {
+		return root;
+	}
+
+	public List<String> webPaths() {
+		return webPaths;
+	}
+
+	/**
+	 * Writes a www/redirect.defs with {@code count} redirects, /moved/N to one of the files;
+	 * returns their paths.
+	 */
+	public List<String> writeRedirects(int count) throws IOException {
+		List<String> redirects = new ArrayList<String>();
+		StringBuilder defs = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			String from = "/moved/" + i;
+			defs.append(from).append(' ').append(webPaths.get(i % webPaths.size())).append('\n');
+			redirects.add(from);
+		}
+		Files.write(root.resolve("www/redirect.defs"), defs.toString().getBytes(StandardCharsets.ISO_8859_1));
+		return redirects;
+	}
+
+	public void delete() throws IOException {
+		try (Stream<Path> paths = Files.walk(root)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	/** Markup-like text, so it compresses about as well as real pages do. */
+	private static byte[] text(Random random, int length) {
+		StringBuilder text = new StringBuilder(length);
+		while (text.length() < length) {
+			text.append("<p class=\"item-").append(random.nextInt(50)).append("\">")
+					.append(Long.toString(random.nextLong(), 36)).append("</p>\n");
+		}
+		return text.substring(0, length).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] binary(Random random, int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.Callable;
+
+/**
+ * What the benchmarks exercise. JMH won't generate benchmarks in the default package, and code
+ * in a named package can't refer to the server's (default-package) classes, so the benchmarks
+ * go through this interface and the default-package {@code BenchTargets} implements it.
+ *
+ * <p>Every method sets its target up; the returned actions are what gets measured.
+ */
+public interface Targets {
+	/** Answers a request, discarding the response bytes. */
+	interface Dispatcher {
+		Callable<Object> respondTo(String requestHead) throws IOException;
+	}
+
+	interface Lookup {
+		Object find(String webPath) throws IOException;
+	}
+
+	/** Parses {@code requestHead} into a reused request, as a connection does. */
+	Callable<Object> parse(byte[] requestHead);
+
+	/** Like {@link #parse}, then reads the headers the dispatcher reads for every request. */
+	Callable<Object> parseAndReadHeaders(byte[] requestHead);
+
+	/** A dispatcher over the current web root, with a redirect from /old. */
+	Dispatcher dispatcher() throws IOException;
+
+	/** Loads the current web root, as the server does at startup. */
+	Callable<Object> loadFiles();
+
+	/** The current web root, loaded eagerly, or lazily into a cache of the given size. */
+	Lookup lookup(boolean lazy, long cacheMaxBytes) throws IOException;
+
+	/** Redirect rules compiled from {@code defs}, in the redirect.defs format. */
+	Lookup redirects(String defs);
+
+	static Targets load() {
+		try {
+			return (Targets) Class.forName("BenchTargets").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("BenchTargets is missing from the benchmark jar", e);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ByteRangesTest {
+	@Test
+	void parsesFirstLastAndOpenRanges() {
+		assertRanges("0-0", ByteRanges.parse("bytes=0-0", 10));
+		assertRanges("2-5", ByteRanges.parse("bytes=2-5", 10));
+		assertRanges("9-9", ByteRanges.parse("bytes=9-9", 10));
+		assertRanges("4-9", ByteRanges.parse("bytes=4-", 10));
+		assertRanges("5-9", ByteRanges.parse("bytes=5-100", 10));
+		assertRanges("0-9", ByteRanges.parse("bytes=0-9223372036854775807", 10));
+	}
+
+	@Test
+	void parsesSuffixRanges() {
+		assertRanges("7-9", ByteRanges.parse("bytes=-3", 10));
+		assertRanges("9-9", ByteRanges.parse("bytes=-1", 10));
+		assertRanges("0-9", ByteRanges.parse("bytes=-10", 10));
+		assertRanges("0-9", ByteRanges.parse("bytes=-1000", 10));
+	}
+
+	@Test
+	void keepsOverlappingRangesAsAskedFor() {
+		assertRanges("0-5 3-8", ByteRanges.parse("bytes=0-5,3-8", 10));
+		assertRanges("8-9 0-1 8-9", ByteRanges.parse("bytes=-2, 0-1 ,8-", 10));
+	}
+
+	@Test
+	void dropsUnsatisfiableRanges() {
+		assertRanges("", ByteRanges.parse("bytes=10-", 10));
+		assertRanges("", ByteRanges.parse("bytes=10-20", 10));
+		assertRanges("", ByteRanges.parse("bytes=-0", 10));
+		assertRanges("0-1", ByteRanges.parse("bytes=10-11,0-1", 10));
+		// There are no bytes in an empty body, not even the last few.
+		assertRanges("", ByteRanges.parse("bytes=-5", 0));
+		assertRanges("", ByteRanges.parse("bytes=0-", 0));
+	}
+
+	@Test
+	void rejectsMalformedRanges() {
+		for (String range : new String[] {"bits=0-1", "bytes=", "bytes=5", "bytes=5-3", "bytes=--3", "bytes=a-b",
+				"bytes=1-2-3", "bytes=0-1,0-1,0-1,0-1,0-1,0-1,0-1,0-1,0-1,0-1,0-1,0-1,0-1,0-1,0-1,0-1,0-1"}) {
+			assertNull(ByteRanges.parse(range, 10), range);
+		}
+	}
+
+	@Test
+	void sendsASingleRange() throws Exception {
+		CapturingWriter out = new CapturingWriter();
+		assertEquals(206, ByteRanges.respond(out, response("0123456789"), "bytes=-3", null, true));
+		String sent = out.text();
+		assertTrue(sent.startsWith("HTTP/1.1 206 Partial Content\r\n"), sent);
+		assertTrue(sent.contains("\r\nContent-Range: bytes 7-9/10\r\n"), sent);
+		assertTrue(sent.endsWith("\r\nContent-Length: 3\r\n\r\n789"), sent);
+	}
+
+	@Test
+	void sendsSeveralRangesAsMultipart() throws Exception {
+		CapturingWriter out = new CapturingWriter();
+		assertEquals(206, ByteRanges.respond(out, response("0123456789"), "bytes=0-1,8-", null, false));
+		String sent = out.text();
+		int headEnd = sent.indexOf("\r\n\r\n");
+		String head = sent.substring(0, headEnd);
+		String body = sent.substring(headEnd + 4);
+		String boundary = head.substring(head.indexOf("boundary=") + "boundary=".length()).split("\r\n")[0];
+		assertTrue(head.contains("\r\nContent-Length: " + body.length()), head);
+		assertFalse(head.contains("text/plain"), head);
+		assertEquals("\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/10\r\n\r\n01"
+				+ "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 8-9/10\r\n\r\n89"
+				+ "\r\n--" + boundary + "--\r\n", body);
+	}
+
+	@Test
+	void answersUnsatisfiableRangesWith416() throws Exception {
+		CapturingWriter out = new CapturingWriter();
+		assertEquals(416, ByteRanges.respond(out, response(""), "bytes=-5", null, true));
+		assertTrue(out.text().contains("\r\nContent-Range: bytes */0\r\n"), out.text());
+		assertTrue(out.text().endsWith("\r\nContent-Length: 0\r\n\r\n"), out.text());
+	}
+
+	@Test
+	void fallsBackToTheWholeResponse() throws Exception {
+		CachedResponse response = response("0123456789");
+		assertEquals(0, ByteRanges.respond(new CapturingWriter(), response, "bytes=0-1", "\"other\"", true));
+		assertEquals(206, ByteRanges.respond(new CapturingWriter(), response, "bytes=0-1", "\"abc\"", true));
+		assertEquals(0, ByteRanges.respond(new CapturingWriter(), response, "bytes=1-0", null, true));
+	}
+
+	private static CachedResponse response(String body) {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Content-Type", "text/plain");
+		headers.put("ETag", "\"abc\"");
+		return CachedResponse.render("200 OK", headers,
+				ByteBuffer.wrap(body.getBytes(StandardCharsets.ISO_8859_1)));
+	}
+
+	/** @param expected "first-last" pairs, separated by spaces. */
+	private static void assertRanges(String expected, List<long[]> ranges) {
+		assertNotNull(ranges);
+		StringBuilder actual = new StringBuilder();
+		for (long[] range : ranges) {
+			actual.append(actual.length() > 0 ? " " : "").append(range[0]).append('-').append(range[1]);
+		}
+		assertEquals(expected, actual.toString());
+	}
+}
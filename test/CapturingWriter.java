@@ -0,0 +1,44 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** A blocking {@link ResponseWriter} that keeps what's written, for tests to look at. */
+final class CapturingWriter implements ResponseWriter {
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	@Override
+	public void write(byte[] bytes) {
+		this.bytes.write(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public void write(ByteBuffer bytes) {
+		while (bytes.hasRemaining()) {
+			this.bytes.write(bytes.get());
+		}
+	}
+
+	@Override
+	public boolean transferFile(CachedResponse response, long offset, long length) {
+		return false;
+	}
+
+	@Override
+	public void stream(ResponseBody body) throws IOException {
+		body.writeTo(this);
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public long bytesWritten() {
+		return bytes.size();
+	}
+
+	/** Everything written so far, as ISO-8859-1 text. */
+	public String text() {
+		return new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,134 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/** HPACK against the examples in RFC 7541 Appendix C. */
+class HpackTest {
+	/** C.3: requests without Huffman coding, on one connection. */
+	@Test
+	void decodesRequestsWithoutHuffman() throws Exception {
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+				decode(decoder, "828684410f7777772e6578616d706c652e636f6d"));
+		assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+				"cache-control", "no-cache"),
+				decode(decoder, "828684be58086e6f2d6361636865"));
+		assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html",
+				":authority", "www.example.com", "custom-key", "custom-value"),
+				decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"));
+	}
+
+	/** C.4: the same requests, Huffman coded. */
+	@Test
+	void decodesRequestsWithHuffman() throws Exception {
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+				decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+		assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+				"cache-control", "no-cache"),
+				decode(decoder, "828684be5886a8eb10649cbf"));
+		assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html",
+				":authority", "www.example.com", "custom-key", "custom-value"),
+				decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+	}
+
+	/**
+	 * C.6: responses, Huffman coded, with a 256-byte table so entries get evicted. The first
+	 * block starts with the table size update (3fe101) that the example's settings stand for.
+	 */
+	@Test
+	void decodesResponsesWithEviction() throws Exception {
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		assertEquals(Arrays.asList(":status", "302", "cache-control", "private",
+				"date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com"),
+				decode(decoder, "3fe101"
+						+ "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff"
+						+ "6e919d29ad171863c78f0b97c8e9ae82ae43d3"));
+		assertEquals(Arrays.asList(":status", "307", "cache-control", "private",
+				"date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com"),
+				decode(decoder, "4883640effc1c0bf"));
+		assertEquals(Arrays.asList(":status", "200", "cache-control", "private",
+				"date", "Mon, 21 Oct 2013 20:13:22 GMT", "location", "https://www.example.com",
+				"content-encoding", "gzip", "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"),
+				decode(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab"
+						+ "77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f"
+						+ "9587316065c003ed4ee5b1063d5007"));
+	}
+
+	/** The encoder indexes request-style fields just as C.4 does, Huffman coding included. */
+	@Test
+	void encodesLikeTheRfc() {
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		assertEquals("828684418cf1e3c2e5f23a6ba0ab90f4ff", hex(encoder.encode(Arrays.asList(
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"))));
+		assertEquals("828684be5886a8eb10649cbf", hex(encoder.encode(Arrays.asList(
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+				"cache-control", "no-cache"))));
+		assertEquals("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf", hex(encoder.encode(Arrays.asList(
+				":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+				"custom-key", "custom-value"))));
+	}
+
+	@Test
+	void roundTripsThroughATableSizeChange() throws Exception {
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		List<String> fields = Arrays.asList(":status", "200", "server", "project2", "content-type", "text/html",
+				"etag", "\"abc\"", "x-odd", "caf\u00e9 \u0000\u00ff");
+		for (int size : new int[] {4096, 0, 100, 4096}) {
+			encoder.setMaxTableSize(size);
+			for (int i = 0; i < 3; i++) {
+				byte[] block = encoder.encode(fields);
+				List<String> decoded = new ArrayList<String>();
+				decoder.decode(block, 0, block.length, decoded);
+				assertEquals(fields, decoded);
+			}
+		}
+	}
+
+	@Test
+	void rejectsBrokenBlocks() {
+		// Index 0, and one past the static table with the dynamic table empty.
+		assertRejected("80");
+		assertRejected("be");
+		// A string longer than the block.
+		assertRejected("4005616263");
+		// An integer that doesn't end.
+		assertRejected("3fff");
+		// Huffman padding that isn't a prefix of EOS, or is longer than 7 bits.
+		assertRejected("4081180161");
+		assertRejected("0082ffff0161");
+		// A table size update past the limit we advertise, and one after a field.
+		assertRejected("3fe21f");
+		assertRejected("8220");
+	}
+
+	private static void assertRejected(String hex) {
+		try {
+			decode(new Hpack.Decoder(), hex);
+			fail("decoded " + hex);
+		} catch (Hpack.CompressionException expected) {
+		}
+	}
+
+	private static List<String> decode(Hpack.Decoder decoder, String hex) throws Hpack.CompressionException {
+		byte[] block = new byte[hex.length() / 2];
+		for (int i = 0; i < block.length; i++) {
+			block[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		List<String> fields = new ArrayList<String>();
+		decoder.decode(block, 0, block.length, fields);
+		return fields;
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,119 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class RequestBodyTest {
+	private static final String CHUNKED = "5\r\nhello\r\n6;name=value\r\n world\r\n1a\r\nabcdefghijklmnopqrstuvwxyz\r\n"
+			+ "0\r\nX-Trailer: yes\r\n\r\n";
+
+	@Test
+	void decodesChunks() throws Exception {
+		Collected body = new Collected();
+		RequestBody chunked = chunked(body, 1000);
+		byte[] bytes = bytes(CHUNKED + "GET / HTTP/1.1\r\n");
+		assertEquals(CHUNKED.length(), chunked.receive(bytes, 0, bytes.length));
+		assertTrue(chunked.isComplete());
+		assertEquals("hello worldabcdefghijklmnopqrstuvwxyz", body.text());
+		assertEquals(37, chunked.bytesReceived());
+	}
+
+	/** Fed a byte at a time, as if every read brought one, keeping what wasn't consumed. */
+	@Test
+	void decodesChunksSplitAnywhere() throws Exception {
+		for (String input : new String[] {CHUNKED, CHUNKED.replace("\r\n", "\n")}) {
+			Collected body = new Collected();
+			RequestBody chunked = chunked(body, 1000);
+			byte[] all = bytes(input);
+			int start = 0;
+			for (int end = 1; end <= all.length; end++) {
+				assertFalse(chunked.isComplete());
+				start = chunked.receive(Arrays.copyOf(all, end), start, end);
+			}
+			assertTrue(chunked.isComplete());
+			assertEquals(all.length, start);
+			assertEquals("hello worldabcdefghijklmnopqrstuvwxyz", body.text());
+		}
+	}
+
+	@Test
+	void takesOnlyItsContentLength() throws Exception {
+		Collected body = new Collected();
+		RequestBody framed = new RequestBody(new HTTPRequest(null), true, 5, 1000, body);
+		byte[] bytes = bytes("hel");
+		assertEquals(3, framed.receive(bytes, 0, bytes.length));
+		assertFalse(framed.isComplete());
+		bytes = bytes("helloGET");
+		assertEquals(5, framed.receive(bytes, 3, bytes.length));
+		assertTrue(framed.isComplete());
+		assertEquals("hello", body.text());
+	}
+
+	@Test
+	void rejectsBrokenChunkSizes() {
+		assertRejected("400", "\r\nhello\r\n0\r\n\r\n");
+		assertRejected("400", "zz\r\nhello\r\n0\r\n\r\n");
+		assertRejected("400", "-5\r\nhello\r\n0\r\n\r\n");
+		assertRejected("400", "5x\r\nhello\r\n0\r\n\r\n");
+		assertRejected("400", "0x5\r\nhello\r\n0\r\n\r\n");
+		// Data past the chunk's size, where its line break should be.
+		assertRejected("400", "3\r\nhello\r\n0\r\n\r\n");
+		// A chunk-size line that never ends.
+		char[] digits = new char[2000];
+		Arrays.fill(digits, '0');
+		assertRejected("400", new String(digits));
+	}
+
+	@Test
+	void enforcesTheSizeLimit() {
+		assertRejected("413", "3e9\r\n");
+		assertRejected("413", "fffffffffffffffffffff\r\n");
+		// Each chunk is within the limit; together they aren't.
+		assertRejected("413", "200\r\n" + new String(new char[0x200]) + "\r\n200\r\n");
+	}
+
+	private static void assertRejected(String status, String input) {
+		byte[] bytes = bytes(input);
+		try {
+			chunked(new Collected(), 1000).receive(bytes, 0, bytes.length);
+			fail("accepted " + input);
+		} catch (HTTPRequest.MalformedRequestException e) {
+			assertTrue(e.status.startsWith(status), e.status + " for " + input);
+		}
+	}
+
+	private static RequestBody chunked(Collected body, long maxBytes) {
+		return new RequestBody(new HTTPRequest(null), true, -1, maxBytes, body);
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static final class Collected implements RequestBodyHandler.Body {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		@Override
+		public void write(ByteBuffer data) {
+			while (data.hasRemaining()) {
+				bytes.write(data.get());
+			}
+		}
+
+		@Override
+		public int finish(ResponseWriter out, boolean keepAlive) {
+			return 200;
+		}
+
+		@Override
+		public void abort() {
+		}
+
+		String text() {
+			return new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1);
+		}
+	}
+}
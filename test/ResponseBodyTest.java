@@ -0,0 +1,118 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ResponseBodyTest {
+	private static final Map<String, String> HEADERS = Collections.singletonMap("Content-Type", "text/plain");
+
+	@Test
+	void chunksABodyOfUnknownLength() throws Exception {
+		ResponseBody body = ResponseBody.of(parts("hello", "", " world"), -1);
+		CapturingWriter out = new CapturingWriter();
+		out.write(body.head("200 OK", HEADERS, "HTTP/1.1", true));
+		out.stream(body);
+		assertFalse(body.closesConnection());
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nConnection: keep-alive\r\n"
+				+ "Transfer-Encoding: chunked\r\n\r\n"
+				+ "5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n", out.text());
+	}
+
+	/** A part as big as they come has a multi-digit hex size, and the last chunk ends the last part. */
+	@Test
+	void chunksLargeParts() throws Exception {
+		byte[] data = new byte[100000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('a' + i % 26);
+		}
+		CapturingWriter out = new CapturingWriter();
+		out.stream(ResponseBody.of(new ByteArrayInputStream(data), -1));
+		String expected = "8000\r\n" + text(data, 0, 0x8000) + "\r\n"
+				+ "8000\r\n" + text(data, 0x8000, 0x8000) + "\r\n"
+				+ "8000\r\n" + text(data, 0x10000, 0x8000) + "\r\n"
+				+ "6a0\r\n" + text(data, 0x18000, 0x6a0) + "\r\n"
+				+ "0\r\n\r\n";
+		assertEquals(expected, out.text());
+	}
+
+	@Test
+	void sendsAnEmptyBodyAsJustTheLastChunk() throws Exception {
+		CapturingWriter out = new CapturingWriter();
+		out.stream(ResponseBody.of(parts(), -1));
+		assertEquals("0\r\n\r\n", out.text());
+	}
+
+	/** HTTP/1.0 has no chunked framing: the body goes as it is, and closing the connection ends it. */
+	@Test
+	void closesTheConnectionToEndABodyForHttp10() throws Exception {
+		ResponseBody body = ResponseBody.of(parts("hello", " world"), -1);
+		CapturingWriter out = new CapturingWriter();
+		out.write(body.head("200 OK", HEADERS, "HTTP/1.0", true));
+		out.stream(body);
+		assertTrue(body.closesConnection());
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nConnection: close\r\n\r\nhello world",
+				out.text());
+	}
+
+	@Test
+	void sendsAKnownLengthAsIs() throws Exception {
+		for (String version : new String[] {"HTTP/1.1", "HTTP/1.0"}) {
+			ResponseBody body = ResponseBody.of(parts("hello", " world"), 11);
+			CapturingWriter out = new CapturingWriter();
+			out.write(body.head("200 OK", HEADERS, version, true));
+			out.stream(body);
+			assertFalse(body.closesConnection());
+			assertEquals("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nConnection: keep-alive\r\n"
+					+ "Content-Length: 11\r\n\r\nhello world", out.text());
+		}
+	}
+
+	/** HTTP/2 frames the body itself, so it gets the bare data. */
+	@Test
+	void leavesFramingToHttp2() throws Exception {
+		ResponseBody body = ResponseBody.of(parts("hello", " world"), -1);
+		StringBuilder data = new StringBuilder();
+		ByteBuffer part;
+		while ((part = body.next(false)) != null) {
+			data.append(StandardCharsets.ISO_8859_1.decode(part));
+		}
+		assertEquals("hello world", data.toString());
+	}
+
+	@Test
+	void failsABodyThatEndsShort() {
+		ResponseBody body = ResponseBody.of(parts("hello"), 11);
+		try {
+			body.writeTo(new CapturingWriter());
+			fail("sent a short body");
+		} catch (IOException expected) {
+		}
+	}
+
+	/** Produces each of {@code parts} in turn (an empty one as nothing ready yet), then ends. */
+	private static ResponseBody.Producer parts(final String... parts) {
+		return new ResponseBody.Producer() {
+			private int next = 0;
+
+			@Override
+			public int produce(ByteBuffer into) {
+				if (next == parts.length) {
+					return -1;
+				}
+				byte[] part = parts[next++].getBytes(StandardCharsets.ISO_8859_1);
+				into.put(part);
+				return part.length;
+			}
+		};
+	}
+
+	private static String text(byte[] data, int offset, int length) {
+		return new String(Arrays.copyOfRange(data, offset, offset + length), StandardCharsets.ISO_8859_1);
+	}
+}